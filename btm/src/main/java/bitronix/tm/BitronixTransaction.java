@@ -18,6 +18,7 @@ package bitronix.tm;
 import bitronix.tm.internal.BitronixMultiSystemException;
 import bitronix.tm.internal.BitronixRollbackException;
 import bitronix.tm.internal.BitronixRollbackSystemException;
+import bitronix.tm.internal.BitronixRuntimeException;
 import bitronix.tm.internal.BitronixSystemException;
 import bitronix.tm.internal.BitronixXAException;
 import bitronix.tm.internal.TransactionStatusChangeListener;
@@ -28,11 +29,9 @@ import bitronix.tm.resource.ResourceRegistrar;
 import bitronix.tm.resource.common.XAResourceHolder;
 import bitronix.tm.resource.common.XAResourceHolderStateVisitor;
 import bitronix.tm.timer.TaskScheduler;
-import bitronix.tm.twopc.Committer;
+import bitronix.tm.timer.TransactionTimeoutTask;
+import bitronix.tm.twopc.PhaseEngines;
 import bitronix.tm.twopc.PhaseException;
-import bitronix.tm.twopc.Preparer;
-import bitronix.tm.twopc.Rollbacker;
-import bitronix.tm.twopc.executor.Executor;
 import bitronix.tm.utils.Decoder;
 import bitronix.tm.utils.ExceptionUtils;
 import bitronix.tm.utils.ManagementRegistrar;
@@ -57,10 +56,17 @@ import javax.transaction.xa.XAResource;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Implementation of {@link Transaction}.
@@ -73,18 +79,18 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
 
     private final XAResourceManager resourceManager;
     private final Scheduler<Synchronization> synchronizationScheduler = new Scheduler<Synchronization>();
-    private final List<TransactionStatusChangeListener> transactionStatusListeners = new ArrayList<TransactionStatusChangeListener>();
+    private volatile List<TransactionStatusChangeListener> transactionStatusListeners;
 
     private volatile int status = Status.STATUS_NO_TRANSACTION;
     private volatile boolean timeout = false;
     private volatile Date timeoutDate;
+    private volatile TransactionTimeoutTask timeoutTask;
+    // amount of threads on which a TransactionContext of this transaction is active, -1 once completion started
+    private final AtomicInteger activeContexts = new AtomicInteger();
 
-    private final Executor executor = TransactionManagerServices.getExecutor();
     private final TaskScheduler taskScheduler = TransactionManagerServices.getTaskScheduler();
-
-    private final Preparer preparer = new Preparer(executor);
-    private final Committer committer = new Committer(executor);
-    private final Rollbacker rollbacker = new Rollbacker(executor);
+    private final PhaseEngines phaseEngines = PhaseEngines.getPhaseEngines(TransactionManagerServices.getExecutor());
+    private final BitronixTransactionManager transactionManager;
 
     /* management */
     private volatile String threadName;
@@ -93,6 +99,11 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
 
 
     public BitronixTransaction() {
+        this(null);
+    }
+
+    BitronixTransaction(BitronixTransactionManager transactionManager) {
+        this.transactionManager = transactionManager;
         Uid gtrid = UidGenerator.generateUid();
         if (log.isDebugEnabled()) { log.debug("creating new transaction with GTRID [" + gtrid + "]"); }
         this.resourceManager = new XAResourceManager(gtrid);
@@ -232,8 +243,9 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
             throw new IllegalStateException("transaction hasn't started yet");
         if (isDone())
             throw new IllegalStateException("transaction is done, cannot commit it");
+        closeContexts("commit");
 
-        taskScheduler.cancelTransactionTimeout(this);
+        cancelTimeout();
 
         // beforeCompletion must be called before the check to STATUS_MARKED_ROLLBACK as the synchronization
         // can still set the status to STATUS_MARKED_ROLLBACK.
@@ -278,7 +290,7 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
             try {
                 if (log.isDebugEnabled()) { log.debug("committing, " + resourceManager.size() + " enlisted resource(s)"); }
 
-                interestedResources = preparer.prepare(this);
+                interestedResources = phaseEngines.getPreparer().prepare(this);
             }
             catch (RollbackException ex) {
                 if (log.isDebugEnabled()) { log.debug("caught rollback exception during prepare, trying to rollback"); }
@@ -292,7 +304,7 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
             // commit phase
             if (log.isDebugEnabled()) { log.debug(interestedResources.size() + " interested resource(s)"); }
 
-            committer.commit(this, interestedResources);
+            phaseEngines.getCommitter().commit(this, interestedResources);
 
             if (resourceManager.size() == 0 && TransactionManagerServices.getConfiguration().isDebugZeroResourceTransaction()) {
                 log.warn(buildZeroTransactionDebugMessage(activationStackTrace, new StackTrace()));
@@ -311,8 +323,9 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
             throw new IllegalStateException("transaction hasn't started yet");
         if (isDone())
             throw new IllegalStateException("transaction is done, cannot roll it back");
+        closeContexts("roll back");
 
-        taskScheduler.cancelTransactionTimeout(this);
+        cancelTimeout();
 
         try {
             delistUnclosedResources(XAResource.TMSUCCESS);
@@ -331,7 +344,7 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
                         resourcesToRollback.add(resource);
                 }
 
-                rollbacker.rollback(this, resourcesToRollback);
+                phaseEngines.getRollbacker().rollback(this, resourcesToRollback);
 
                 if (log.isDebugEnabled()) { log.debug("successfully rolled back " + this); }
             } catch (HeuristicMixedException ex) {
@@ -379,7 +392,7 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
             this.activationStackTrace = new StackTrace();
         }
 
-        taskScheduler.scheduleTransactionTimeout(this, timeoutDate);
+        timeoutTask = taskScheduler.scheduleTransactionTimeout(this, timeoutDate);
     }
 
 
@@ -411,10 +424,13 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
     }
 
     private void fireTransactionStatusChangedEvent(int oldStatus, int newStatus) {
+        List<TransactionStatusChangeListener> listeners = transactionStatusListeners;
         if (log.isDebugEnabled()) log.debug("transaction status is changing from " + Decoder.decodeStatus(oldStatus) + " to " +
-                Decoder.decodeStatus(newStatus) + " - executing " + transactionStatusListeners.size() + " listener(s)");
+                Decoder.decodeStatus(newStatus) + " - executing " + (listeners == null ? 0 : listeners.size()) + " listener(s)");
+        if (listeners == null)
+            return;
 
-        for (TransactionStatusChangeListener listener : transactionStatusListeners) {
+        for (TransactionStatusChangeListener listener : listeners) {
             if (log.isDebugEnabled()) { log.debug("executing TransactionStatusChangeListener " + listener); }
             listener.statusChanged(oldStatus, newStatus);
             if (log.isDebugEnabled()) { log.debug("executed TransactionStatusChangeListener " + listener); }
@@ -422,6 +438,9 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
     }
 
     public void addTransactionStatusChangeListener(TransactionStatusChangeListener listener) {
+        // most transactions have no listener, the list is only created for those which do
+        if (transactionStatusListeners == null)
+            transactionStatusListeners = new ArrayList<TransactionStatusChangeListener>();
         transactionStatusListeners.add(listener);
     }
 
@@ -508,7 +527,7 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
     private void rollbackPrepareFailure(RollbackException rbEx) throws BitronixSystemException {
         List<XAResourceHolderState> interestedResources = resourceManager.getAllResources();
         try {
-            rollbacker.rollback(this, interestedResources);
+            phaseEngines.getRollbacker().rollback(this, interestedResources);
             if (log.isDebugEnabled()) { log.debug("rollback after prepare failure succeeded"); }
         } catch (Exception ex) {
             // let's merge both exceptions' PhaseException to report a complete error message
@@ -535,6 +554,12 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
      */
     private void fireBeforeCompletionEvent() throws BitronixSystemException {
         if (log.isDebugEnabled()) { log.debug("before completion, " + synchronizationScheduler.size() + " synchronization(s) to execute"); }
+        ExecutorService executor = transactionManager == null ? null : transactionManager.getBeforeCompletionExecutor();
+        if (executor != null && synchronizationScheduler.size() > 1) {
+            fireBeforeCompletionEventInParallel(executor);
+            return;
+        }
+
         Iterator<Synchronization> it = synchronizationScheduler.reverseIterator();
         while (it.hasNext()) {
             Synchronization synchronization = it.next();
@@ -549,6 +574,93 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
         }
     }
 
+    /**
+     * Execute the synchronizations position after position in reverse order like {@link #fireBeforeCompletionEvent()}
+     * does, but run the ones registered at the same position in parallel. Synchronizations registered during the
+     * execution are picked up as long as their position has not been passed yet.
+     * <p>Connections acquired by the synchronizations running on the executor are enlisted as separate branches,
+     * see {@link Configuration#getParallelBeforeCompletionThreads()}.</p>
+     */
+    private void fireBeforeCompletionEventInParallel(ExecutorService executor) throws BitronixSystemException {
+        TransactionContext context = new TransactionContext(transactionManager, this, false);
+        Set<Synchronization> executed = Collections.newSetFromMap(new IdentityHashMap<Synchronization, Boolean>());
+
+        SortedSet<Integer> positions = synchronizationScheduler.getNaturalOrderPositions();
+        while (!positions.isEmpty()) {
+            Integer position = positions.last();
+
+            List<Synchronization> synchronizations = collectNotExecutedSynchronizations(position, executed);
+            while (!synchronizations.isEmpty()) {
+                executed.addAll(synchronizations);
+                executeBeforeCompletion(executor, context, synchronizations);
+                synchronizations = collectNotExecutedSynchronizations(position, executed);
+            }
+
+            positions = synchronizationScheduler.getNaturalOrderPositions().headSet(position);
+        }
+    }
+
+    private List<Synchronization> collectNotExecutedSynchronizations(Integer position, Set<Synchronization> executed) {
+        List<Synchronization> result = new ArrayList<Synchronization>();
+        synchronized (synchronizationScheduler) {
+            List<Synchronization> synchronizations = synchronizationScheduler.getByNaturalOrderForPosition(position);
+            if (synchronizations == null)
+                return result;
+            for (int i = synchronizations.size() - 1; i >= 0; i--) {
+                Synchronization synchronization = synchronizations.get(i);
+                if (!executed.contains(synchronization))
+                    result.add(synchronization);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Run beforeCompletion of the synchronizations, the first one on the calling thread and the other ones on the
+     * executor, then wait for all of them to be done.
+     */
+    private void executeBeforeCompletion(ExecutorService executor, TransactionContext context, List<Synchronization> synchronizations) throws BitronixSystemException {
+        if (log.isDebugEnabled()) { log.debug("executing " + synchronizations.size() + " synchronization(s) in parallel"); }
+        List<Future<?>> futures = new ArrayList<Future<?>>(synchronizations.size() - 1);
+        for (int i = 1; i < synchronizations.size(); i++) {
+            futures.add(executor.submit(context.wrap(new BeforeCompletionTask(synchronizations.get(i)))));
+        }
+
+        Throwable failure = null;
+        try {
+            new BeforeCompletionTask(synchronizations.get(0)).run();
+        } catch (Throwable t) {
+            // the tasks submitted to the executor must be awaited whatever happens on this thread
+            failure = t;
+        }
+
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException ex) {
+                if (failure == null)
+                    failure = ex.getCause();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                for (Future<?> f : futures) {
+                    f.cancel(true);
+                }
+                setStatus(Status.STATUS_MARKED_ROLLBACK);
+                throw new BitronixSystemException("interrupted while waiting for synchronizations to execute beforeCompletion", ex);
+            }
+        }
+
+        if (failure != null) {
+            if (log.isDebugEnabled()) { log.debug("Synchronization.beforeCompletion() call failed, marking transaction as rollback only - " + failure); }
+            setStatus(Status.STATUS_MARKED_ROLLBACK);
+            if (failure instanceof RuntimeException)
+                throw (RuntimeException) failure;
+            if (failure instanceof Error)
+                throw (Error) failure;
+            throw new BitronixRuntimeException("Synchronization.beforeCompletion() call failed", failure);
+        }
+    }
+
     private void fireAfterCompletionEvent() {
         // this TX is no longer in-flight -> remove this transaction's state from all XAResourceHolders
         getResourceManager().clearXAResourceHolderStates();
@@ -577,7 +689,53 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
         return sb.toString();
     }
 
-    private boolean isDone() {
+    /**
+     * Record the activation of a {@link TransactionContext} of this transaction on a thread.
+     * @return false if the transaction already started completing, in which case the activation must be refused.
+     */
+    boolean contextActivated() {
+        while (true) {
+            int count = activeContexts.get();
+            if (count < 0)
+                return false;
+            if (activeContexts.compareAndSet(count, count + 1))
+                return true;
+        }
+    }
+
+    /**
+     * Record the deactivation of a {@link TransactionContext} of this transaction on a thread.
+     */
+    void contextDeactivated() {
+        activeContexts.decrementAndGet();
+    }
+
+    /**
+     * Forbid any further context activation before the transaction starts completing.
+     * @param action the completion action, used in the error message.
+     * @throws IllegalStateException if a context of this transaction is still active on some thread.
+     */
+    private void closeContexts(String action) {
+        while (true) {
+            int count = activeContexts.get();
+            if (count < 0)
+                return;
+            if (count > 0)
+                throw new IllegalStateException("cannot " + action + " transaction, its context is still active on " + count + " thread(s)");
+            if (activeContexts.compareAndSet(0, -1))
+                return;
+        }
+    }
+
+    private void cancelTimeout() {
+        TransactionTimeoutTask task = timeoutTask;
+        if (task != null) {
+            taskScheduler.cancelTransactionTimeout(task);
+            timeoutTask = null;
+        }
+    }
+
+    boolean isDone() {
         switch (status) {
             case Status.STATUS_PREPARING:
             case Status.STATUS_PREPARED:
@@ -636,4 +794,19 @@ public class BitronixTransaction implements Transaction, BitronixTransactionMBea
     StackTrace getActivationStackTrace() {
         return activationStackTrace;
     }
+
+    private static final class BeforeCompletionTask implements Runnable {
+        private final Synchronization synchronization;
+
+        private BeforeCompletionTask(Synchronization synchronization) {
+            this.synchronization = synchronization;
+        }
+
+        @Override
+        public void run() {
+            if (log.isDebugEnabled()) { log.debug("executing synchronization " + synchronization); }
+            synchronization.beforeCompletion();
+        }
+    }
+
 }
@@ -16,9 +16,9 @@
 package bitronix.tm;
 
 import bitronix.tm.internal.BitronixSystemException;
+import bitronix.tm.internal.InFlightTransactions;
 import bitronix.tm.internal.ThreadContext;
 import bitronix.tm.internal.XAResourceManager;
-import bitronix.tm.utils.ClassLoaderUtils;
 import bitronix.tm.utils.Decoder;
 import bitronix.tm.utils.InitializationException;
 import bitronix.tm.utils.MonotonicClock;
@@ -45,13 +45,12 @@ import javax.transaction.TransactionManager;
 import javax.transaction.UserTransaction;
 import javax.transaction.xa.XAException;
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
-import java.util.NoSuchElementException;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -64,8 +63,9 @@ public class BitronixTransactionManager implements TransactionManager, UserTrans
     private final static Logger log = LoggerFactory.getLogger(BitronixTransactionManager.class);
     private final static String MDC_GTRID_KEY = "btm-gtrid";
 
-    private final SortedMap<BitronixTransaction, ClearContextSynchronization> inFlightTransactions;
+    private final InFlightTransactions<BitronixTransaction, ClearContextSynchronization> inFlightTransactions = new InFlightTransactions<BitronixTransaction, ClearContextSynchronization>();
 
+    private final ExecutorService beforeCompletionExecutor;
     private volatile boolean shuttingDown;
 
     /**
@@ -78,6 +78,7 @@ public class BitronixTransactionManager implements TransactionManager, UserTrans
             logVersion();
             Configuration configuration = TransactionManagerServices.getConfiguration();
             configuration.buildServerIdArray(); // first call will initialize the ServerId
+            beforeCompletionExecutor = createBeforeCompletionExecutor(configuration.getParallelBeforeCompletionThreads());
 
             if (log.isDebugEnabled()) { log.debug("starting BitronixTransactionManager using " + configuration); }
             TransactionManagerServices.getJournal().open();
@@ -89,8 +90,6 @@ public class BitronixTransactionManager implements TransactionManager, UserTrans
                 throw new InitializationException("invalid configuration value for backgroundRecoveryIntervalSeconds, found '" + backgroundRecoveryInterval + "' but it must be greater than 0");
             }
 
-            inFlightTransactions = createInFlightTransactionsMap();
-
             if (log.isDebugEnabled()) { log.debug("recovery will run in the background every " + backgroundRecoveryInterval + " second(s)"); }
             Date nextExecutionDate = new Date(MonotonicClock.currentTimeMillis() + (backgroundRecoveryInterval * 1000L));
             TransactionManagerServices.getTaskScheduler().scheduleRecovery(TransactionManagerServices.getRecoverer(), nextExecutionDate);
@@ -103,40 +102,6 @@ public class BitronixTransactionManager implements TransactionManager, UserTrans
         }
     }
 
-    private SortedMap<BitronixTransaction, ClearContextSynchronization> createInFlightTransactionsMap()
-            throws InstantiationException, IllegalAccessException, InvocationTargetException, NoSuchMethodException {
-        final boolean debug = log.isDebugEnabled();
-        if (debug) { log.debug("Creating sorted memory storage for inflight transactions."); }
-
-        final Comparator<BitronixTransaction> timestampSortComparator = new Comparator<BitronixTransaction>() {
-                @Override
-                public int compare(BitronixTransaction t1, BitronixTransaction t2) {
-                    Long timestamp1 = t1.getResourceManager().getGtrid().extractTimestamp();
-                    Long timestamp2 = t2.getResourceManager().getGtrid().extractTimestamp();
-
-                    int compareTo = timestamp1.compareTo(timestamp2);
-                    if (compareTo == 0 && !t1.getResourceManager().getGtrid().equals(t2.getResourceManager().getGtrid())) {
-                        // if timestamps are equal, use the Uid as the tie-breaker.  the !equals() check above avoids an expensive string compare() here.
-                        return t1.getGtrid().compareTo(t2.getGtrid());
-                    }
-                    return compareTo;
-                }
-            };
-
-        if (debug) { log.debug("Attempting to use a concurrent sorted map of type 'ConcurrentSkipListMap' (from jre6 or custom supplied backport)"); }
-        try {
-            @SuppressWarnings("unchecked")
-            SortedMap<BitronixTransaction, ClearContextSynchronization> mapInstance = (SortedMap<BitronixTransaction, ClearContextSynchronization>)
-                    ClassLoaderUtils.loadClass("java.util.concurrent.ConcurrentSkipListMap").
-                            getConstructor(Comparator.class).newInstance(timestampSortComparator);
-            return mapInstance;
-        } catch (ClassNotFoundException e) {
-            if (debug) { log.debug("Concurrent sorted map 'ConcurrentSkipListMap' is not available. Falling back to a synchronized TreeMap."); }
-            return Collections.synchronizedSortedMap(
-                    new TreeMap<BitronixTransaction, ClearContextSynchronization>(timestampSortComparator));
-        }
-    }
-
     /**
      * Start a new transaction and bind the context to the calling thread.
      * @throws NotSupportedException if a transaction is already bound to the calling thread.
@@ -162,7 +127,7 @@ public class BitronixTransactionManager implements TransactionManager, UserTrans
         try {
             currentTx.getSynchronizationScheduler().add(clearContextSynchronization, Scheduler.ALWAYS_LAST_POSITION -1);
             currentTx.setActive(threadContext.getTimeout());
-            inFlightTransactions.put(currentTx, clearContextSynchronization);
+            inFlightTransactions.put(currentTx, currentTx.getResourceManager().getGtrid().extractTimestamp(), clearContextSynchronization);
             if (log.isDebugEnabled()) { log.debug("begun new transaction at " + new Date(currentTx.getResourceManager().getGtrid().extractTimestamp())); }
         } catch (RuntimeException ex) {
             clearContextSynchronization.afterCompletion(Status.STATUS_NO_TRANSACTION);
@@ -271,6 +236,42 @@ public class BitronixTransactionManager implements TransactionManager, UserTrans
     }
 
 
+    /**
+     * Capture the transaction context of the calling thread so that it can be activated on other threads.
+     * @return the captured context.
+     * @throws IllegalStateException if no transaction is bound to the calling thread.
+     * @see TransactionContext
+     */
+    public TransactionContext captureContext() {
+        BitronixTransaction currentTx = getCurrentTransaction();
+        if (currentTx == null)
+            throw new IllegalStateException("no transaction started on this thread");
+        return new TransactionContext(this, currentTx, true);
+    }
+
+    void activateContext(BitronixTransaction transaction, boolean tracked) {
+        if (getCurrentTransaction() != null)
+            throw new IllegalStateException("a transaction is already running on this thread");
+        if (transaction.isDone() || (tracked && !transaction.contextActivated()))
+            throw new IllegalStateException("cannot activate the context of " + transaction + ", transaction is completing or completed");
+
+        if (log.isDebugEnabled()) { log.debug("activating context of " + transaction); }
+        ThreadContext.getThreadContext().setTransaction(transaction);
+        MDC.put(MDC_GTRID_KEY, transaction.getGtrid());
+    }
+
+    void deactivateContext(BitronixTransaction transaction, boolean tracked) {
+        ThreadContext threadContext = ThreadContext.getThreadContext();
+        if (threadContext.getTransaction() != transaction)
+            throw new IllegalStateException("the context of " + transaction + " is not active on this thread");
+
+        if (log.isDebugEnabled()) { log.debug("deactivating context of " + transaction); }
+        threadContext.clearTransaction();
+        MDC.remove(MDC_GTRID_KEY);
+        if (tracked)
+            transaction.contextDeactivated();
+    }
+
     /**
      * BitronixTransactionManager can only have a single instance per JVM so this method always returns a reference
      * with no special information to find back the sole instance. BitronixTransactionManagerObjectFactory will be used
@@ -301,17 +302,9 @@ public class BitronixTransactionManager implements TransactionManager, UserTrans
      * @return the timestamp or Long.MIN_VALUE if there is no in-flight transaction.
      */
     public long getOldestInFlightTransactionTimestamp() {
-        try {
-        	// The inFlightTransactions map is sorted by timestamp, so the first transaction is always the oldest
-        	BitronixTransaction oldestTransaction = inFlightTransactions.firstKey();
-        	long oldestTimestamp = oldestTransaction.getResourceManager().getGtrid().extractTimestamp();
-        	if (log.isDebugEnabled()) { log.debug("oldest in-flight transaction's timestamp: " + oldestTimestamp); }
-        	return oldestTimestamp;
-
-        } catch (NoSuchElementException e) {
-        	if (log.isDebugEnabled()) { log.debug("oldest in-flight transaction's timestamp: " + Long.MIN_VALUE); }
-        	return Long.MIN_VALUE;
-        }
+        long oldestTimestamp = inFlightTransactions.getOldestTimestamp();
+        if (log.isDebugEnabled()) { log.debug("oldest in-flight transaction's timestamp: " + oldestTimestamp); }
+        return oldestTimestamp;
     }
 
     /**
@@ -337,13 +330,11 @@ public class BitronixTransactionManager implements TransactionManager, UserTrans
         if (!log.isDebugEnabled())
             return;
 
-        // We're using an iterator, so we must synchronize on the collection
-    	synchronized (inFlightTransactions) {
-	        log.debug("dumping " + inFlightTransactions.size() + " transaction context(s)");
-	        for (BitronixTransaction tx : inFlightTransactions.keySet()) {
-	            log.debug(tx.toString());
-	        }
-    	}
+        List<BitronixTransaction> transactions = inFlightTransactions.getTransactions();
+        log.debug("dumping " + transactions.size() + " transaction context(s)");
+        for (BitronixTransaction tx : transactions) {
+            log.debug(tx.toString());
+        }
     }
 
     /**
@@ -371,6 +362,8 @@ public class BitronixTransactionManager implements TransactionManager, UserTrans
 
         if (log.isDebugEnabled()) { log.debug("shutting down executor"); }
         TransactionManagerServices.getExecutor().shutdown();
+        if (beforeCompletionExecutor != null)
+            beforeCompletionExecutor.shutdownNow();
 
         if (log.isDebugEnabled()) { log.debug("shutting down task scheduler"); }
         TransactionManagerServices.getTaskScheduler().shutdown();
@@ -445,13 +438,37 @@ public class BitronixTransactionManager implements TransactionManager, UserTrans
      * @return the created transaction.
      */
     private BitronixTransaction createTransaction() {
-        BitronixTransaction transaction = new BitronixTransaction();
+        BitronixTransaction transaction = new BitronixTransaction(this);
         ThreadContext.getThreadContext().setTransaction(transaction);
         MDC.put(MDC_GTRID_KEY, transaction.getGtrid());
 
         return transaction;
     }
 
+    private static ExecutorService createBeforeCompletionExecutor(int threads) {
+        if (threads < 1)
+            return null;
+        if (log.isDebugEnabled()) { log.debug("executing beforeCompletion in parallel on " + threads + " thread(s)"); }
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "bitronix-before-completion-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Get the executor running beforeCompletion of the synchronizations in parallel.
+     * @return the executor or null if synchronizations must be executed sequentially.
+     */
+    ExecutorService getBeforeCompletionExecutor() {
+        return beforeCompletionExecutor;
+    }
+
     /**
      * Unlink the transaction from the current thread's context.
      */
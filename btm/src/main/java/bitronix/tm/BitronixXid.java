@@ -46,7 +46,7 @@ public class BitronixXid implements Xid {
     private final Uid globalTransactionId;
     private final Uid branchQualifier;
     private final int hashCodeValue;
-    private final String toStringValue;
+    private volatile String toStringValue;
 
     /**
      * Create a new XID using the specified GTRID and BQUAL.
@@ -56,14 +56,12 @@ public class BitronixXid implements Xid {
     public BitronixXid(Uid globalTransactionId, Uid branchQualifier) {
         this.globalTransactionId = globalTransactionId;
         this.branchQualifier = branchQualifier;
-        this.toStringValue = precalculateToString();
         this.hashCodeValue = precalculateHashCode();
     }
 
     public BitronixXid(Xid xid) {
         this.globalTransactionId = new Uid(xid.getGlobalTransactionId());
         this.branchQualifier = new Uid(xid.getBranchQualifier());
-        this.toStringValue = precalculateToString();
         this.hashCodeValue = precalculateHashCode();
     }
 
@@ -108,7 +106,13 @@ public class BitronixXid implements Xid {
      */
     @Override
     public String toString() {
-        return toStringValue;
+        // only built when first needed as most XIDs never get printed
+        String value = toStringValue;
+        if (value == null) {
+            value = precalculateToString();
+            toStringValue = value;
+        }
+        return value;
     }
 
     private String precalculateToString() {
@@ -77,6 +77,8 @@ public class Configuration implements Service {
     private volatile String resourceConfigurationFilename;
     private volatile boolean conservativeJournaling;
     private volatile String jdbcProxyFactoryClass;
+    private volatile int uidSequenceBlockSize;
+    private volatile int parallelBeforeCompletionThreads;
 
     protected Configuration() {
         try {
@@ -125,6 +127,8 @@ public class Configuration implements Service {
             resourceConfigurationFilename = getString(properties, "bitronix.tm.resource.configuration", null);
             conservativeJournaling = getBoolean(properties, "bitronix.tm.conservativeJournaling", false);
             jdbcProxyFactoryClass = getString(properties, "bitronix.tm.jdbcProxyFactoryClass", "auto");
+            uidSequenceBlockSize = getInt(properties, "bitronix.tm.uidSequenceBlockSize", 1);
+            parallelBeforeCompletionThreads = getInt(properties, "bitronix.tm.parallelBeforeCompletionThreads", 0);
         } catch (IOException ex) {
             throw new InitializationException("error loading configuration", ex);
         }
@@ -686,6 +690,61 @@ public class Configuration implements Service {
     }
 
 
+    /**
+     * Amount of UID sequence numbers each thread reserves at once. When greater than 1, threads take their sequence
+     * numbers from a block they reserved rather than all incrementing the same counter, so the sequence numbers
+     * stay unique but no longer follow the UIDs creation order across threads.
+     * <p>Property name:<br><b>bitronix.tm.uidSequenceBlockSize -</b> <i>(defaults to 1)</i></p>
+     * @return the amount of sequence numbers reserved at once by a thread.
+     */
+    public int getUidSequenceBlockSize() {
+        return uidSequenceBlockSize;
+    }
+
+    /**
+     * Set the amount of UID sequence numbers each thread reserves at once.
+     * @see #getUidSequenceBlockSize()
+     * @param uidSequenceBlockSize the amount of sequence numbers reserved at once by a thread, 1 to have all
+     *        threads share a single counter.
+     * @return this.
+     */
+    public Configuration setUidSequenceBlockSize(int uidSequenceBlockSize) {
+        checkNotStarted();
+        this.uidSequenceBlockSize = uidSequenceBlockSize;
+        return this;
+    }
+
+    /**
+     * Amount of threads executing in parallel the synchronizations registered at the same position when a transaction
+     * completes. Synchronizations doing heavy work in beforeCompletion, like flushing several persistence contexts,
+     * then run concurrently, each of them with the transaction bound to its thread. 0 executes all synchronizations
+     * sequentially on the thread completing the transaction.
+     * <p>A synchronization running on another thread cannot use a connection which is in use on the thread completing
+     * the transaction, so it gets its own connection from the pool which is enlisted as a separate transaction branch.
+     * That branch is only tightly coupled with the others when the resource joins branches, see
+     * {@link bitronix.tm.resource.common.ResourceBean#setUseTmJoin(boolean)}, and the database supports it. A loosely
+     * coupled branch does not see the uncommitted changes of the other branches and blocks on the row locks they hold,
+     * so synchronizations working on the same rows must not be registered at the same position.</p>
+     * <p>Property name:<br><b>bitronix.tm.parallelBeforeCompletionThreads -</b> <i>(defaults to 0)</i></p>
+     * @return the amount of threads executing beforeCompletion in parallel, 0 if it is executed sequentially.
+     */
+    public int getParallelBeforeCompletionThreads() {
+        return parallelBeforeCompletionThreads;
+    }
+
+    /**
+     * Set the amount of threads executing in parallel the synchronizations registered at the same position.
+     * @see #getParallelBeforeCompletionThreads()
+     * @param parallelBeforeCompletionThreads the amount of threads executing beforeCompletion in parallel, 0 to
+     *        execute it sequentially.
+     * @return this.
+     */
+    public Configuration setParallelBeforeCompletionThreads(int parallelBeforeCompletionThreads) {
+        checkNotStarted();
+        this.parallelBeforeCompletionThreads = parallelBeforeCompletionThreads;
+        return this;
+    }
+
     /**
      * {@link bitronix.tm.resource.ResourceLoader} configuration file name. {@link bitronix.tm.resource.ResourceLoader}
      * will be disabled if this value is null.
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Transactional context captured on a thread with {@link BitronixTransactionManager#captureContext()} so that other
+ * threads can take part in the same transaction.
+ * <p>Activating a context binds its transaction to the calling thread, which can then use the transaction manager and
+ * get connections from the pools exactly like the thread which began the transaction: resources are enlisted through
+ * the usual path and are ended when the transaction completes. Activation only touches the thread's transaction
+ * context, no resource is suspended nor resumed, which makes it cheap enough to be done for every task submitted to
+ * an executor, including one running tasks on short-lived or virtual threads.</p>
+ * <p>Every {@link #activate()} must be paired with a {@link #deactivate()} on the same thread, and all threads must have
+ * deactivated the context before the transaction gets committed or rolled back: completing the transaction fails with
+ * an {@link IllegalStateException} while the context is still active on any thread, and the context cannot be
+ * activated anymore once completion started.</p>
+ */
+public final class TransactionContext {
+
+    private final BitronixTransactionManager transactionManager;
+    private final BitronixTransaction transaction;
+    private final boolean tracked;
+
+    /**
+     * Create a context of a transaction.
+     * @param transactionManager the transaction manager.
+     * @param transaction the transaction.
+     * @param tracked false if the context is only activated by the transaction itself while it completes, in which
+     *  case activations do not hold the completion back.
+     */
+    TransactionContext(BitronixTransactionManager transactionManager, BitronixTransaction transaction, boolean tracked) {
+        this.transactionManager = transactionManager;
+        this.transaction = transaction;
+        this.tracked = tracked;
+    }
+
+    /**
+     * Get the transaction of this context.
+     * @return the transaction of this context.
+     */
+    public BitronixTransaction getTransaction() {
+        return transaction;
+    }
+
+    /**
+     * Bind the transaction of this context to the calling thread.
+     * @throws IllegalStateException if a transaction is already bound to the calling thread or if the transaction
+     *  is already completing.
+     */
+    public void activate() {
+        transactionManager.activateContext(transaction, tracked);
+    }
+
+    /**
+     * Unbind the transaction of this context from the calling thread.
+     * @throws IllegalStateException if this context is not active on the calling thread.
+     */
+    public void deactivate() {
+        transactionManager.deactivateContext(transaction, tracked);
+    }
+
+    /**
+     * Wrap a task so that it runs with this context active.
+     * @param task the task to wrap.
+     * @return a task activating this context, running the wrapped task and then deactivating this context.
+     */
+    public Runnable wrap(final Runnable task) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                activate();
+                try {
+                    task.run();
+                } finally {
+                    deactivate();
+                }
+            }
+        };
+    }
+
+    /**
+     * Wrap a task so that it runs with this context active.
+     * @param task the task to wrap.
+     * @param <V> the result type of the task.
+     * @return a task activating this context, calling the wrapped task and then deactivating this context.
+     */
+    public <V> Callable<V> wrap(final Callable<V> task) {
+        return new Callable<V>() {
+            @Override
+            public V call() throws Exception {
+                activate();
+                try {
+                    return task.call();
+                } finally {
+                    deactivate();
+                }
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "a TransactionContext of " + transaction;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Registry of the in-flight transactions of the transaction manager.
+ * <p>Transactions are spread over stripes by hash code, each stripe being a plain hash map guarded by its own
+ * monitor so that registering and unregistering a transaction is done in constant time and threads beginning
+ * or completing transactions rarely compete for the same stripe.</p>
+ * <p>Every stripe also keeps a low-watermark of the start timestamps of its transactions. It is lowered when a
+ * transaction registers and only marked as stale when the transaction holding it leaves, the stripe then getting
+ * scanned the next time the oldest timestamp is requested, which only happens once per recovery run.</p>
+ * @param <K> the transaction type
+ * @param <V> the type of the value registered with each transaction
+ */
+public final class InFlightTransactions<K, V> {
+
+    private final Stripe<K, V>[] stripes;
+    private final int mask;
+    private final AtomicInteger size = new AtomicInteger();
+
+    public InFlightTransactions() {
+        this(Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    /**
+     * @param stripeCount the amount of stripes, rounded up to the next power of two.
+     */
+    @SuppressWarnings("unchecked")
+    public InFlightTransactions(int stripeCount) {
+        int length = 1;
+        while (length < stripeCount)
+            length <<= 1;
+
+        this.stripes = new Stripe[length];
+        this.mask = length - 1;
+        for (int i = 0; i < length; i++) {
+            stripes[i] = new Stripe<K, V>();
+        }
+    }
+
+    private Stripe<K, V> stripeFor(K transaction) {
+        int hash = transaction.hashCode();
+        hash ^= (hash >>> 16);
+        return stripes[hash & mask];
+    }
+
+    /**
+     * Register an in-flight transaction.
+     * @param transaction the transaction.
+     * @param timestamp the start timestamp of the transaction.
+     * @param value the value to register with the transaction.
+     */
+    public void put(K transaction, long timestamp, V value) {
+        Stripe<K, V> stripe = stripeFor(transaction);
+        synchronized (stripe) {
+            Entry<V> previous = stripe.entries.put(transaction, new Entry<V>(timestamp, value));
+            if (previous == null)
+                size.incrementAndGet();
+            else if (previous.timestamp == stripe.oldestTimestamp)
+                stripe.oldestTimestampStale = true;
+            if (timestamp < stripe.oldestTimestamp)
+                stripe.oldestTimestamp = timestamp;
+        }
+    }
+
+    /**
+     * @param transaction the transaction.
+     * @return the value registered with the transaction or null if it is not in-flight.
+     */
+    public V get(K transaction) {
+        Stripe<K, V> stripe = stripeFor(transaction);
+        synchronized (stripe) {
+            Entry<V> entry = stripe.entries.get(transaction);
+            return entry == null ? null : entry.value;
+        }
+    }
+
+    /**
+     * Unregister an in-flight transaction.
+     * @param transaction the transaction.
+     * @return the value registered with the transaction or null if it was not in-flight.
+     */
+    public V remove(K transaction) {
+        Stripe<K, V> stripe = stripeFor(transaction);
+        synchronized (stripe) {
+            Entry<V> entry = stripe.entries.remove(transaction);
+            if (entry == null)
+                return null;
+            size.decrementAndGet();
+            if (entry.timestamp == stripe.oldestTimestamp)
+                stripe.oldestTimestampStale = true;
+            return entry.value;
+        }
+    }
+
+    /**
+     * @return the amount of in-flight transactions.
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * @return the start timestamp of the oldest in-flight transaction or Long.MIN_VALUE if there is none.
+     */
+    public long getOldestTimestamp() {
+        long oldestTimestamp = Long.MAX_VALUE;
+        for (Stripe<K, V> stripe : stripes) {
+            synchronized (stripe) {
+                if (stripe.oldestTimestampStale) {
+                    long stripeOldestTimestamp = Long.MAX_VALUE;
+                    for (Entry<V> entry : stripe.entries.values()) {
+                        stripeOldestTimestamp = Math.min(stripeOldestTimestamp, entry.timestamp);
+                    }
+                    stripe.oldestTimestamp = stripeOldestTimestamp;
+                    stripe.oldestTimestampStale = false;
+                }
+                oldestTimestamp = Math.min(oldestTimestamp, stripe.oldestTimestamp);
+            }
+        }
+        return oldestTimestamp == Long.MAX_VALUE ? Long.MIN_VALUE : oldestTimestamp;
+    }
+
+    /**
+     * @return a snapshot of the in-flight transactions.
+     */
+    public List<K> getTransactions() {
+        List<K> result = new ArrayList<K>(size());
+        for (Stripe<K, V> stripe : stripes) {
+            synchronized (stripe) {
+                result.addAll(stripe.entries.keySet());
+            }
+        }
+        return result;
+    }
+
+    private static final class Stripe<K, V> {
+        private final Map<K, Entry<V>> entries = new HashMap<K, Entry<V>>();
+        private long oldestTimestamp = Long.MAX_VALUE;
+        private boolean oldestTimestampStale;
+    }
+
+    private static final class Entry<V> {
+        private final long timestamp;
+        private final V value;
+
+        private Entry(long timestamp, V value) {
+            this.timestamp = timestamp;
+            this.value = value;
+        }
+    }
+
+}
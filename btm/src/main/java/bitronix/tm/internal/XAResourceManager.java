@@ -66,12 +66,14 @@ public class XAResourceManager {
      *     {@link XAResourceHolderState} and drop the previous one. if you cannot join, it's the same as case 3</li>
      * <li>not enlisted: create a new branch and keep a reference on the passed-in {@link XAResourceHolderState}</li>
      * </ul>
+     * Enlistments are serialized as threads sharing a transaction through a {@link bitronix.tm.TransactionContext}
+     * may enlist resources concurrently.
      *
      * @param xaResourceHolderState the {@link XAResourceHolderState} to be enlisted.
      * @throws XAException if a resource error occured.
      * @throws BitronixSystemException if an internal error occured.
      */
-    public void enlist(XAResourceHolderState xaResourceHolderState) throws XAException, BitronixSystemException {
+    public synchronized void enlist(XAResourceHolderState xaResourceHolderState) throws XAException, BitronixSystemException {
         XAResourceHolderState alreadyEnlistedHolder = findXAResourceHolderState(xaResourceHolderState.getXAResource());
         if (alreadyEnlistedHolder != null && !alreadyEnlistedHolder.isEnded()) {
             xaResourceHolderState.setXid(alreadyEnlistedHolder.getXid());
@@ -128,7 +130,7 @@ public class XAResourceManager {
      * @throws XAException if the resource threw an exception during delistment.
      * @throws BitronixSystemException if an internal error occured.
      */
-    public boolean delist(XAResourceHolderState xaResourceHolderState, int flag) throws XAException, BitronixSystemException {
+    public synchronized boolean delist(XAResourceHolderState xaResourceHolderState, int flag) throws XAException, BitronixSystemException {
         if (findXAResourceHolderState(xaResourceHolderState.getXAResource()) != null) {
             if (log.isDebugEnabled()) { log.debug("delisting resource " + xaResourceHolderState); }
             xaResourceHolderState.end(flag);
@@ -280,8 +282,8 @@ public class XAResourceManager {
 
     public List<XAResourceHolderState> getAllResources() {
         List<XAResourceHolderState> result = new ArrayList<XAResourceHolderState>(resources.size());
-        for (Integer positionKey : resources.getNaturalOrderPositions()) {
-            result.addAll(resources.getByNaturalOrderForPosition(positionKey));
+        for (XAResourceHolderState resource : resources) {
+            result.add(resource);
         }
         return Collections.unmodifiableList(result);
     }
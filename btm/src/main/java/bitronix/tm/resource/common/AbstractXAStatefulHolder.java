@@ -40,6 +40,25 @@ public abstract class AbstractXAStatefulHolder<T extends XAStatefulHolder<T>> im
         return creationDate;
     }
 
+    /**
+     * Check that the physical connection is still usable while this object is idle in the pool. This is called by
+     * the pool maintenance task, without holding any pool lock, so that borrowers can skip testing connections
+     * which were recently validated. This implementation does nothing.
+     * @return false if the physical connection is broken and this object must be closed, true otherwise.
+     */
+    public boolean validateIdle() {
+        return true;
+    }
+
+    /**
+     * Prepare a freshly created object before it is first made available in the pool. This is called by the pool
+     * for every object it creates ahead of demand, be it when the pool is initialized, reset or filled in the
+     * background, but not for objects created on a borrower's behalf. This implementation does nothing.
+     * @throws Exception if the object cannot be warmed up, in which case the pool closes it.
+     */
+    public void warmUp() throws Exception {
+    }
+
     @Override
     public State getState() {
         return state;
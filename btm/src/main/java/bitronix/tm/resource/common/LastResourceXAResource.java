@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.resource.common;
+
+import javax.transaction.xa.XAResource;
+
+/**
+ * Marker for an {@link XAResource} emulating XA on top of a resource which only supports local transactions.
+ * <p>When such a resource is enlisted along with XA resources, the transaction manager applies the Last Resource
+ * Commit Optimization: the XA resources are prepared first, then this resource gets committed in one phase. Its
+ * outcome decides the outcome of the whole transaction: the XA resources are rolled back if it fails to commit and
+ * are committed otherwise.</p>
+ * <p>There is no way to recover such a resource: if the transaction manager crashes after it committed but before
+ * the COMMITTING record reached the journal, recovery rolls back the prepared XA resources.</p>
+ */
+public interface LastResourceXAResource extends XAResource {
+}
@@ -17,6 +17,7 @@ package bitronix.tm.resource.common;
 
 import java.io.Serializable;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
  * Abstract javabean container for all common properties of a {@link bitronix.tm.resource.common.XAResourceProducer} as configured in the
@@ -27,6 +28,9 @@ import java.util.Properties;
 @SuppressWarnings("serial")
 public abstract class ResourceBean implements Serializable {
 
+    private static final AtomicIntegerFieldUpdater<ResourceBean> createdResourcesCounterUpdater =
+            AtomicIntegerFieldUpdater.newUpdater(ResourceBean.class, "createdResourcesCounter");
+
     private volatile String className;
     private volatile String uniqueName;
     private volatile boolean automaticEnlistingEnabled = true;
@@ -46,6 +50,12 @@ public abstract class ResourceBean implements Serializable {
     private volatile boolean shareTransactionConnections = false;
     private volatile boolean disabled = false;
     private volatile boolean ignoreRecoveryFailures = false;
+    private volatile int spareIdleConnections = 0;
+    private volatile int poolFillerThreads = 1;
+    private volatile int warmUpThreads = 1;
+    private volatile int adaptivePoolSizingInterval = 0;
+    private volatile int leakDetectionThreshold = 0;
+    private volatile int leakDetectionStackSampling = 100;
 
     private volatile transient int createdResourcesCounter;
 
@@ -355,11 +365,130 @@ public abstract class ResourceBean implements Serializable {
         return disabled;
     }
 
+    /**
+     * @return the amount of idle connections the pool tries to keep available ahead of demand.
+     */
+    public int getSpareIdleConnections() {
+        return spareIdleConnections;
+    }
+
+    /**
+     * Set the amount of idle connections the pool should try to keep available ahead of demand. When greater than 0,
+     * pool growth happens asynchronously: connections are created by background threads instead of by the thread
+     * trying to acquire a connection, which then waits for the first connection to become available. When a background
+     * creation fails, the thread waiting the longest gets the failure instead of waiting until its acquisition
+     * timeout expires.
+     * Default value is 0, meaning the pool grows synchronously.
+     * @param spareIdleConnections the amount of spare idle connections.
+     */
+    public void setSpareIdleConnections(int spareIdleConnections) {
+        this.spareIdleConnections = spareIdleConnections;
+    }
+
+    /**
+     * @return the amount of background threads used to create connections when the pool grows asynchronously.
+     */
+    public int getPoolFillerThreads() {
+        return poolFillerThreads;
+    }
+
+    /**
+     * Set the amount of background threads used to create connections in parallel when the pool grows
+     * asynchronously. This is only used when {@link #getSpareIdleConnections()} is greater than 0.
+     * Default value is 1.
+     * @param poolFillerThreads the amount of background threads.
+     */
+    public void setPoolFillerThreads(int poolFillerThreads) {
+        this.poolFillerThreads = poolFillerThreads;
+    }
+
+    /**
+     * @return the amount of threads used to create the initial connections of the pool.
+     */
+    public int getWarmUpThreads() {
+        return warmUpThreads;
+    }
+
+    /**
+     * Set the amount of threads used to create the minimum amount of connections in parallel when the pool starts.
+     * Default value is 1, meaning the initial connections are created one after the other.
+     * @param warmUpThreads the amount of threads used to create the initial connections.
+     */
+    public void setWarmUpThreads(int warmUpThreads) {
+        this.warmUpThreads = warmUpThreads;
+    }
+
+    /**
+     * @return the interval in seconds between two pool size adjustments, 0 when adaptive pool sizing is disabled.
+     */
+    public int getAdaptivePoolSizingInterval() {
+        return adaptivePoolSizingInterval;
+    }
+
+    /**
+     * Set the interval in seconds at which the pool size is adjusted between the min and max pool sizes according
+     * to the observed demand: peak amount of connections in use, peak amount of borrowers waiting at the same time
+     * and the time it takes to create a connection. Idle connections above the computed target get closed one acquisition increment at
+     * a time. Missing connections are created in the background when {@link #getSpareIdleConnections()} is set,
+     * otherwise one acquisition increment at a time too. Default value is 0, meaning adaptive pool sizing is disabled.
+     * @param adaptivePoolSizingInterval the interval in seconds.
+     */
+    public void setAdaptivePoolSizingInterval(int adaptivePoolSizingInterval) {
+        this.adaptivePoolSizingInterval = adaptivePoolSizingInterval;
+    }
+
+    /**
+     * @return the amount of seconds after which a connection still out of the pool is reported, 0 when leak
+     *         detection is disabled.
+     */
+    public int getLeakDetectionThreshold() {
+        return leakDetectionThreshold;
+    }
+
+    /**
+     * Set the amount of seconds after which a connection acquired from the pool and not given back yet is
+     * reported as a potential leak. Such connections are logged once by the pool maintenance task and listed over
+     * JMX for as long as they are held. Default value is 0, meaning leak detection is disabled.
+     * @param leakDetectionThreshold the amount of seconds a connection can be held before being reported.
+     */
+    public void setLeakDetectionThreshold(int leakDetectionThreshold) {
+        this.leakDetectionThreshold = leakDetectionThreshold;
+    }
+
+    /**
+     * @return the rate at which the call stack of connection acquisitions is captured when leak detection is enabled.
+     */
+    public int getLeakDetectionStackSampling() {
+        return leakDetectionStackSampling;
+    }
+
+    /**
+     * Set the rate at which the call stack of connection acquisitions is captured when leak detection is enabled:
+     * one acquisition out of this amount records where it happened, so that the report of a leaked connection can
+     * point at the offending code. Capturing a stack is expensive, 1 captures all of them and 0 none.
+     * Default value is 100.
+     * @param leakDetectionStackSampling capture the call stack of one out of this amount of acquisitions.
+     */
+    public void setLeakDetectionStackSampling(int leakDetectionStackSampling) {
+        this.leakDetectionStackSampling = leakDetectionStackSampling;
+    }
+
+    /**
+     * Get the interval at which the resource type needs the pool maintenance task to run for its own periodic
+     * work, on top of the intervals implied by {@link #getMaxIdleTime()}, {@link #getAdaptivePoolSizingInterval()}
+     * and {@link #getLeakDetectionThreshold()}. The task runs at the shortest of them.
+     * @return the interval in seconds, 0 if the resource type has no periodic work.
+     */
+    protected int getMaintenanceInterval() {
+        return 0;
+    }
+
     /**
      * Increment a transient counter. This is used for assigning per-resource numbers to connections.
+     * <p>This method is thread-safe.</p>
      * @return the current value of the counter.
      */
     public int incCreatedResourcesCounter() {
-        return this.createdResourcesCounter++;
+        return createdResourcesCounterUpdater.getAndIncrement(this);
     }
 }
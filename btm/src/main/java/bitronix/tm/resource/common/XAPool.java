@@ -23,24 +23,40 @@ import bitronix.tm.internal.XAResourceHolderState;
 import bitronix.tm.recovery.IncrementalRecoverer;
 import bitronix.tm.recovery.RecoveryException;
 import bitronix.tm.resource.common.XAStatefulHolder.State;
+import bitronix.tm.utils.LatencyStatistics;
 import bitronix.tm.utils.MonotonicClock;
+import bitronix.tm.utils.StackTrace;
 import bitronix.tm.utils.Uid;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.transaction.Synchronization;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
@@ -69,8 +85,40 @@ public class XAPool<R extends XAResourceHolder<R>, T extends XAStatefulHolder<T>
     private final Queue<T> accessiblePool = new LinkedList<T>();
     private final Queue<T> inaccessiblePool = new LinkedList<T>();
 
+    /**
+     * Index of the inaccessiblePool by the GTRID of the transaction in which each connection was released,
+     * plus the reverse mapping used to unindex a connection when it leaves the NOT_ACCESSIBLE state. Both maps
+     * are guarded by the stateTransitionLock just like the pools.
+     */
+    private final Map<Uid, List<T>> inaccessibleByGtrid = new HashMap<Uid, List<T>>();
+    private final Map<T, Uid> inaccessibleGtrids = new IdentityHashMap<T, Uid>();
+
+    /**
+     * The connections currently out of the availablePool with the details of their acquisition, only maintained
+     * when leak detection is enabled. Guarded by the stateTransitionLock, as is the counter used to sample
+     * acquisition call stacks.
+     */
+    private final Map<T, Borrow> borrows = new IdentityHashMap<T, Borrow>();
+    private long borrowCount;
+
     private final AtomicInteger poolSize = new AtomicInteger();
 
+    /**
+     * Borrowers waiting for an IN_POOL connection, in arrival order. A connection made available while this queue
+     * is not empty is handed off directly to the longest waiting borrower instead of going back to the availablePool,
+     * and newcomers do not poll the availablePool while someone is already waiting.
+     */
+    private final Queue<Waiter<T>> waiters = new ConcurrentLinkedQueue<Waiter<T>>();
+    private final AtomicInteger waitingBorrowers = new AtomicInteger();
+    private final LatencyStatistics waitTimeStatistics = new LatencyStatistics();
+    private final AtomicLong waitTimeoutCount = new AtomicLong();
+    private final LatencyStatistics creationTimeStatistics = new LatencyStatistics();
+
+    /**
+     * Adaptive pool size controller, only set when adaptive pool sizing is enabled.
+     */
+    private final PoolSizer poolSizer;
+
     /**
      * This map is used to implement the connection sharing feature of Bitronix.
      */
@@ -81,6 +129,15 @@ public class XAPool<R extends XAResourceHolder<R>, T extends XAStatefulHolder<T>
     private final Object xaFactory;
     private final AtomicBoolean failed = new AtomicBoolean();
     private final Object poolGrowthShrinkLock = new Object();
+    /**
+     * The idle connection taken out of the availablePool by the maintenance task while it is being validated.
+     */
+    private volatile T validatingStatefulHolder;
+
+    /**
+     * Background connection creator, only set when the pool is configured to keep spare idle connections.
+     */
+    private volatile PoolFiller poolFiller;
 
     public XAPool(XAResourceProducer<R, T> xaResourceProducer, ResourceBean bean, Object xaFactory) throws Exception {
         this.xaResourceProducer = xaResourceProducer;
@@ -89,12 +146,17 @@ public class XAPool<R extends XAResourceHolder<R>, T extends XAStatefulHolder<T>
             throw new IllegalArgumentException("cannot create a pool with min " + bean.getMinPoolSize() + " connection(s) and max " + bean.getMaxPoolSize() + " connection(s)");
         if (bean.getAcquireIncrement() < 1)
             throw new IllegalArgumentException("cannot create a pool with a connection acquisition increment less than 1, configured value is " + bean.getAcquireIncrement());
+        if (bean.getSpareIdleConnections() < 0)
+            throw new IllegalArgumentException("cannot create a pool with a negative amount of spare idle connections, configured value is " + bean.getSpareIdleConnections());
+        if (bean.getSpareIdleConnections() > 0 && bean.getPoolFillerThreads() < 1)
+            throw new IllegalArgumentException("cannot create a pool with less than 1 pool filler thread, configured value is " + bean.getPoolFillerThreads());
 
         if (xaFactory == null) {
             this.xaFactory = XAFactoryHelper.createXAFactory(bean);
         } else {
             this.xaFactory = xaFactory;
         }
+        this.poolSizer = bean.getAdaptivePoolSizingInterval() > 0 ? new PoolSizer() : null;
         init();
 
         if (bean.getIgnoreRecoveryFailures())
@@ -102,9 +164,18 @@ public class XAPool<R extends XAResourceHolder<R>, T extends XAStatefulHolder<T>
     }
 
     private void init() throws Exception {
-        growUntilMinPoolSize();
+        if (bean.getSpareIdleConnections() > 0) {
+            poolFiller = new PoolFiller(bean.getPoolFillerThreads());
+        }
 
-        if (bean.getMaxIdleTime() > 0 || bean.getMaxLifeTime() > 0) {
+        if (bean.getWarmUpThreads() > 1) {
+            growUntilMinPoolSizeInParallel(bean.getWarmUpThreads());
+        } else {
+            growUntilMinPoolSize();
+        }
+        fillAhead();
+
+        if (bean.getMaxLifeTime() > 0 || getMaintenanceInterval() > 0) {
             TransactionManagerServices.getTaskScheduler().schedulePoolShrinking(this);
         }
     }
@@ -116,7 +187,17 @@ public class XAPool<R extends XAResourceHolder<R>, T extends XAStatefulHolder<T>
         synchronized (poolGrowthShrinkLock) {
             if (log.isDebugEnabled()) { log.debug("closing all connections of " + this); }
 
-            for (T xaStatefulHolder : getXAResourceHolders()) {
+            if (poolFiller != null) {
+                poolFiller.shutdown();
+                poolFiller = null;
+            }
+
+            List<T> xaStatefulHolders = getXAResourceHolders();
+            T validating = validatingStatefulHolder;
+            if (validating != null) {
+                xaStatefulHolders.add(validating);
+            }
+            for (T xaStatefulHolder : xaStatefulHolders) {
                 try {
                     xaStatefulHolder.close();
                 } catch (Exception ex) {
@@ -132,6 +213,9 @@ public class XAPool<R extends XAResourceHolder<R>, T extends XAStatefulHolder<T>
                 availablePool.clear();
                 accessiblePool.clear();
                 inaccessiblePool.clear();
+                inaccessibleByGtrid.clear();
+                inaccessibleGtrids.clear();
+                borrows.clear();
                 failed.set(false);
             }
             finally {
@@ -250,6 +334,7 @@ public class XAPool<R extends XAResourceHolder<R>, T extends XAStatefulHolder<T>
             case NOT_ACCESSIBLE:
                 if (log.isDebugEnabled()) { log.debug("removed " + source + " from the inaccessible pool"); }
                 inaccessiblePool.remove(source);
+                unindexInaccessible(source);
                 break;
             case CLOSED:
                 break;
@@ -267,17 +352,23 @@ public class XAPool<R extends XAResourceHolder<R>, T extends XAStatefulHolder<T>
         	switch (newState) {
         	case IN_POOL:
                 if (log.isDebugEnabled()) { log.debug("added " + source + " to the available pool"); }
-                availablePool.addFirst(source);
+                borrows.remove(source);
+                makeAvailable(source, true);
         		break;
         	case ACCESSIBLE:
         		if (log.isDebugEnabled()) { log.debug("added " + source + " to the accessible pool"); }
         		accessiblePool.add(source);
+        		if (oldState == State.IN_POOL) {
+        		    trackBorrow(source);
+        		}
         		break;
         	case NOT_ACCESSIBLE:
         		if (log.isDebugEnabled()) { log.debug("added " + source + " to the inaccessible pool"); }
         		inaccessiblePool.add(source);
+        		indexInaccessible(source);
         		break;
         	case CLOSED:
+                borrows.remove(source);
                 source.removeStateChangeEventListener(this);
                 poolSize.decrementAndGet();
         		break;
@@ -288,6 +379,65 @@ public class XAPool<R extends XAResourceHolder<R>, T extends XAStatefulHolder<T>
         }
     }
 
+    /**
+     * Remember when and by whom a connection was taken out of the availablePool. Must be called with the
+     * stateTransitionLock write lock held.
+     *
+     * @param source the connection which just became ACCESSIBLE
+     */
+    private void trackBorrow(T source) {
+        if (bean.getLeakDetectionThreshold() <= 0)
+            return;
+
+        int sampling = bean.getLeakDetectionStackSampling();
+        StackTrace stackTrace = null;
+        if (sampling > 0 && borrowCount++ % sampling == 0)
+            stackTrace = new StackTrace();
+        borrows.put(source, new Borrow(MonotonicClock.currentTimeMillis(), Thread.currentThread().getName(), stackTrace));
+    }
+
+    /**
+     * Index a connection which just moved to the inaccessiblePool under the current transaction's GTRID.
+     * A connection only becomes NOT_ACCESSIBLE when it is released while enlisted in the current transaction,
+     * see {@link TransactionContextHelper#requeue(XAStatefulHolder, ResourceBean)}. Must be called with the
+     * stateTransitionLock write lock held.
+     *
+     * @param source the NOT_ACCESSIBLE connection
+     */
+    private void indexInaccessible(T source) {
+        BitronixTransaction transaction = TransactionContextHelper.currentTransaction();
+        if (transaction == null)
+            return;
+        Uid gtrid = transaction.getResourceManager().getGtrid();
+
+        List<T> holders = inaccessibleByGtrid.get(gtrid);
+        if (holders == null) {
+            holders = new ArrayList<T>(2);
+            inaccessibleByGtrid.put(gtrid, holders);
+        }
+        holders.add(source);
+        inaccessibleGtrids.put(source, gtrid);
+    }
+
+    /**
+     * Remove a connection leaving the inaccessiblePool from the GTRID index. Must be called with the
+     * stateTransitionLock write lock held.
+     *
+     * @param source the connection leaving the NOT_ACCESSIBLE state
+     */
+    private void unindexInaccessible(T source) {
+        Uid gtrid = inaccessibleGtrids.remove(source);
+        if (gtrid == null)
+            return;
+
+        List<T> holders = inaccessibleByGtrid.get(gtrid);
+        if (holders != null) {
+            holders.remove(source);
+            if (holders.isEmpty())
+                inaccessibleByGtrid.remove(gtrid);
+        }
+    }
+
     /* ------------------------------------------------------------------------
      * Methods to obtain a connection from one of the internal pools.
      * ------------------------------------------------------------------------*/
@@ -296,14 +446,14 @@ public class XAPool<R extends XAResourceHolder<R>, T extends XAStatefulHolder<T>
      * Get an IN_POOL connection.  This method blocks for up to remainingTimeMs milliseconds
      * for someone to return or create a connection in the available pool.  If remainingTimeMs
      * expires, an exception is thrown.  It does not use stateTransitionLock.readLock() because
-     * the availablePool [a LinkedBlockingQueue] is already thread safe.
+     * the availablePool [a LinkedBlockingQueue] and the waiters queue are already thread safe.
      *
      * @param remainingTimeMs the maximum time to wait for a connection
      * @return a connection from the available (IN_POOL) pool
      * @throws Exception thrown in no connection is available before the remainingTimeMs time expires
      */
     private T getInPool(long remainingTimeMs) throws Exception {
-        if (inPoolSize() == 0) {
+        if (inPoolSize() == 0 && poolFiller == null) {
             if (log.isDebugEnabled()) { log.debug("no more free connections in " + this + ", trying to grow it"); }
             grow();
         }
@@ -311,11 +461,21 @@ public class XAPool<R extends XAResourceHolder<R>, T extends XAStatefulHolder<T>
         if (log.isDebugEnabled()) { log.debug("getting IN_POOL connection from " + this + ", waiting if necessary"); }
 
         try {
-            T xaStatefulHolder = availablePool.pollFirst(remainingTimeMs, TimeUnit.MILLISECONDS);
+            // do not barge ahead of borrowers already waiting
+            T xaStatefulHolder = waiters.isEmpty() ? availablePool.pollFirst() : null;
+            if (xaStatefulHolder == null) {
+                xaStatefulHolder = waitForInPool(remainingTimeMs);
+            }
+
             if (xaStatefulHolder == null) {
+                waitTimeoutCount.incrementAndGet();
                 if (TransactionManagerServices.isTransactionManagerRunning())
                     TransactionManagerServices.getTransactionManager().dumpTransactionContexts();
 
+                PoolFiller filler = poolFiller;
+                Exception fillFailure = filler == null ? null : filler.getLastFailure();
+                if (fillFailure != null)
+                    throw new BitronixRuntimeException("XA pool of resource " + bean.getUniqueName() + " still empty after " + bean.getAcquisitionTimeout() + "s wait time, last background connection creation failed", fillFailure);
                 throw new BitronixRuntimeException("XA pool of resource " + bean.getUniqueName() + " still empty after " + bean.getAcquisitionTimeout() + "s wait time");
             }
 
@@ -323,16 +483,101 @@ public class XAPool<R extends XAResourceHolder<R>, T extends XAStatefulHolder<T>
                 return getInPool(remainingTimeMs);
             }
 
+            if (poolSizer != null) {
+                poolSizer.borrowed();
+            }
+            fillAhead();
             return xaStatefulHolder;
         } catch (InterruptedException e) {
             throw new BitronixRuntimeException("Interrupted while waiting for IN_POOL connection.");
+        } catch (Failure failure) {
+            throw new BitronixRuntimeException("XA pool of resource " + bean.getUniqueName() + " is empty and creating a connection in the background failed", failure.getCause());
+        }
+    }
+
+    /**
+     * Queue up the calling thread as a waiter and block until a connection is handed off to it.
+     *
+     * @param remainingTimeMs the maximum time to wait for a connection
+     * @return the connection handed off to this waiter or null if remainingTimeMs expired
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     * @throws Failure if the background creation of a connection failed while waiting
+     */
+    private T waitForInPool(long remainingTimeMs) throws InterruptedException, Failure {
+        final long before = MonotonicClock.currentTimeMillis();
+        Waiter<T> waiter = new Waiter<T>();
+        waiters.add(waiter);
+        int waiting = waitingBorrowers.incrementAndGet();
+        if (poolSizer != null) {
+            poolSizer.waiting(waiting);
+        }
+
+        // a connection may have been put back in the availablePool right before this waiter got queued
+        T available = availablePool.pollFirst();
+        if (available != null) {
+            makeAvailable(available, true);
+        } else {
+            // connections are only created in the background once this waiter is queued so that it can be woken up
+            // if their creation fails
+            PoolFiller filler = poolFiller;
+            if (filler != null) {
+                if (log.isDebugEnabled()) { log.debug("no more free connections in " + this + ", growing it in the background"); }
+                filler.fill(Math.max(bean.getAcquireIncrement(), bean.getSpareIdleConnections()));
+            }
+        }
+
+        T xaStatefulHolder = null;
+        try {
+            xaStatefulHolder = waiter.await(remainingTimeMs);
+            return xaStatefulHolder;
+        } catch (InterruptedException ex) {
+            T handedOff = waiter.cancel();
+            if (handedOff != null) {
+                makeAvailable(handedOff, true);
+            }
+            throw ex;
+        } finally {
+            if (xaStatefulHolder == null) {
+                waiters.remove(waiter);
+            }
+            waitingBorrowers.decrementAndGet();
+            waitTimeStatistics.record(MonotonicClock.currentTimeMillis() - before);
         }
     }
 
     /**
-     * Get a XAStatefulHolder (connection) from the NOT_ACCESSIBLE pool.  This method obtains
-     * the stateTransitionLock.readLock() which prevents any modification during iteration, but
-     * allows multiple threads to iterate simultaneously.
+     * Put a connection back in circulation. If a borrower is waiting, the connection is handed off to the one
+     * which has been waiting the longest, otherwise it goes back to the available pool.
+     *
+     * @param xaStatefulHolder the IN_POOL connection
+     * @param first true if the connection should be put at the head of the available pool, false for the tail
+     */
+    private void makeAvailable(T xaStatefulHolder, boolean first) {
+        while (xaStatefulHolder != null) {
+            Waiter<T> waiter;
+            while ((waiter = waiters.poll()) != null) {
+                if (waiter.handOff(xaStatefulHolder)) {
+                    if (log.isDebugEnabled()) { log.debug("handed off " + xaStatefulHolder + " to a waiting borrower of " + this); }
+                    return;
+                }
+            }
+
+            if (first) {
+                availablePool.addFirst(xaStatefulHolder);
+            } else {
+                availablePool.addLast(xaStatefulHolder);
+            }
+
+            // a borrower may have started waiting after the waiters queue was found empty
+            xaStatefulHolder = waiters.isEmpty() ? null : availablePool.pollFirst();
+        }
+    }
+
+    /**
+     * Get a XAStatefulHolder (connection) from the NOT_ACCESSIBLE pool.  Only the connections indexed
+     * under the current transaction's GTRID are looked at, and each of them is checked to still be
+     * enlisted in it.  This method obtains the stateTransitionLock.readLock() which prevents any
+     * modification during the lookup, but allows multiple threads to look up simultaneously.
      *
      * @return a connection, or null if there are no connections in the inaccessible pool for the current transaction
      */
@@ -348,10 +593,13 @@ public class XAPool<R extends XAResourceHolder<R>, T extends XAStatefulHolder<T>
 
         stateTransitionLock.readLock().lock();
         try {
-            for (T xaStatefulHolder : inaccessiblePool) {
-                if (log.isDebugEnabled()) { log.debug("found a connection in NOT_ACCESSIBLE state: " + xaStatefulHolder); }
-                if (containsXAResourceHolderMatchingGtrid(xaStatefulHolder, currentTxGtrid))
-                    return xaStatefulHolder;
+            List<T> candidates = inaccessibleByGtrid.get(currentTxGtrid);
+            if (candidates != null) {
+                for (T xaStatefulHolder : candidates) {
+                    if (log.isDebugEnabled()) { log.debug("found a connection in NOT_ACCESSIBLE state: " + xaStatefulHolder); }
+                    if (containsXAResourceHolderMatchingGtrid(xaStatefulHolder, currentTxGtrid))
+                        return xaStatefulHolder;
+                }
             }
 
             if (log.isDebugEnabled()) { log.debug("no NOT_ACCESSIBLE connection enlisted in this transaction"); }
@@ -431,7 +679,9 @@ public class XAPool<R extends XAResourceHolder<R>, T extends XAStatefulHolder<T>
      * ------------------------------------------------------------------------*/
 
     /**
-     * Grow the pool by "acquire increment" amount up to the max pool size.
+     * Grow the pool by "acquire increment" amount up to the max pool size. When the pool keeps spare idle
+     * connections, the pool does not grow through this method but through the {@link PoolFiller} once the borrower
+     * is queued as a waiter, see {@link #waitForInPool(long)}.
      *
      * @throws Exception thrown if creating a pooled objects fails
      */
@@ -446,7 +696,7 @@ public class XAPool<R extends XAResourceHolder<R>, T extends XAStatefulHolder<T>
 
                 if (log.isDebugEnabled()) { log.debug("incrementing " + bean.getUniqueName() + " pool size by " + increment + " unit(s) to reach " + (totalPoolSize() + increment) + " connection(s)"); }
                 for (int i=0; i < increment ;i++) {
-                    createPooledObject(xaFactory);
+                    createPooledObject(xaFactory, false);
                 }
             }
             else {
@@ -462,17 +712,251 @@ public class XAPool<R extends XAResourceHolder<R>, T extends XAStatefulHolder<T>
     private void growUntilMinPoolSize() throws Exception {
         synchronized (poolGrowthShrinkLock) {
             if (log.isDebugEnabled()) { log.debug("growing " + this + " to minimum pool size " + bean.getMinPoolSize()); }
-            for (int i = totalPoolSize(); i < bean.getMinPoolSize(); i++) {
-                createPooledObject(xaFactory);
+            PoolFiller filler = poolFiller;
+            int pending = filler == null ? 0 : filler.getPendingCount();
+            for (int i = totalPoolSize() + pending; i < bean.getMinPoolSize(); i++) {
+                createPooledObject(xaFactory, true);
+            }
+        }
+    }
+
+    /**
+     * Grow the pool to its min size by creating the missing connections on a temporary set of threads.
+     * This method only returns once all connections have been created, or fails with the first error
+     * encountered after all creations are over.
+     *
+     * @param threadCount the maximum amount of connections to create in parallel
+     * @throws Exception thrown if creating a pooled object fails
+     */
+    private void growUntilMinPoolSizeInParallel(int threadCount) throws Exception {
+        synchronized (poolGrowthShrinkLock) {
+            int missing = bean.getMinPoolSize() - totalPoolSize();
+            if (missing < 2) {
+                growUntilMinPoolSize();
+                return;
+            }
+
+            if (log.isDebugEnabled()) { log.debug("growing " + this + " to minimum pool size " + bean.getMinPoolSize() + " using " + Math.min(threadCount, missing) + " thread(s)"); }
+            final String threadName = "bitronix-pool-warm-up [" + bean.getUniqueName() + "]";
+            ExecutorService executorService = Executors.newFixedThreadPool(Math.min(threadCount, missing), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, threadName);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+            try {
+                List<Future<Object>> futures = new ArrayList<Future<Object>>(missing);
+                for (int i = 0; i < missing; i++) {
+                    futures.add(executorService.submit(new Callable<Object>() {
+                        @Override
+                        public Object call() throws Exception {
+                            createPooledObject(xaFactory, true);
+                            return null;
+                        }
+                    }));
+                }
+
+                Exception failure = null;
+                for (Future<Object> future : futures) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException ex) {
+                        if (failure == null) {
+                            failure = ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+                        }
+                    }
+                }
+                if (failure != null)
+                    throw failure;
+            } finally {
+                executorService.shutdown();
             }
         }
     }
 
-    private void createPooledObject(Object xaFactory) throws Exception {
+    /**
+     * Ask the {@link PoolFiller} to create enough connections in the background so that the configured amount
+     * of spare idle connections is available. This is a no-op when the pool grows synchronously.
+     */
+    private void fillAhead() {
+        PoolFiller filler = poolFiller;
+        if (filler == null)
+            return;
+
+        int missing = bean.getSpareIdleConnections() - inPoolSize() - filler.getPendingCount();
+        if (missing > 0) {
+            if (log.isDebugEnabled()) { log.debug("requesting " + missing + " spare connection(s) for " + this); }
+            filler.fill(missing);
+        }
+    }
+
+    private void createPooledObject(Object xaFactory, boolean warmUp) throws Exception {
+        T xaStatefulHolder = createStatefulHolder(xaFactory, warmUp);
+        addPooledObject(xaStatefulHolder);
+    }
+
+    /**
+     * Create a new pooled object.
+     *
+     * @param xaFactory the factory (XADataSource) to create the object with
+     * @param warmUp true if {@link AbstractXAStatefulHolder#warmUp()} must be called before the object is returned,
+     *        false when the object is created on demand for a borrower that should not pay for the warm-up.
+     * @return the created pooled object
+     * @throws Exception thrown if creating or warming up the object fails, in which case it has been closed
+     */
+    private T createStatefulHolder(Object xaFactory, boolean warmUp) throws Exception {
+        long before = MonotonicClock.currentTimeMillis();
         T xaStatefulHolder = xaResourceProducer.createPooledConnection(xaFactory, bean);
+        if (warmUp && xaStatefulHolder instanceof AbstractXAStatefulHolder) {
+            try {
+                ((AbstractXAStatefulHolder) xaStatefulHolder).warmUp();
+            } catch (Exception ex) {
+                try {
+                    xaStatefulHolder.close();
+                } catch (Exception ex2) {
+                    if (log.isDebugEnabled()) { log.debug("ignoring exception while closing connection " + xaStatefulHolder + " which failed to warm up", ex2); }
+                }
+                throw ex;
+            }
+        }
+        creationTimeStatistics.record(MonotonicClock.currentTimeMillis() - before);
+        return xaStatefulHolder;
+    }
+
+    private void addPooledObject(T xaStatefulHolder) {
         xaStatefulHolder.addStateChangeEventListener(this);
-        availablePool.addLast(xaStatefulHolder);
         poolSize.incrementAndGet();
+        makeAvailable(xaStatefulHolder, false);
+    }
+
+    /**
+     * Creates pooled objects in parallel on background threads. Each creation reserves a slot before being
+     * submitted so that the total pool size plus the creations in progress never exceeds the max pool size.
+     * Created objects are appended to the available pool where any waiting borrower can pick them up.
+     */
+    private final class PoolFiller {
+        private final ExecutorService executorService;
+        private final AtomicInteger pendingCount = new AtomicInteger();
+        private final Object pendingMonitor = new Object();
+        private volatile Exception lastFailure;
+
+        private PoolFiller(int threadCount) {
+            final String threadName = "bitronix-pool-filler [" + bean.getUniqueName() + "]";
+            this.executorService = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, threadName);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        private void fill(int count) {
+            for (int i = 0; i < count; i++) {
+                if (!reserve()) {
+                    if (log.isDebugEnabled()) { log.debug("pool " + bean.getUniqueName() + " already at max size of " + totalPoolSize() + " connection(s) with " + pendingCount.get() + " being created, not growing it"); }
+                    return;
+                }
+
+                try {
+                    executorService.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            createInBackground();
+                        }
+                    });
+                } catch (RejectedExecutionException ex) {
+                    release();
+                    return;
+                }
+            }
+        }
+
+        private boolean reserve() {
+            while (true) {
+                int pending = pendingCount.get();
+                if (totalPoolSize() + pending >= bean.getMaxPoolSize())
+                    return false;
+                if (pendingCount.compareAndSet(pending, pending + 1))
+                    return true;
+            }
+        }
+
+        private void createInBackground() {
+            try {
+                T xaStatefulHolder = createStatefulHolder(xaFactory, true);
+                if (executorService.isShutdown()) {
+                    if (log.isDebugEnabled()) { log.debug("pool filler of " + bean.getUniqueName() + " has been shut down, closing freshly created connection " + xaStatefulHolder); }
+                    try {
+                        xaStatefulHolder.close();
+                    } catch (Exception ex) {
+                        if (log.isDebugEnabled()) { log.debug("ignoring exception while closing connection " + xaStatefulHolder, ex); }
+                    }
+                    return;
+                }
+
+                addPooledObject(xaStatefulHolder);
+                lastFailure = null;
+                if (log.isDebugEnabled()) { log.debug("created connection " + xaStatefulHolder + " in background for " + XAPool.this); }
+            } catch (Exception ex) {
+                lastFailure = ex;
+                log.warn("error creating connection in background for " + XAPool.this, ex);
+                failWaiter(ex);
+            } finally {
+                release();
+            }
+        }
+
+        /**
+         * Wake up the borrower waiting the longest, if any, with the failure of the creation which should have served
+         * it instead of letting it wait until its acquisition timeout expires.
+         */
+        private void failWaiter(Exception ex) {
+            Waiter<T> waiter;
+            while ((waiter = waiters.poll()) != null) {
+                if (waiter.fail(ex)) {
+                    if (log.isDebugEnabled()) { log.debug("failed a waiting borrower of " + XAPool.this + " after a background connection creation error"); }
+                    return;
+                }
+            }
+        }
+
+        private void release() {
+            if (pendingCount.decrementAndGet() == 0) {
+                synchronized (pendingMonitor) {
+                    pendingMonitor.notifyAll();
+                }
+            }
+        }
+
+        private int getPendingCount() {
+            return pendingCount.get();
+        }
+
+        private boolean awaitNoPendingCreation(long timeoutMs) throws InterruptedException {
+            long deadline = MonotonicClock.currentTimeMillis() + timeoutMs;
+            synchronized (pendingMonitor) {
+                while (pendingCount.get() > 0) {
+                    long remainingMs = deadline - MonotonicClock.currentTimeMillis();
+                    if (remainingMs <= 0)
+                        return false;
+                    pendingMonitor.wait(remainingMs);
+                }
+            }
+            return true;
+        }
+
+        private Exception getLastFailure() {
+            return lastFailure;
+        }
+
+        private void shutdown() {
+            executorService.shutdownNow();
+        }
     }
 
     /* ------------------------------------------------------------------------
@@ -480,15 +964,40 @@ public class XAPool<R extends XAResourceHolder<R>, T extends XAStatefulHolder<T>
      * ------------------------------------------------------------------------*/
 
     public Date getNextShrinkDate() {
-        return new Date(MonotonicClock.currentTimeMillis() + TimeUnit.SECONDS.toMillis(bean.getMaxIdleTime()));
+        return new Date(MonotonicClock.currentTimeMillis() + TimeUnit.SECONDS.toMillis(getMaintenanceInterval()));
+    }
+
+    /**
+     * @return the shortest interval in seconds at which one of the maintenance duties must run, 0 if none has to.
+     */
+    private int getMaintenanceInterval() {
+        int interval = bean.getMaxIdleTime();
+        if (poolSizer != null) {
+            interval = shortestInterval(interval, bean.getAdaptivePoolSizingInterval());
+        }
+        interval = shortestInterval(interval, bean.getLeakDetectionThreshold());
+        return shortestInterval(interval, bean.getMaintenanceInterval());
+    }
+
+    private static int shortestInterval(int interval, int otherInterval) {
+        if (otherInterval > 0 && (interval <= 0 || otherInterval < interval)) {
+            return otherInterval;
+        }
+        return interval;
     }
 
     public void shrink() throws Exception {
         synchronized (poolGrowthShrinkLock) {
             if (log.isDebugEnabled()) { log.debug("shrinking " + this); }
+            reportLongHeldStatefulHolders();
             expireOrCloseStatefulHolders(false);
+            if (poolSizer != null) {
+                poolSizer.adjust();
+            }
+            fillAhead();
             if (log.isDebugEnabled()) { log.debug("shrunk " + this); }
         }
+        validateIdleStatefulHolders();
     }
 
     public void reset() throws Exception {
@@ -499,6 +1008,42 @@ public class XAPool<R extends XAResourceHolder<R>, T extends XAStatefulHolder<T>
         }
     }
 
+    private void reportLongHeldStatefulHolders() {
+        for (Map.Entry<T, Borrow> entry : getLongHeldBorrows().entrySet()) {
+            Borrow borrow = entry.getValue();
+            if (borrow.reported)
+                continue;
+            borrow.reported = true;
+
+            String message = "connection " + entry.getKey() + " of resource " + bean.getUniqueName() + " held for " +
+                    (MonotonicClock.currentTimeMillis() - borrow.time) + "ms by thread '" + borrow.threadName + "', possible leak";
+            if (borrow.stackTrace != null)
+                log.warn(message + ", acquired at", borrow.stackTrace);
+            else
+                log.warn(message + " (acquisition call stack not sampled)");
+        }
+    }
+
+    private Map<T, Borrow> getLongHeldBorrows() {
+        int threshold = bean.getLeakDetectionThreshold();
+        if (threshold <= 0)
+            return Collections.emptyMap();
+
+        long heldSince = MonotonicClock.currentTimeMillis() - TimeUnit.SECONDS.toMillis(threshold);
+        Map<T, Borrow> result = new IdentityHashMap<T, Borrow>();
+        stateTransitionLock.readLock().lock();
+        try {
+            for (Map.Entry<T, Borrow> entry : borrows.entrySet()) {
+                if (entry.getValue().time <= heldSince)
+                    result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        finally {
+            stateTransitionLock.readLock().unlock();
+        }
+        return result;
+    }
+
     private void expireOrCloseStatefulHolders(boolean forceClose) throws Exception {
         int closed = 0;
         final int availableSize = availablePool.size();
@@ -511,7 +1056,7 @@ public class XAPool<R extends XAResourceHolder<R>, T extends XAStatefulHolder<T>
             if (expireStatefulHolder(xaStatefulHolder, forceClose)) {
                 closed++;
             } else {
-                availablePool.addLast(xaStatefulHolder);
+                makeAvailable(xaStatefulHolder, false);
             }
         }
 
@@ -544,6 +1089,49 @@ public class XAPool<R extends XAResourceHolder<R>, T extends XAStatefulHolder<T>
         return false;
     }
 
+    /**
+     * Validate the idle connections one at a time without holding the poolGrowthShrinkLock, so that borrowers are
+     * never blocked by the round trips and at most one connection is missing from the available pool at any time.
+     * Connections failing validation are closed and the pool is grown back to its minimum size.
+     */
+    private void validateIdleStatefulHolders() throws Exception {
+        int closed = 0;
+        List<T> idleStatefulHolders = new ArrayList<T>(availablePool);
+        for (T xaStatefulHolder : idleStatefulHolders) {
+            if (!(xaStatefulHolder instanceof AbstractXAStatefulHolder))
+                continue;
+            // skip connections which got borrowed in the meantime
+            if (!availablePool.removeFirstOccurrence(xaStatefulHolder))
+                continue;
+
+            validatingStatefulHolder = xaStatefulHolder;
+            try {
+                if (((AbstractXAStatefulHolder) xaStatefulHolder).validateIdle()) {
+                    if (xaStatefulHolder.getState() == State.IN_POOL) {
+                        makeAvailable(xaStatefulHolder, false);
+                    }
+                    continue;
+                }
+
+                if (log.isDebugEnabled()) { log.debug("closing connection which failed idle validation: " + xaStatefulHolder); }
+                try {
+                    xaStatefulHolder.close();
+                } catch (Exception ex) {
+                    log.warn("error closing " + xaStatefulHolder, ex);
+                }
+                closed++;
+            }
+            finally {
+                validatingStatefulHolder = null;
+            }
+        }
+
+        if (closed > 0) {
+            if (log.isDebugEnabled()) { log.debug("closed " + closed + " connection(s) which failed idle validation"); }
+            growUntilMinPoolSize();
+        }
+    }
+
     private void reinitializePool() {
         try {
             if (log.isDebugEnabled()) { log.debug("resource '" + bean.getUniqueName() + "' is marked as failed, resetting and recovering it before trying connection acquisition"); }
@@ -608,6 +1196,115 @@ public class XAPool<R extends XAResourceHolder<R>, T extends XAStatefulHolder<T>
         return availablePool.size();
     }
 
+    /**
+     * Get the number of borrowers currently waiting for a connection.
+     *
+     * @return the number of waiting borrowers
+     */
+    public int waitingCount() {
+        return waitingBorrowers.get();
+    }
+
+    /**
+     * Get the number of times a borrower had to wait for a connection to become available.
+     *
+     * @return the number of waits
+     */
+    public long waitCount() {
+        return waitTimeStatistics.getCount();
+    }
+
+    /**
+     * Get the number of times a borrower gave up waiting after the acquisition timeout expired.
+     *
+     * @return the number of timed out waits
+     */
+    public long waitTimeoutCount() {
+        return waitTimeoutCount.get();
+    }
+
+    /**
+     * Get a percentile of the time borrowers recently had to wait for a connection.
+     *
+     * @param percentile the percentile, between 0 (exclusive) and 100 (inclusive)
+     * @return the wait time in milliseconds
+     */
+    public long waitTimePercentile(double percentile) {
+        return waitTimeStatistics.getPercentile(percentile);
+    }
+
+    /**
+     * Get the number of connections held for longer than the leak detection threshold.
+     *
+     * @return the number of connections suspected to be leaked, 0 if leak detection is disabled
+     */
+    public int longHeldCount() {
+        return getLongHeldBorrows().size();
+    }
+
+    /**
+     * Describe the connections held for longer than the leak detection threshold.
+     *
+     * @return one description per connection suspected to be leaked, including where it was acquired when known
+     */
+    public List<String> longHeldDescriptions() {
+        long now = MonotonicClock.currentTimeMillis();
+        List<String> result = new ArrayList<String>();
+        for (Map.Entry<T, Borrow> entry : getLongHeldBorrows().entrySet()) {
+            Borrow borrow = entry.getValue();
+            StringBuilder sb = new StringBuilder();
+            sb.append(entry.getKey()).append(" held for ").append(now - borrow.time).append("ms by thread '").append(borrow.threadName).append("'");
+            if (borrow.stackTrace != null) {
+                sb.append(", acquired");
+                for (StackTraceElement element : borrow.stackTrace.getStackTrace()) {
+                    sb.append(" at ").append(element);
+                }
+            }
+            result.add(sb.toString());
+        }
+        return result;
+    }
+
+    /**
+     * Get a percentile of the time it recently took to create a connection.
+     *
+     * @param percentile the percentile, between 0 (exclusive) and 100 (inclusive)
+     * @return the creation time in milliseconds
+     */
+    public long creationTimePercentile(double percentile) {
+        return creationTimeStatistics.getPercentile(percentile);
+    }
+
+    /**
+     * Wait until no connection is being created in the background anymore. Only meant for tests.
+     *
+     * @param timeoutMs the maximum time to wait
+     * @return true if all background creations are over, false if timeoutMs expired first
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    boolean awaitBackgroundCreations(long timeoutMs) throws InterruptedException {
+        PoolFiller filler = poolFiller;
+        return filler == null || filler.awaitNoPendingCreation(timeoutMs);
+    }
+
+    /**
+     * Get the pool size the adaptive pool sizing currently aims for.
+     *
+     * @return the target pool size, or 0 if adaptive pool sizing is disabled or did not run yet
+     */
+    public int targetPoolSize() {
+        return poolSizer == null ? 0 : poolSizer.getTargetPoolSize();
+    }
+
+    /**
+     * Get a description of the last decision taken by the adaptive pool sizing.
+     *
+     * @return the last decision, or null if adaptive pool sizing is disabled or did not run yet
+     */
+    public String lastPoolSizingDecision() {
+        return poolSizer == null ? null : poolSizer.getLastDecision();
+    }
+
     public List<T> getXAResourceHolders() {
         stateTransitionLock.readLock().lock();
         try {
@@ -695,6 +1392,209 @@ public class XAPool<R extends XAResourceHolder<R>, T extends XAStatefulHolder<T>
         }
     }
 
+    /**
+     * Adjusts the pool size to the observed demand each time the pool shrinking task runs. The target size is the
+     * peak amount of connections in use during the last interval, plus the borrowers which had to wait, plus some
+     * headroom: the acquisition increment and the amount of borrows expected to arrive while a connection is being
+     * created. The pool grows to the target at once but only shrinks by one acquisition increment per interval,
+     * and never while borrowers are waiting.
+     */
+    private final class PoolSizer {
+        private final AtomicLong borrowCount = new AtomicLong();
+        private final AtomicInteger peakInUse = new AtomicInteger();
+        private final AtomicInteger peakWaiting = new AtomicInteger();
+        private volatile long lastAdjustment = MonotonicClock.currentTimeMillis();
+        private volatile long lastWaitCount;
+        private volatile long lastWaitTimeoutCount;
+        private volatile int targetPoolSize;
+        private volatile String lastDecision;
+
+        private void borrowed() {
+            borrowCount.incrementAndGet();
+            updatePeak(peakInUse, totalPoolSize() - inPoolSize());
+        }
+
+        private void waiting(int waitingCount) {
+            updatePeak(peakWaiting, waitingCount);
+        }
+
+        private void updatePeak(AtomicInteger peak, int value) {
+            while (true) {
+                int current = peak.get();
+                if (value <= current || peak.compareAndSet(current, value))
+                    break;
+            }
+        }
+
+        /**
+         * Must be called with the poolGrowthShrinkLock held.
+         */
+        private void adjust() throws Exception {
+            final long now = MonotonicClock.currentTimeMillis();
+            final long intervalMs = Math.max(1L, now - lastAdjustment);
+            lastAdjustment = now;
+
+            long borrows = borrowCount.getAndSet(0L);
+            int inUse = totalPoolSize() - inPoolSize();
+            int peak = Math.max(peakInUse.getAndSet(inUse), inUse);
+            int waiting = waitingCount();
+            int peakWaiters = Math.max(peakWaiting.getAndSet(waiting), waiting);
+            long waitCount = waitCount();
+            long waits = waitCount - lastWaitCount;
+            lastWaitCount = waitCount;
+            long waitTimeoutCount = waitTimeoutCount();
+            long timeouts = waitTimeoutCount - lastWaitTimeoutCount;
+            lastWaitTimeoutCount = waitTimeoutCount;
+            long creationTime = creationTimeStatistics.getPercentile(95.0);
+
+            long headroom = bean.getAcquireIncrement() + (borrows * creationTime + intervalMs - 1) / intervalMs;
+            // borrowers which had to wait at the same time are connections the pool was short of
+            long demand = peak + peakWaiters + headroom;
+            int target = (int) Math.max(bean.getMinPoolSize(), Math.min(bean.getMaxPoolSize(), demand));
+            targetPoolSize = target;
+
+            PoolFiller filler = poolFiller;
+            int current = totalPoolSize() + (filler == null ? 0 : filler.getPendingCount());
+            String observations = "peak in use " + peak + ", " + borrows + " borrow(s), " + waits + " wait(s) with at most " +
+                    peakWaiters + " waiting at once, " +
+                    timeouts + " timeout(s), creation time " + creationTime + "ms over " + intervalMs + "ms";
+
+            if (current < target) {
+                int increment = target - current;
+                if (filler != null) {
+                    filler.fill(increment);
+                } else {
+                    // borrowers wait for the poolGrowthShrinkLock held by the caller, only create as many
+                    // connections as an exhausted pool would grow by and catch up on the next runs
+                    increment = Math.min(increment, Math.max(1, bean.getAcquireIncrement()));
+                    for (int i = 0; i < increment; i++) {
+                        createPooledObject(xaFactory, true);
+                    }
+                }
+                lastDecision = "grew from " + current + " to " + (current + increment) + " connection(s) targeting " + target + ": " + observations;
+            } else if (current > target && waits == 0 && timeouts == 0) {
+                int closed = closeIdle(Math.min(current - target, bean.getAcquireIncrement()));
+                lastDecision = "shrank from " + current + " to " + (current - closed) + " connection(s) targeting " + target + ": " + observations;
+            } else {
+                lastDecision = "kept " + current + " connection(s) targeting " + target + ": " + observations;
+            }
+
+            if (log.isDebugEnabled()) { log.debug("adaptive pool sizing of " + bean.getUniqueName() + " " + lastDecision); }
+        }
+
+        private int closeIdle(int count) {
+            int closed = 0;
+            for (int i = 0; i < count; i++) {
+                // released connections are put at the head, the tail holds the least recently used one
+                T xaStatefulHolder = availablePool.pollLast();
+                if (xaStatefulHolder == null)
+                    break;
+                expireStatefulHolder(xaStatefulHolder, true);
+                closed++;
+            }
+            return closed;
+        }
+
+        private int getTargetPoolSize() {
+            return targetPoolSize;
+        }
+
+        private String getLastDecision() {
+            return lastDecision;
+        }
+    }
+
+    /**
+     * A borrower waiting for a connection to be handed off. The done flag guarantees that a connection is either
+     * handed off to a waiter which is still waiting or not handed off at all.
+     */
+    private static final class Waiter<T> {
+        private final AtomicBoolean done = new AtomicBoolean();
+        // holds either the handed off connection or a Failure
+        private final BlockingQueue<Object> slot = new ArrayBlockingQueue<Object>(1);
+
+        private boolean handOff(T xaStatefulHolder) {
+            if (!done.compareAndSet(false, true))
+                return false;
+            slot.add(xaStatefulHolder);
+            return true;
+        }
+
+        private boolean fail(Exception ex) {
+            if (!done.compareAndSet(false, true))
+                return false;
+            slot.add(new Failure(ex));
+            return true;
+        }
+
+        /**
+         * @return the handed off connection or null if timeoutMs expired
+         * @throws Failure if the waiter has been woken up because no connection could be created for it
+         */
+        private T await(long timeoutMs) throws InterruptedException, Failure {
+            Object handedOff = slot.poll(timeoutMs, TimeUnit.MILLISECONDS);
+            if (handedOff == null && !done.compareAndSet(false, true)) {
+                // a connection got handed off right when the wait expired
+                handedOff = slot.take();
+            }
+            if (handedOff instanceof Failure)
+                throw (Failure) handedOff;
+            @SuppressWarnings("unchecked")
+            T xaStatefulHolder = (T) handedOff;
+            return xaStatefulHolder;
+        }
+
+        private T cancel() {
+            if (done.compareAndSet(false, true))
+                return null;
+            // the hand-off is in progress, the connection or failure is about to land in the slot
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        Object handedOff = slot.take();
+                        if (handedOff instanceof Failure)
+                            return null;
+                        @SuppressWarnings("unchecked")
+                        T xaStatefulHolder = (T) handedOff;
+                        return xaStatefulHolder;
+                    } catch (InterruptedException ex) {
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Thrown to a {@link Waiter} woken up because the connection creation which should have served it failed.
+     */
+    private static final class Failure extends Exception {
+        private Failure(Exception cause) {
+            super(cause);
+        }
+    }
+
+    /**
+     * When and by whom a connection was taken out of the pool. Capturing the call stack is what makes leak
+     * detection expensive, hence it is only done for a sample of the acquisitions.
+     */
+    private static final class Borrow {
+        private final long time;
+        private final String threadName;
+        private final StackTrace stackTrace;
+        private volatile boolean reported;
+
+        private Borrow(long time, String threadName, StackTrace stackTrace) {
+            this.time = time;
+            this.threadName = threadName;
+            this.stackTrace = stackTrace;
+        }
+    }
+
     private static final class StatefulHolderThreadLocal<T extends XAStatefulHolder> extends ThreadLocal<T> {
         @Override
     	public T get() {
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.resource.jdbc;
+
+import bitronix.tm.resource.jdbc.LruStatementCache.CacheKey;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per-pool registry of canonical {@link CacheKey}s. Connections of the same pool prepare the same statements over
+ * and over: handing them out a shared key spares the allocation of a new key for each call and lets the statement
+ * caches match keys by identity instead of comparing their SQL.
+ * <p>Keys of plain {@code prepareStatement(String)} calls are looked up by their SQL string, which caches its own
+ * hash and is usually the very same constant instance on each call. The registry stops growing once it reached
+ * its capacity so that dynamically built SQL cannot fill up the memory, the keys of the statements which did not
+ * fit are simply not shared.</p>
+ * <p>This class is thread-safe.</p>
+ */
+class CacheKeyInterner {
+
+    private final int capacity;
+    private final ConcurrentMap<String, CacheKey> plainKeys = new ConcurrentHashMap<String, CacheKey>();
+    private final ConcurrentMap<CacheKey, CacheKey> keys = new ConcurrentHashMap<CacheKey, CacheKey>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    CacheKeyInterner(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param sql the SQL of a statement prepared with no option.
+     * @return the canonical key of the statement.
+     */
+    CacheKey intern(String sql) {
+        CacheKey key = plainKeys.get(sql);
+        if (key != null) {
+            return key;
+        }
+
+        key = intern(new CacheKey(sql));
+        if (keys.get(key) == key) {
+            plainKeys.putIfAbsent(sql, key);
+        }
+        return key;
+    }
+
+    /**
+     * @param key a statement key.
+     * @return the canonical instance equal to the key, which is the key itself if it was not interned yet.
+     */
+    CacheKey intern(CacheKey key) {
+        CacheKey canonical = keys.get(key);
+        if (canonical != null) {
+            return canonical;
+        }
+        if (size.get() >= capacity) {
+            return key;
+        }
+
+        canonical = keys.putIfAbsent(key, key);
+        if (canonical != null) {
+            return canonical;
+        }
+        size.incrementAndGet();
+        return key;
+    }
+
+    /**
+     * @return the amount of interned keys.
+     */
+    int size() {
+        return size.get();
+    }
+
+    void clear() {
+        plainKeys.clear();
+        keys.clear();
+        size.set(0);
+    }
+}
@@ -31,6 +31,8 @@ import bitronix.tm.utils.Scheduler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
 import javax.sql.XAConnection;
 import javax.transaction.SystemException;
 import javax.transaction.xa.XAResource;
@@ -45,6 +47,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Implementation of a JDBC pooled connection wrapping vendor's {@link XAConnection} implementation.
@@ -61,6 +64,8 @@ public class JdbcPooledConnection extends AbstractXAResourceHolder<JdbcPooledCon
     private final XAResource xaResource;
     private final PoolingDataSource poolingDataSource;
     private final LruStatementCache statementsCache;
+    private final WriteBehindBatch writeBehindBatch;
+    private volatile int poolStatementCacheGeneration;
     private final List<Statement> uncachedStatements;
     private volatile int usageCount;
 
@@ -68,6 +73,8 @@ public class JdbcPooledConnection extends AbstractXAResourceHolder<JdbcPooledCon
     private final String jmxName;
     private volatile Date acquisitionDate;
     private volatile Date lastReleaseDate;
+    private volatile long lastTestTime;
+    private volatile boolean errorReported;
 
     private volatile int jdbcVersionDetected;
 
@@ -75,7 +82,8 @@ public class JdbcPooledConnection extends AbstractXAResourceHolder<JdbcPooledCon
         this.poolingDataSource = poolingDataSource;
         this.xaConnection = xaConnection;
         this.xaResource = xaConnection.getXAResource();
-        this.statementsCache = new LruStatementCache(poolingDataSource.getPreparedStatementCacheSize());
+        this.statementsCache = new LruStatementCache(poolingDataSource.getStatementCacheShare());
+        this.writeBehindBatch = poolingDataSource.getWriteBehindBatchSize() > 0 ? new WriteBehindBatch(this, poolingDataSource.getWriteBehindBatchSize()) : null;
         this.uncachedStatements = Collections.synchronizedList(new ArrayList<Statement>());
         this.lastReleaseDate = new Date(MonotonicClock.currentTimeMillis());
         statementsCache.addEvictionListener(new LruEvictionListener<PreparedStatement>() {
@@ -91,6 +99,18 @@ public class JdbcPooledConnection extends AbstractXAResourceHolder<JdbcPooledCon
 
         connection = xaConnection.getConnection();
         jdbcVersionDetected = JdbcClassHelper.detectJdbcVersion(connection);
+        xaConnection.addConnectionEventListener(new ConnectionEventListener() {
+            @Override
+            public void connectionClosed(ConnectionEvent event) {
+                // the pool tracks the connection handles itself
+            }
+
+            @Override
+            public void connectionErrorOccurred(ConnectionEvent event) {
+                if (log.isDebugEnabled()) { log.debug("driver reported an error on " + JdbcPooledConnection.this, event.getSQLException()); }
+                errorReported = true;
+            }
+        });
         addStateChangeEventListener(this);
 
         if (LrcXADataSource.class.getName().equals(poolingDataSource.getClassName())) {
@@ -183,6 +203,7 @@ public class JdbcPooledConnection extends AbstractXAResourceHolder<JdbcPooledCon
             if (isValid != null) {
                 if (isValid.booleanValue()) {
                     if (log.isDebugEnabled()) { log.debug("isValid successfully tested connection of " + this); }
+                    testSucceeded();
                     return;
                 }
                 throw new SQLException("connection is no longer valid");
@@ -206,12 +227,140 @@ public class JdbcPooledConnection extends AbstractXAResourceHolder<JdbcPooledCon
             stmt.close();
         }
         if (log.isDebugEnabled()) { log.debug("testQuery successfully tested connection of " + this); }
+        testSucceeded();
+    }
+
+    private void testSucceeded() {
+        lastTestTime = MonotonicClock.currentTimeMillis();
+        errorReported = false;
+    }
+
+    /**
+     * A connection needs testing unless it was released or tested less than connectionTestIdleTime seconds ago
+     * and the driver did not report any error on it since.
+     * @return true if the connection must be tested before being used.
+     */
+    private boolean isTestNeeded() {
+        int testIdleTime = poolingDataSource.getConnectionTestIdleTime();
+        if (testIdleTime <= 0 || errorReported)
+            return true;
+
+        long lastKnownValid = Math.max(lastTestTime, lastReleaseDate.getTime());
+        return MonotonicClock.currentTimeMillis() - lastKnownValid >= TimeUnit.SECONDS.toMillis(testIdleTime);
+    }
+
+    /**
+     * Test this idle connection if it is due for it, then align its statement cache with the pool-wide hot
+     * statements so that neither costs a round trip when it gets acquired or released.
+     * @return false if the connection failed its test.
+     */
+    @Override
+    public boolean validateIdle() {
+        if (poolingDataSource.getConnectionTestIdleTime() > 0 && isTestNeeded()) {
+            try {
+                if (log.isDebugEnabled()) { log.debug("validating idle connection " + this); }
+                testConnection(connection);
+            } catch (SQLException ex) {
+                if (log.isDebugEnabled()) { log.debug("idle connection " + this + " failed validation", ex); }
+                return false;
+            }
+        }
+
+        syncWithPoolStatementCache();
+        return true;
+    }
+
+    /**
+     * Validate this freshly created connection and prime its prepared statement cache with the configured warm-up
+     * statements so that the first borrowers do not pay for it. This does nothing when no warm-up statement is
+     * configured.
+     * @throws SQLException if the connection is not valid or a statement cannot be prepared.
+     * @see PoolingDataSource#setWarmUpStatements(java.util.Properties)
+     */
+    @Override
+    public void warmUp() throws SQLException {
+        Collection<String> sqlStatements = poolingDataSource.getWarmUpStatementList();
+        if (sqlStatements.isEmpty())
+            return;
+
+        if (log.isDebugEnabled()) { log.debug("warming up " + this + " with " + sqlStatements.size() + " statement(s)"); }
+        testConnection(connection);
+
+        for (String sql : sqlStatements) {
+            primeCachedStatement(internCacheKey(sql));
+        }
+    }
+
+    /**
+     * Prepare the statement matching the key and cache it as available, unless it already is cached.
+     * @param cacheKey the key of the statement to prepare.
+     * @throws SQLException if the statement cannot be prepared.
+     */
+    private void primeCachedStatement(CacheKey cacheKey) throws SQLException {
+        if (statementsCache.get(cacheKey) != null) {
+            // already primed, release the usage taken by get()
+            statementsCache.put(cacheKey, null);
+            return;
+        }
+
+        PreparedStatement stmt = cacheKey.prepare(connection);
+        if (statementsCache.put(cacheKey, stmt) == null) {
+            // statement caching is disabled
+            stmt.close();
+            return;
+        }
+        // the statement is cached as in use, put it once more to mark it as available
+        statementsCache.put(cacheKey, stmt);
+    }
+
+    /**
+     * Apply this connection's current share of the pool-wide statement budget, then align the statement cache
+     * with the hot statements if they changed since the last time this connection was synchronized: cold
+     * statements get evicted and missing hot ones get prepared. This is only done by the pool maintenance task
+     * while the connection is idle.
+     */
+    private void syncWithPoolStatementCache() {
+        PoolStatementCache poolStatementCache = poolingDataSource.getPoolStatementCache();
+        if (poolStatementCache == null)
+            return;
+        int share = poolingDataSource.getStatementCacheShare();
+        statementsCache.setMaxSize(share);
+        int generation = poolStatementCache.getGeneration();
+        if (generation == poolStatementCacheGeneration)
+            return;
+        poolStatementCacheGeneration = generation;
+
+        List<CacheKey> hotStatements = poolStatementCache.getHotStatements();
+        if (hotStatements.size() > share)
+            hotStatements = hotStatements.subList(0, share);
+        int evicted = statementsCache.evictUnusedExcept(hotStatements);
+        int prepared = 0;
+        for (CacheKey hotStatement : hotStatements) {
+            if (statementsCache.contains(hotStatement))
+                continue;
+            try {
+                primeCachedStatement(hotStatement);
+                prepared++;
+            } catch (SQLException ex) {
+                log.warn("error preparing hot statement <" + hotStatement + "> on " + this, ex);
+                break;
+            }
+        }
+        if (log.isDebugEnabled()) { log.debug("synchronized statement cache of " + this + " with pool generation " + generation + ": evicted " + evicted + " cold statement(s), prepared " + prepared + " hot statement(s)"); }
     }
 
     public boolean release() throws SQLException {
         if (log.isDebugEnabled()) { log.debug("releasing to pool " + this); }
         --usageCount;
 
+        // execute the deferred updates while still enlisted
+        SQLException flushException = null;
+        try {
+            flushDeferredUpdates();
+        } catch (SQLException ex) {
+            flushException = ex;
+        }
+
         // delisting
         try {
             TransactionContextHelper.delistFromCurrentTransaction(this);
@@ -249,6 +398,9 @@ public class JdbcPooledConnection extends AbstractXAResourceHolder<JdbcPooledCon
             }
         } // finally
 
+        if (flushException != null)
+            throw flushException;
+
         return usageCount == 0;
     }
 
@@ -296,8 +448,17 @@ public class JdbcPooledConnection extends AbstractXAResourceHolder<JdbcPooledCon
         }
 
         if (oldState == State.IN_POOL) {
-            if (log.isDebugEnabled()) { log.debug("connection " + xaConnection + " was in state IN_POOL, testing it"); }
-            testConnection(connection);
+            if (isTestNeeded()) {
+                if (log.isDebugEnabled()) { log.debug("connection " + xaConnection + " was in state IN_POOL, testing it"); }
+                testConnection(connection);
+            }
+            else {
+                if (log.isDebugEnabled()) { log.debug("connection " + xaConnection + " was in state IN_POOL and recently valid, not testing it"); }
+            }
+            if (poolingDataSource.getPoolStatementCache() != null) {
+                // the pool may have grown since this connection's share was last applied
+                statementsCache.setMaxSize(poolingDataSource.getStatementCacheShare());
+            }
             applyIsolationLevel();
             applyCursorHoldabilty();
             if (TransactionContextHelper.currentTransaction() == null) {
@@ -353,6 +514,63 @@ public class JdbcPooledConnection extends AbstractXAResourceHolder<JdbcPooledCon
                 if (log.isDebugEnabled()) { log.debug("error cleaning warnings of " + connection, ex); }
             }
         }
+
+    }
+
+    /**
+     * Get the key of a statement prepared with no option, shared by all connections of the pool when possible.
+     * @param sql the SQL of the statement.
+     * @return the statement's cache key.
+     */
+    public CacheKey internCacheKey(String sql) {
+        CacheKeyInterner interner = poolingDataSource.getCacheKeyInterner();
+        return interner != null ? interner.intern(sql) : new CacheKey(sql);
+    }
+
+    /**
+     * Get the instance of a statement key shared by all connections of the pool when possible.
+     * @param key the statement's cache key.
+     * @return the shared instance equal to the key, or the key itself.
+     */
+    public CacheKey internCacheKey(CacheKey key) {
+        CacheKeyInterner interner = poolingDataSource.getCacheKeyInterner();
+        return interner != null ? interner.intern(key) : key;
+    }
+
+    /**
+     * Check if the updates of a cached statement may be deferred into the write-behind batch.
+     * @param key the cache key of the statement.
+     * @return true if write-behind batching is enabled and the statement always inserts a single row.
+     */
+    public boolean canDeferUpdates(CacheKey key) {
+        return writeBehindBatch != null && WriteBehindBatch.isDeferrable(key);
+    }
+
+    /**
+     * Defer the update of a prepared statement until the next flush of the write-behind batch. Only statements for
+     * which {@link #canDeferUpdates(CacheKey)} returned true may be deferred.
+     * @param statement the statement whose current parameters must be added to the batch.
+     * @return true if the update got deferred, false if it must be executed right away.
+     * @throws SQLException if the pending batch had to be flushed and failed.
+     */
+    public boolean deferUpdate(PreparedStatement statement) throws SQLException {
+        if (writeBehindBatch == null)
+            return false;
+        if (!isParticipatingInActiveGlobalTransaction()) {
+            writeBehindBatch.flush();
+            return false;
+        }
+        return writeBehindBatch.defer(statement);
+    }
+
+    /**
+     * Execute the updates deferred by {@link #deferUpdate(PreparedStatement)}, if any. This must be called before
+     * executing any other statement so that the updates are applied in order.
+     * @throws SQLException if the batch failed or reported an unexpected row count.
+     */
+    public void flushDeferredUpdates() throws SQLException {
+        if (writeBehindBatch != null)
+            writeBehindBatch.flush();
     }
 
     /**
@@ -361,6 +579,7 @@ public class JdbcPooledConnection extends AbstractXAResourceHolder<JdbcPooledCon
      * @return the cached statement corresponding to the key or null if no statement is cached under that key.
      */
     public PreparedStatement getCachedStatement(CacheKey key) {
+        poolingDataSource.recordStatementRequest(key);
         return statementsCache.get(key);
     }
 
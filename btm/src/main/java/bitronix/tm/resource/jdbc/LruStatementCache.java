@@ -15,23 +15,35 @@
  */
 package bitronix.tm.resource.jdbc;
 
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.Arrays;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.Collection;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Last Recently Used PreparedStatement cache with eviction listeners
- * support implementation.
- *
+ * PreparedStatement cache with eviction listeners support implementation.
+ * <p>Lookups are lock-free: statements are kept in a {@link ConcurrentHashMap} and reads are only recorded in a
+ * small lossy buffer which gets drained in batches. Insertions and evictions are serialized by a lock.</p>
+ * <p>When the cache is over its target size, unused statements are evicted according to a TinyLFU-style
+ * policy: the victim is the least frequently used of a small sample of the least recently used statements, the
+ * frequencies being estimated by a compact sketch which also remembers statements that are not cached anymore. A
+ * statement which just got released is evicted instead of the victim when it is not more popular than it, so that
+ * scans of one-off statements cannot flush the frequently used ones. Picking a victim costs the same whatever the
+ * size of the cache.</p>
  *
  * @author Ludovic Orban
  * @author Brett Wooldridge
@@ -40,28 +52,29 @@ public class LruStatementCache {
 
     private final static Logger log = LoggerFactory.getLogger(LruStatementCache.class);
 
+    private static final int READ_BUFFER_SIZE = 64;
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+
+    /**
+     * Amount of unused statements, taken from the least recently used end, among which the eviction victim is picked.
+     */
+    private static final int EVICTION_SAMPLE_SIZE = 8;
+
+    /**
+     * Maximum amount of statements looked at to find the eviction sample, the in-use ones met on the way are
+     * moved to the most recently used end.
+     */
+    private static final int EVICTION_MAX_VISITED = EVICTION_SAMPLE_SIZE * 4;
+
     /**
      * The <i>target</i> maxSize of the cache.  The cache may drift slightly
      * higher in size in the case that every statement in the cache is
      * in use and therefore nothing can be evicted.  But eventually
      * (probably quickly) the cache will return to maxSize.
      */
-    private int maxSize;
+    private volatile int maxSize;
 
-    /**
-     * We use a LinkedHashMap with _access order_ specified in the
-     * constructor.  According to the LinkedHashMap documentation:
-     * <pre>
-     *   A special constructor is provided to create a linked hash map
-     *   whose order of iteration is the order in which its entries
-     *   were last accessed, from least-recently accessed to most-recently
-     *   (access-order). This kind of map is well-suited to building LRU
-     *   caches. Invoking the put or get method results in an access to
-     *   the corresponding entry (assuming it exists after the invocation
-     *   completes).
-     * </pre>
-     */
-    private final LinkedHashMap<CacheKey, StatementTracker> cache;
+    private final ConcurrentHashMap<CacheKey, StatementTracker> cache;
 
     /**
      * A list of listeners concerned with prepared statement cache
@@ -70,25 +83,50 @@ public class LruStatementCache {
     private final List<LruEvictionListener<PreparedStatement>> evictionListeners;
 
     /**
-     * See the LinkedHashMap documentation.  We maintain our own size
-     * here, rather than calling size(), because size() on a LinkedHashMap
-     * is proportional in time (O(n)) with the size of the collection -- i.e.
-     * calling size() must traverse the entire list and count the elements.
-     * Tracking size ourselves provides O(1) access.
+     * We maintain our own size here, rather than calling size(), because
+     * size() on a ConcurrentHashMap has to sum up all its segments.
      */
-    private int size;
+    private final AtomicInteger size;
 
     /**
      * A flag that is set during clear operations to prevent statements that
      * are closing from coming back into the cache.
      */
-    private AtomicBoolean clearInProgress;
+    private final AtomicBoolean clearInProgress;
+
+    /**
+     * Guards the insertions, the evictions, the frequency sketch and the access order.
+     */
+    private final ReentrantLock evictionLock;
+
+    private final FrequencySketch sketch;
+
+    /**
+     * Recently read statements whose access has not been accounted for yet. Slots get overwritten when
+     * the buffer wraps around before being drained, losing a few reads is harmless.
+     */
+    private final AtomicReferenceArray<StatementTracker> readBuffer;
+    private final AtomicInteger readCounter;
+
+    /**
+     * Sentinel of the circular list of the cached statements in access order, the least recently used statement
+     * being its next one. Guarded by the eviction lock.
+     */
+    private final StatementTracker accessOrder;
 
     public LruStatementCache(int maxSize) {
         this.maxSize = maxSize;
-        cache = new LinkedHashMap<CacheKey, StatementTracker>(maxSize, 0.75f, true /* access order */);
+        cache = new ConcurrentHashMap<CacheKey, StatementTracker>(Math.max(16, maxSize));
         evictionListeners = new CopyOnWriteArrayList<LruEvictionListener<PreparedStatement>>();
+        size = new AtomicInteger();
         clearInProgress = new AtomicBoolean();
+        evictionLock = new ReentrantLock();
+        sketch = new FrequencySketch(maxSize);
+        readBuffer = new AtomicReferenceArray<StatementTracker>(READ_BUFFER_SIZE);
+        readCounter = new AtomicInteger();
+        accessOrder = new StatementTracker(null, null);
+        accessOrder.prev = accessOrder;
+        accessOrder.next = accessOrder;
     }
 
     /**
@@ -106,18 +144,14 @@ public class LruStatementCache {
      * @return the cached JdbcPreparedStatementHandle statement, or null
      */
     public PreparedStatement get(CacheKey key) {
-    	synchronized (cache) {
-            // See LinkedHashMap documentation.  Getting an entry means it is
-	        // updated as the 'youngest' (Most Recently Used) entry.
-	        StatementTracker cached = cache.get(key);
-	        if (cached != null) {
-	            cached.usageCount++;
-	            if (log.isDebugEnabled()) { log.debug("delivered from cache with usage count " + cached.usageCount + " statement <" + key + ">"); }
-	            return cached.statement;
-	        }
-
-	        return null;
-    	}
+        StatementTracker cached = cache.get(key);
+        if (cached == null || !cached.acquire()) {
+            return null;
+        }
+
+        recordRead(cached);
+        if (log.isDebugEnabled()) { log.debug("delivered from cache with usage count " + cached.usageCount + " statement <" + key + ">"); }
+        return cached.statement;
     }
 
     /**
@@ -135,35 +169,105 @@ public class LruStatementCache {
     	{
     		return null;
     	}
+        if (maxSize < 1) {
+            return null;
+        }
 
-    	synchronized (cache) {
-            if (maxSize < 1) {
-	            return null;
-	        }
-
-	        // See LinkedHashMap documentation.  Getting an entry means it is
-	        // updated as the 'youngest' (Most Recently Used) entry.
-	        StatementTracker cached = cache.get(key);
-	        if (cached == null) {
-	            if (log.isDebugEnabled()) { log.debug("adding to cache statement <" + key + ">"); }
-	            cache.put(key, new StatementTracker(statement));
-	            size++;
-	        } else {
-	            cached.usageCount--;
-	            statement = cached.statement;
-	            if (log.isDebugEnabled()) { log.debug("returning to cache statement <" + key + "> with usage count " + cached.usageCount); }
-	        }
-
-	        // If the size is exceeded, we will _try_ to evict one (or more)
-	        // statements until the max level is again reached.  However, if
-	        // every statement in the cache is 'in use', the size of the cache
-	        // is not reduced.  Eventually the cache will be reduced, no worries.
-	        if (size > maxSize) {
-	            tryEviction();
-	        }
-
-	        return statement;
-    	}
+        StatementTracker cached = cache.get(key);
+        if (cached == null) {
+            evictionLock.lock();
+            try {
+                cached = cache.get(key);
+                if (cached == null) {
+                    if (log.isDebugEnabled()) { log.debug("adding to cache statement <" + key + ">"); }
+                    StatementTracker tracker = new StatementTracker(key, statement);
+                    linkLast(tracker);
+                    sketch.increment(key);
+                    cache.put(key, tracker);
+                    size.incrementAndGet();
+
+                    // The new statement is in use so it cannot be evicted right now, its
+                    // admission is decided when it gets released.
+                    if (size.get() > maxSize) {
+                        tryEviction(null);
+                    }
+                    return statement;
+                }
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+
+        int usageCount = cached.release();
+        if (log.isDebugEnabled()) { log.debug("returning to cache statement <" + key + "> with usage count " + usageCount); }
+
+        // If the size is exceeded, we will _try_ to evict one (or more)
+        // statements until the max level is again reached.  However, if
+        // every statement in the cache is 'in use', the size of the cache
+        // is not reduced.  Eventually the cache will be reduced, no worries.
+        if (usageCount == 0 && size.get() > maxSize) {
+            evictionLock.lock();
+            try {
+                tryEviction(cached);
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+
+        return cached.statement;
+    }
+
+    /**
+     * Check if a statement is cached under the provided key without
+     * altering its usage count nor its recorded popularity.
+     *
+     * @param key the cache key
+     * @return true if a statement is cached under that key
+     */
+    public boolean contains(CacheKey key) {
+        return cache.containsKey(key);
+    }
+
+    /**
+     * Change the target maxSize of the cache, evicting unused statements
+     * if the cache is now too big.
+     *
+     * @param maxSize the new target maxSize
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        if (size.get() > maxSize) {
+            evictionLock.lock();
+            try {
+                tryEviction(null);
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Evict all the statements which are not currently in use and whose
+     * key is not part of the provided collection.
+     *
+     * @param keysToKeep the keys of the statements to keep
+     * @return the amount of evicted statements
+     */
+    public int evictUnusedExcept(Collection<CacheKey> keysToKeep) {
+        int evicted = 0;
+        evictionLock.lock();
+        try {
+            for (StatementTracker tracker : cache.values()) {
+                if (!keysToKeep.contains(tracker.key) && evict(tracker)) {
+                    evicted++;
+                    if (log.isDebugEnabled()) { log.debug("evicting cold statement <" + tracker.key + "> " + tracker.statement); }
+                    fireEvictionEvent(tracker.statement);
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+        return evicted;
     }
 
     public void addEvictionListener(LruEvictionListener<PreparedStatement> listener) {
@@ -180,51 +284,147 @@ public class LruStatementCache {
      */
     protected void clear() {
     	if (clearInProgress.compareAndSet(false, true)) {
+    		evictionLock.lock();
     		try {
-		    	synchronized (cache) {
-			        Iterator<Entry<CacheKey, StatementTracker>> it = cache.entrySet().iterator();
-			        while (it.hasNext()) {
-			            Entry<CacheKey, StatementTracker> entry = it.next();
-			            StatementTracker tracker = entry.getValue();
-			            it.remove();
-			            fireEvictionEvent(tracker.statement);
-			        }
-			        cache.clear();
-			        size = 0;
-		    	}
+    		    for (StatementTracker tracker : cache.values()) {
+    		        tracker.usageCount = StatementTracker.EVICTED;
+    		        cache.remove(tracker.key, tracker);
+    		        unlink(tracker);
+    		        fireEvictionEvent(tracker.statement);
+    		    }
+    		    size.set(0);
     		}
     		finally
     		{
+    			evictionLock.unlock();
     			clearInProgress.set(false);
     		}
     	}
     }
 
+    /**
+     * Account for a read. The buffer is drained when it wraps around, by the
+     * reading thread if nobody else holds the eviction lock.
+     */
+    private void recordRead(StatementTracker tracker) {
+        int index = readCounter.getAndIncrement() & READ_BUFFER_MASK;
+        readBuffer.lazySet(index, tracker);
+        if (index == READ_BUFFER_MASK && evictionLock.tryLock()) {
+            try {
+                drainReadBuffer();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Replay the buffered reads into the frequency sketch and the access order.
+     * Must be called with the eviction lock held.
+     */
+    private void drainReadBuffer() {
+        for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+            StatementTracker tracker = readBuffer.getAndSet(i, null);
+            if (tracker != null) {
+                sketch.increment(tracker.key);
+                if (tracker.next != null) {
+                    unlink(tracker);
+                    linkLast(tracker);
+                }
+            }
+        }
+    }
+
+    /**
+     * Must be called with the eviction lock held.
+     */
+    private void linkLast(StatementTracker tracker) {
+        tracker.prev = accessOrder.prev;
+        tracker.next = accessOrder;
+        accessOrder.prev.next = tracker;
+        accessOrder.prev = tracker;
+    }
+
+    /**
+     * Must be called with the eviction lock held.
+     */
+    private void unlink(StatementTracker tracker) {
+        if (tracker.next == null) {
+            return;
+        }
+        tracker.prev.next = tracker.next;
+        tracker.next.prev = tracker.prev;
+        tracker.prev = null;
+        tracker.next = null;
+    }
+
     /**
      * Try to evict statements from the cache.  Only statements with a
      * current usage count of zero will be evicted.  Statements are
-     * evicted until the cache is reduced to maxSize.
+     * evicted until the cache is reduced to maxSize. The victim is the
+     * least frequently used of the {@link #EVICTION_SAMPLE_SIZE} least
+     * recently used unused statements, the least recently used one
+     * breaking ties. Must be called with the eviction lock held.
+     *
+     * @param candidate the statement which just got released and which is
+     *        evicted instead of the victim when it is not more popular, or null.
      */
-    private void tryEviction() {
-        // Iteration order of the LinkedHashMap is from LRU to MRU
-    	Iterator<Entry<CacheKey, StatementTracker>> it = cache.entrySet().iterator();
-        while (it.hasNext()) {
-        	Entry<CacheKey, StatementTracker> entry = it.next();
-            StatementTracker tracker = entry.getValue();
-            if (tracker.usageCount == 0) {
-                it.remove();
-                size--;
-                CacheKey key = entry.getKey();
-                if (log.isDebugEnabled()) { log.debug("evicting from cache statement <" + key + "> " + entry.getValue().statement); }
-                fireEvictionEvent(tracker.statement);
-                // We can stop evicting if we're at maxSize...
-                if (size <= maxSize) {
-                    break;
+    private void tryEviction(StatementTracker candidate) {
+        drainReadBuffer();
+
+        while (size.get() > maxSize) {
+            StatementTracker victim = null;
+            int victimFrequency = Integer.MAX_VALUE;
+            int sampled = 0;
+            StatementTracker tracker = accessOrder.next;
+            for (int visited = 0; tracker != accessOrder && visited < EVICTION_MAX_VISITED && sampled < EVICTION_SAMPLE_SIZE; visited++) {
+                StatementTracker next = tracker.next;
+                if (tracker.usageCount != 0) {
+                    // in use, hence recently used: do not visit it again before the statements used after it
+                    unlink(tracker);
+                    linkLast(tracker);
+                } else if (tracker != candidate) {
+                    sampled++;
+                    int frequency = sketch.frequency(tracker.key);
+                    if (frequency < victimFrequency) {
+                        victim = tracker;
+                        victimFrequency = frequency;
+                    }
                 }
+                tracker = next;
+            }
+            if (candidate != null && candidate.usageCount == 0 && (victim == null || sketch.frequency(candidate.key) <= victimFrequency)) {
+                victim = candidate;
+            }
+            if (victim == null) {
+                // every looked at statement is in use
+                break;
+            }
+            if (victim == candidate) {
+                candidate = null;
+            }
+
+            if (evict(victim)) {
+                if (log.isDebugEnabled()) { log.debug("evicting from cache statement <" + victim.key + "> " + victim.statement); }
+                fireEvictionEvent(victim.statement);
             }
         }
     }
 
+    /**
+     * Remove an unused statement from the cache. Must be called with the eviction lock held.
+     * @return true if the statement was evicted, false if it got used in the meantime.
+     */
+    private boolean evict(StatementTracker tracker) {
+        if (!tracker.markEvicted()) {
+            return false;
+        }
+        cache.remove(tracker.key, tracker);
+        unlink(tracker);
+        size.decrementAndGet();
+        return true;
+    }
+
     private void fireEvictionEvent(PreparedStatement stmt) {
         for (LruEvictionListener<PreparedStatement> listener : evictionListeners) {
             listener.onEviction(stmt);
@@ -235,60 +435,91 @@ public class LruStatementCache {
         // All of these attributes must match a proposed statement before the
         // statement can be considered "the same" and delivered from the cache.
         private final String sql;
-        private int resultSetType = ResultSet.TYPE_FORWARD_ONLY;
-        private int resultSetConcurrency = ResultSet.CONCUR_READ_ONLY;
-        private Integer resultSetHoldability;
-        private Integer autoGeneratedKeys;
-        private int[] columnIndexes;
-        private String[] columnNames;
+        private final int resultSetType;
+        private final int resultSetConcurrency;
+        private final Integer resultSetHoldability;
+        private final Integer autoGeneratedKeys;
+        private final int[] columnIndexes;
+        private final String[] columnNames;
+        private final int hash;
 
         public CacheKey(String sql) {
-            this.sql = sql;
+            this(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, null, null, null, null);
         }
 
         public CacheKey(String sql, int autoGeneratedKeys) {
-            this.sql = sql;
-            this.autoGeneratedKeys = new Integer(autoGeneratedKeys);
+            this(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, null, new Integer(autoGeneratedKeys), null, null);
         }
 
         public CacheKey(String sql, int resultSetType, int resultSetConcurrency) {
-            this.sql = sql;
-            this.resultSetType = resultSetType;
-            this.resultSetConcurrency = resultSetConcurrency;
+            this(sql, resultSetType, resultSetConcurrency, null, null, null, null);
         }
 
         public CacheKey(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) {
-            this.sql = sql;
-            this.resultSetType = resultSetType;
-            this.resultSetConcurrency = resultSetConcurrency;
-            this.resultSetHoldability = new Integer(resultSetHoldability);
+            this(sql, resultSetType, resultSetConcurrency, new Integer(resultSetHoldability), null, null, null);
         }
 
         public CacheKey(String sql, int[] columnIndexes) {
-            this.sql = sql;
-            this.columnIndexes = new int[columnIndexes.length];
-            System.arraycopy(columnIndexes, 0, this.columnIndexes, 0, columnIndexes.length);
+            this(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, null, null, columnIndexes.clone(), null);
         }
 
         public CacheKey(String sql, String[] columnNames) {
+            this(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY, null, null, null, columnNames.clone());
+        }
+
+        private CacheKey(String sql, int resultSetType, int resultSetConcurrency, Integer resultSetHoldability,
+                         Integer autoGeneratedKeys, int[] columnIndexes, String[] columnNames) {
             this.sql = sql;
-            this.columnNames = new String[columnNames.length];
-            System.arraycopy(columnNames, 0, this.columnNames, 0, columnNames.length);
+            this.resultSetType = resultSetType;
+            this.resultSetConcurrency = resultSetConcurrency;
+            this.resultSetHoldability = resultSetHoldability;
+            this.autoGeneratedKeys = autoGeneratedKeys;
+            this.columnIndexes = columnIndexes;
+            this.columnNames = columnNames;
+
+            // the key is immutable, hash it once and for all
+            int h = sql != null ? sql.hashCode() : System.identityHashCode(this);
+            h = 31 * h + resultSetType;
+            h = 31 * h + resultSetConcurrency;
+            h = 31 * h + (resultSetHoldability != null ? resultSetHoldability.intValue() : -1);
+            h = 31 * h + (autoGeneratedKeys != null ? autoGeneratedKeys.intValue() : -1);
+            h = 31 * h + Arrays.hashCode(columnIndexes);
+            h = 31 * h + Arrays.hashCode(columnNames);
+            this.hash = h;
+        }
+
+        /**
+         * @return the SQL of the statement.
+         */
+        public String getSql() {
+            return sql;
+        }
+
+        /**
+         * @return true if the statement was prepared to return the keys it generates.
+         */
+        boolean returnsGeneratedKeys() {
+            return (autoGeneratedKeys != null && autoGeneratedKeys.intValue() != Statement.NO_GENERATED_KEYS) ||
+                    columnIndexes != null || columnNames != null;
         }
 
         /**
          * Overridden equals() that takes all PreparedStatement attributes into
-         * account.
+         * account. Interned keys are compared by identity, other keys are
+         * compared on their precomputed hash before looking at the SQL.
          * @return true if equal, false otherwise
          */
         @Override
         public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
             if (!(obj instanceof CacheKey)) {
                 return false;
             }
 
             CacheKey otherKey = (CacheKey) obj;
-            if (!sql.equals(otherKey.sql)) {
+            if (hash != otherKey.hash) {
                 return false;
             } else if (resultSetType != otherKey.resultSetType) {
                 return false;
@@ -304,6 +535,8 @@ public class LruStatementCache {
             } else if ((resultSetHoldability == null && otherKey.resultSetHoldability != null) ||
                     (resultSetHoldability != null && !resultSetHoldability.equals(otherKey.resultSetHoldability))) {
                 return false;
+            } else if (sql == null ? otherKey.sql != null : !sql.equals(otherKey.sql)) {
+                return false;
             }
 
             return true;
@@ -311,17 +544,134 @@ public class LruStatementCache {
 
         @Override
         public int hashCode() {
-            return sql != null ? sql.hashCode() : System.identityHashCode(this);
+            return hash;
+        }
+
+        /**
+         * Prepare a statement matching this key on the provided connection,
+         * using the same prepareStatement variant the key was built from.
+         * @param connection the connection to prepare the statement on
+         * @return the prepared statement
+         * @throws SQLException if the statement cannot be prepared
+         */
+        PreparedStatement prepare(Connection connection) throws SQLException {
+            if (autoGeneratedKeys != null)
+                return connection.prepareStatement(sql, autoGeneratedKeys.intValue());
+            if (columnIndexes != null)
+                return connection.prepareStatement(sql, columnIndexes);
+            if (columnNames != null)
+                return connection.prepareStatement(sql, columnNames);
+            if (resultSetHoldability != null)
+                return connection.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability.intValue());
+            if (resultSetType != ResultSet.TYPE_FORWARD_ONLY || resultSetConcurrency != ResultSet.CONCUR_READ_ONLY)
+                return connection.prepareStatement(sql, resultSetType, resultSetConcurrency);
+            return connection.prepareStatement(sql);
+        }
+
+        @Override
+        public String toString() {
+            return sql;
         }
     }
 
     private static final class StatementTracker {
+        private static final int EVICTED = -1;
+        private static final AtomicIntegerFieldUpdater<StatementTracker> USAGE_COUNT_UPDATER = AtomicIntegerFieldUpdater.newUpdater(StatementTracker.class, "usageCount");
+
+        private final CacheKey key;
         private final PreparedStatement statement;
-        private int usageCount;
+        private volatile int usageCount;
+        private StatementTracker prev;
+        private StatementTracker next;
 
-        private StatementTracker(PreparedStatement stmt) {
+        private StatementTracker(CacheKey key, PreparedStatement stmt) {
+            this.key = key;
             this.statement = stmt;
             this.usageCount = 1;
         }
+
+        private boolean acquire() {
+            while (true) {
+                int current = usageCount;
+                if (current == EVICTED) {
+                    return false;
+                }
+                if (USAGE_COUNT_UPDATER.compareAndSet(this, current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        private int release() {
+            while (true) {
+                int current = usageCount;
+                if (current <= 0) {
+                    return current;
+                }
+                if (USAGE_COUNT_UPDATER.compareAndSet(this, current, current - 1)) {
+                    return current - 1;
+                }
+            }
+        }
+
+        private boolean markEvicted() {
+            return USAGE_COUNT_UPDATER.compareAndSet(this, 0, EVICTED);
+        }
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters estimating how often statements got used. All
+     * counters are halved once enough increments happened so that old popularity fades.
+     * Not thread-safe, it is guarded by the eviction lock.
+     */
+    private static final class FrequencySketch {
+        private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+        private static final int MAX_COUNT = 15;
+
+        private final byte[] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        private FrequencySketch(int maxSize) {
+            int capacity = 16;
+            while (capacity < maxSize * 4) {
+                capacity <<= 1;
+            }
+            this.table = new byte[capacity];
+            this.mask = capacity - 1;
+            this.sampleSize = Math.max(10 * maxSize, 160);
+        }
+
+        private int indexOf(CacheKey key, int i) {
+            int hash = key.hashCode() * SEEDS[i];
+            hash += hash >>> 16;
+            return hash & mask;
+        }
+
+        private void increment(CacheKey key) {
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                int index = indexOf(key, i);
+                if (table[index] < MAX_COUNT) {
+                    table[index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (byte) (table[i] >>> 1);
+                }
+                additions /= 2;
+            }
+        }
+
+        private int frequency(CacheKey key) {
+            int frequency = MAX_COUNT;
+            for (int i = 0; i < SEEDS.length; i++) {
+                frequency = Math.min(frequency, table[indexOf(key, i)]);
+            }
+            return frequency;
+        }
     }
 }
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.resource.jdbc;
+
+import bitronix.tm.resource.jdbc.LruStatementCache.CacheKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool-level layer on top of the per-connection {@link LruStatementCache}s. It counts how often each statement is
+ * requested across all connections of a {@link PoolingDataSource} and periodically ranks the most popular ones as
+ * hot statements. Each connection gets an equal share of a global budget of cached statements, computed from the
+ * current pool size: it is applied when a connection gets created or acquired, and while it is idle the pool
+ * maintenance task makes it evict the cached statements which are not among its share of hot statements anymore
+ * and prepare the ones it is missing.
+ * <p>Popularity counts are halved at each election so that statements which stopped being used eventually
+ * become cold.</p>
+ * <p>This class is thread-safe.</p>
+ */
+public class PoolStatementCache {
+
+    private final static Logger log = LoggerFactory.getLogger(PoolStatementCache.class);
+
+    /**
+     * Amount of statement requests between two hot statements elections.
+     */
+    static final int ELECTION_INTERVAL = 1024;
+
+    private final int budget;
+    private final ConcurrentMap<CacheKey, AtomicLong> popularity = new ConcurrentHashMap<CacheKey, AtomicLong>();
+    private final AtomicInteger requestsSinceElection = new AtomicInteger();
+    private volatile List<CacheKey> hotStatements = Collections.emptyList();
+    private volatile int generation;
+
+    /**
+     * Create a pool statement cache.
+     * @param budget the maximum amount of statements cached across all connections of the pool.
+     */
+    public PoolStatementCache(int budget) {
+        if (budget < 1)
+            throw new IllegalArgumentException("pool statement cache budget must be at least 1, got " + budget);
+        this.budget = budget;
+    }
+
+    /**
+     * Record that a statement has been requested on one of the pool's connections.
+     * @param key the requested statement's key.
+     */
+    public void recordRequest(CacheKey key) {
+        AtomicLong counter = popularity.get(key);
+        if (counter == null) {
+            AtomicLong newCounter = new AtomicLong();
+            counter = popularity.putIfAbsent(key, newCounter);
+            if (counter == null)
+                counter = newCounter;
+        }
+        counter.incrementAndGet();
+
+        if (requestsSinceElection.incrementAndGet() >= ELECTION_INTERVAL) {
+            requestsSinceElection.set(0);
+            electHotStatements();
+        }
+    }
+
+    /**
+     * Elect the most popular statements, up to the budget, as the hot ones then age the popularity counts.
+     */
+    synchronized void electHotStatements() {
+        List<Map.Entry<CacheKey, Long>> ranking = new ArrayList<Map.Entry<CacheKey, Long>>(popularity.size());
+        for (Map.Entry<CacheKey, AtomicLong> entry : popularity.entrySet()) {
+            ranking.add(new AbstractMap.SimpleImmutableEntry<CacheKey, Long>(entry.getKey(), entry.getValue().get()));
+        }
+        Collections.sort(ranking, new Comparator<Map.Entry<CacheKey, Long>>() {
+            @Override
+            public int compare(Map.Entry<CacheKey, Long> e1, Map.Entry<CacheKey, Long> e2) {
+                return e2.getValue().compareTo(e1.getValue());
+            }
+        });
+
+        List<CacheKey> elected = new ArrayList<CacheKey>(Math.min(budget, ranking.size()));
+        for (int i = 0; i < ranking.size(); i++) {
+            CacheKey key = ranking.get(i).getKey();
+            if (i < budget) {
+                elected.add(key);
+            }
+
+            // age the counts and stop tracking the statements which are both cold and unpopular
+            AtomicLong counter = popularity.get(key);
+            if (counter != null) {
+                long aged = counter.get() / 2;
+                counter.set(aged);
+                if (aged == 0 || i >= budget) {
+                    popularity.remove(key);
+                }
+            }
+        }
+
+        this.hotStatements = Collections.unmodifiableList(elected);
+        this.generation++;
+        if (log.isDebugEnabled()) { log.debug("elected " + elected.size() + " hot statement(s) out of " + ranking.size()); }
+    }
+
+    /**
+     * @return the current hot statements, most popular first, at most as many as the budget.
+     */
+    public List<CacheKey> getHotStatements() {
+        return hotStatements;
+    }
+
+    /**
+     * @param connectionCount the current amount of connections in the pool.
+     * @return the amount of statements each connection may keep cached, at least 1.
+     */
+    public int getConnectionShare(int connectionCount) {
+        return Math.max(1, budget / Math.max(1, connectionCount));
+    }
+
+    /**
+     * @return a number incremented at each election, used by connections to detect changes of the hot statements.
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return the global budget of cached statements.
+     */
+    public int getBudget() {
+        return budget;
+    }
+
+    @Override
+    public String toString() {
+        return "a PoolStatementCache with a budget of " + budget + " statement(s) and " + hotStatements.size() + " hot statement(s)";
+    }
+}
@@ -24,6 +24,9 @@ import bitronix.tm.resource.common.RecoveryXAResourceHolder;
 import bitronix.tm.resource.common.ResourceBean;
 import bitronix.tm.resource.common.XAPool;
 import bitronix.tm.resource.common.XAResourceProducer;
+import bitronix.tm.resource.jdbc.LruStatementCache.CacheKey;
+import bitronix.tm.resource.jdbc.proxy.JdbcCallListener;
+import bitronix.tm.resource.jdbc.proxy.JdbcCallTracer;
 import bitronix.tm.utils.ManagementRegistrar;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,9 +41,16 @@ import java.io.PrintWriter;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.Map;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
@@ -55,21 +65,40 @@ public class PoolingDataSource extends ResourceBean implements DataSource, XARes
 
     private final static Logger log = LoggerFactory.getLogger(PoolingDataSource.class);
 
+    private static final int MIN_INTERNED_STATEMENT_KEYS = 1024;
+
+    /**
+     * Interval in seconds at which the idle connections are aligned with the pool-wide statement cache when
+     * {@link #getPoolStatementCacheSize()} is set.
+     */
+    public static final int POOL_STATEMENT_CACHE_SYNC_INTERVAL = 60;
+
     private volatile transient XAPool<JdbcPooledConnection, JdbcPooledConnection> pool;
     private volatile transient XADataSource xaDataSource;
     private volatile transient RecoveryXAResourceHolder recoveryXAResourceHolder;
     private volatile transient Connection recoveryConnectionHandle;
     private volatile transient Map<XAResource, JdbcPooledConnection> xaResourceHolderMap;
+    private volatile transient PoolStatementCache poolStatementCache;
+    private volatile transient CacheKeyInterner cacheKeyInterner;
+    private volatile transient JdbcCallTracer jdbcCallTracer;
 
     private volatile String testQuery;
     private volatile boolean enableJdbc4ConnectionTest;
     private volatile int connectionTestTimeout;
+    private volatile int connectionTestIdleTime = 0;
     private volatile int preparedStatementCacheSize = 0;
+    private volatile int poolStatementCacheSize = 0;
     private volatile String isolationLevel;
     private volatile String cursorHoldability;
     private volatile String localAutoCommit;
+    private volatile Properties warmUpStatements = new Properties();
+    private volatile boolean wrapResultSets = true;
+    private volatile int writeBehindBatchSize = 0;
+    private volatile boolean traceJdbcCalls = false;
     private volatile String jmxName;
+    private volatile String tracerJmxName;
     private final List<ConnectionCustomizer> connectionCustomizers = new CopyOnWriteArrayList<ConnectionCustomizer>();
+    private final List<JdbcCallListener> jdbcCallListeners = new CopyOnWriteArrayList<JdbcCallListener>();
 
     public PoolingDataSource() {
         xaResourceHolderMap = new ConcurrentHashMap<XAResource, JdbcPooledConnection>();
@@ -87,6 +116,10 @@ public class PoolingDataSource extends ResourceBean implements DataSource, XARes
             buildXAPool();
             this.jmxName = "bitronix.tm:type=JDBC,UniqueName=" + ManagementRegistrar.makeValidName(getUniqueName());
             ManagementRegistrar.register(jmxName, this);
+            if (jdbcCallTracer != null) {
+                this.tracerJmxName = jmxName + ",Tracer=JdbcCalls";
+                ManagementRegistrar.register(tracerJmxName, jdbcCallTracer);
+            }
         } catch (Exception ex) {
             throw new ResourceConfigurationException("cannot create JDBC datasource named " + getUniqueName(), ex);
         }
@@ -97,6 +130,12 @@ public class PoolingDataSource extends ResourceBean implements DataSource, XARes
             return;
 
         if (log.isDebugEnabled()) { log.debug("building XA pool for " + getUniqueName() + " with " + getMinPoolSize() + " connection(s)"); }
+        if (preparedStatementCacheSize > 0)
+            cacheKeyInterner = new CacheKeyInterner(Math.max(MIN_INTERNED_STATEMENT_KEYS, preparedStatementCacheSize * 16));
+        if (poolStatementCacheSize > 0 && preparedStatementCacheSize > 0)
+            poolStatementCache = new PoolStatementCache(poolStatementCacheSize);
+        if (traceJdbcCalls)
+            jdbcCallTracer = new JdbcCallTracer(getUniqueName(), jdbcCallListeners);
         pool = new XAPool<JdbcPooledConnection, JdbcPooledConnection>(this, this, xaDataSource);
         boolean builtXaFactory = false;
         if (xaDataSource == null) {
@@ -108,6 +147,9 @@ public class PoolingDataSource extends ResourceBean implements DataSource, XARes
         } catch (RecoveryException ex) {
             if (builtXaFactory) xaDataSource = null;
             pool = null;
+            poolStatementCache = null;
+            cacheKeyInterner = null;
+            jdbcCallTracer = null;
             throw ex;
         }
     }
@@ -178,6 +220,26 @@ public class PoolingDataSource extends ResourceBean implements DataSource, XARes
         return connectionTestTimeout;
     }
 
+    /**
+     * @return the amount of seconds a connection can stay idle before it gets tested again, 0 if connections are
+     *         tested each time they are acquired from the pool.
+     */
+    public int getConnectionTestIdleTime() {
+        return connectionTestIdleTime;
+    }
+
+    /**
+     * Set the amount of seconds a connection can stay idle before it gets tested again. When greater than 0,
+     * a connection acquired from the pool is only tested if it was neither released nor tested during that
+     * amount of time, or if the driver reported an error on it; the pool maintenance task also tests the idle
+     * connections in the background so that most acquisitions skip the test altogether.
+     * Default value is 0, connections are tested each time they are acquired.
+     * @param connectionTestIdleTime the amount of seconds a connection can stay idle without being tested.
+     */
+    public void setConnectionTestIdleTime(int connectionTestIdleTime) {
+        this.connectionTestIdleTime = connectionTestIdleTime;
+    }
+
     /**
      * @return how many seconds each connection test will wait for a response,
      * bounded above by the acquisition timeout.
@@ -210,6 +272,80 @@ public class PoolingDataSource extends ResourceBean implements DataSource, XARes
         this.preparedStatementCacheSize = preparedStatementCacheSize;
     }
 
+    /**
+     * @return the maximum amount of prepared statements cached across all connections of the pool.
+     */
+    public int getPoolStatementCacheSize() {
+        return poolStatementCacheSize;
+    }
+
+    /**
+     * Set the maximum amount of prepared statements cached across all connections of the pool, 0 meaning
+     * that each connection manages its own cache independently. When set, the popularity of the statements is
+     * tracked pool-wide: the most popular ones are prepared in advance on every idle connection by the pool
+     * maintenance task while the unpopular ones get evicted. Each connection caches at most its share of this
+     * budget at the current pool size, which is applied when the connection gets created or acquired and by the
+     * maintenance task.
+     * The per-connection prepared statement cache must be enabled for this setting to have any effect.
+     * @param poolStatementCacheSize the maximum amount of prepared statements cached by the whole pool.
+     */
+    public void setPoolStatementCacheSize(int poolStatementCacheSize) {
+        this.poolStatementCacheSize = poolStatementCacheSize;
+    }
+
+    /**
+     * Idle connections are tested by the pool maintenance task every {@link #getConnectionTestIdleTime()} seconds
+     * and aligned with the pool-wide statement cache every {@link #POOL_STATEMENT_CACHE_SYNC_INTERVAL} seconds.
+     * @return the interval in seconds at which the pool maintenance task must run for these, 0 if neither is enabled.
+     */
+    @Override
+    protected int getMaintenanceInterval() {
+        int interval = connectionTestIdleTime;
+        if (poolStatementCacheSize > 0 && preparedStatementCacheSize > 0 && (interval <= 0 || POOL_STATEMENT_CACHE_SYNC_INTERVAL < interval))
+            interval = POOL_STATEMENT_CACHE_SYNC_INTERVAL;
+        return interval;
+    }
+
+    /**
+     * @return the pool-wide prepared statement cache, or null if it is disabled.
+     */
+    PoolStatementCache getPoolStatementCache() {
+        return poolStatementCache;
+    }
+
+    /**
+     * @return the registry of the statement keys shared by this pool's connections, or null if statement caching
+     *         is disabled.
+     */
+    CacheKeyInterner getCacheKeyInterner() {
+        return cacheKeyInterner;
+    }
+
+    /**
+     * Record that a prepared statement has been requested on one of this pool's connections.
+     * @param key the requested statement's key.
+     */
+    void recordStatementRequest(CacheKey key) {
+        PoolStatementCache cache = poolStatementCache;
+        if (cache != null)
+            cache.recordRequest(key);
+    }
+
+    /**
+     * @return the maximum amount of prepared statements a connection may currently cache: its share of the
+     *         pool-wide budget at the current pool size when {@link #getPoolStatementCacheSize()} is set, the
+     *         {@link #getPreparedStatementCacheSize()} otherwise.
+     */
+    int getStatementCacheShare() {
+        PoolStatementCache cache = poolStatementCache;
+        if (cache == null)
+            return preparedStatementCacheSize;
+        XAPool<JdbcPooledConnection, JdbcPooledConnection> xaPool = pool;
+        // the initial connections are created while the pool is being built
+        int connectionCount = xaPool == null ? getMinPoolSize() : xaPool.totalPoolSize();
+        return Math.min(preparedStatementCacheSize, cache.getConnectionShare(connectionCount));
+    }
+
     /**
      * @return the default isolation level.
      */
@@ -255,6 +391,126 @@ public class PoolingDataSource extends ResourceBean implements DataSource, XARes
     	this.localAutoCommit = localAutoCommit;
     }
 
+    /**
+     * @return the SQL statements prepared on each connection created ahead of demand, keyed by an arbitrary name.
+     */
+    public Properties getWarmUpStatements() {
+        return warmUpStatements;
+    }
+
+    /**
+     * Set the SQL statements to prepare on each connection the pool creates ahead of demand, that is when it is
+     * initialized or reset, when it grows back to its min size and when it creates connections in the background.
+     * Each statement is stored under an arbitrary name, as in <code>warmUpStatements.orders=SELECT ...</code>, and
+     * the statements are prepared in the order of their names. The statements are put in the prepared statement
+     * cache, which must be enabled for this setting to have any effect. Each connection is also tested before being
+     * made available. Connection creation fails, and so does the pool initialization, if the test or the preparation
+     * of a statement fails.
+     * @param warmUpStatements the SQL statements keyed by name.
+     */
+    public void setWarmUpStatements(Properties warmUpStatements) {
+        this.warmUpStatements = warmUpStatements;
+    }
+
+    /**
+     * @return true if the result sets returned by statements are wrapped, false if they are returned as-is.
+     */
+    public boolean isWrapResultSets() {
+        return wrapResultSets;
+    }
+
+    /**
+     * Set whether the result sets returned by statements are wrapped so that their getStatement() method returns
+     * the statement the application used. When false, the driver's result sets are returned as-is, which spares an
+     * indirection on each row accessor call; they are then only tracked by the statement that returned them and
+     * get closed when it is returned to the statement cache. getStatement() then returns the driver's statement.
+     * Default value is true.
+     * @param wrapResultSets true if the result sets must be wrapped, false otherwise.
+     */
+    public void setWrapResultSets(boolean wrapResultSets) {
+        this.wrapResultSets = wrapResultSets;
+    }
+
+    /**
+     * @return the maximum amount of updates deferred into a single batch, 0 if updates are never deferred.
+     */
+    public int getWriteBehindBatchSize() {
+        return writeBehindBatchSize;
+    }
+
+    /**
+     * Set the maximum amount of updates deferred into a single batch. When greater than 0, consecutive
+     * PreparedStatement.executeUpdate() calls of the same cached statement within a global transaction are turned
+     * into a JDBC batch which is executed when another statement of the connection is executed, when the connection
+     * is closed or before the transaction completes. Only single-row INSERT ... VALUES (...) statements are deferred,
+     * their executeUpdate() calls return 1; the transaction is marked as rollback only if the driver later reports
+     * another row count for any of them. All other updates are executed immediately. This requires the
+     * preparedStatementCacheSize to be set.
+     * Default value is 0.
+     * @param writeBehindBatchSize the maximum amount of updates in a deferred batch.
+     */
+    public void setWriteBehindBatchSize(int writeBehindBatchSize) {
+        this.writeBehindBatchSize = writeBehindBatchSize;
+    }
+
+    /**
+     * @return true if the JDBC calls made through this pool's connections are traced.
+     */
+    public boolean isTraceJdbcCalls() {
+        return traceJdbcCalls;
+    }
+
+    /**
+     * Set whether the JDBC calls made through this pool's connections are traced. When true, the execution count,
+     * latency percentiles, fetched rows and statement cache hits of each SQL statement shape are recorded, published
+     * over JMX and reported to the registered {@link JdbcCallListener}s. The fetched rows are counted by the result
+     * set wrappers, they are not recorded when {@link #isWrapResultSets()} is false. This setting is read when the
+     * pool is initialized.
+     * Default value is false.
+     * @param traceJdbcCalls true if the JDBC calls must be traced.
+     */
+    public void setTraceJdbcCalls(boolean traceJdbcCalls) {
+        this.traceJdbcCalls = traceJdbcCalls;
+    }
+
+    /**
+     * @return the tracer recording the JDBC calls made through this pool's connections, or null if tracing is
+     *         disabled or the pool is not initialized.
+     */
+    public JdbcCallTracer getJdbcCallTracer() {
+        return jdbcCallTracer;
+    }
+
+    public void addJdbcCallListener(JdbcCallListener jdbcCallListener) {
+        jdbcCallListeners.add(jdbcCallListener);
+    }
+
+    public void removeJdbcCallListener(JdbcCallListener jdbcCallListener) {
+        jdbcCallListeners.remove(jdbcCallListener);
+    }
+
+    /**
+     * @return the configured warm-up statements, ordered by name and without duplicates.
+     */
+    Collection<String> getWarmUpStatementList() {
+        Properties statements = warmUpStatements;
+        if (statements == null || statements.isEmpty())
+            return Collections.emptySet();
+
+        SortedMap<String, String> sortedStatements = new TreeMap<String, String>();
+        for (String name : statements.stringPropertyNames()) {
+            sortedStatements.put(name, statements.getProperty(name));
+        }
+
+        Set<String> result = new LinkedHashSet<String>();
+        for (String sql : sortedStatements.values()) {
+            sql = sql.trim();
+            if (sql.length() > 0)
+                result.add(sql);
+        }
+        return result;
+    }
+
     public void addConnectionCustomizer(ConnectionCustomizer connectionCustomizer) {
         connectionCustomizers.add(connectionCustomizer);
     }
@@ -404,13 +660,21 @@ public class PoolingDataSource extends ResourceBean implements DataSource, XARes
         if (log.isDebugEnabled()) { log.debug("closing " + this); }
         pool.close();
         pool = null;
+        poolStatementCache = null;
+        cacheKeyInterner = null;
 
         xaResourceHolderMap.clear();
 
         connectionCustomizers.clear();
+        jdbcCallListeners.clear();
 
         ManagementRegistrar.unregister(jmxName);
         jmxName = null;
+        if (tracerJmxName != null) {
+            ManagementRegistrar.unregister(tracerJmxName);
+            tracerJmxName = null;
+        }
+        jdbcCallTracer = null;
 
         ResourceRegistrar.unregister(this);
     }
@@ -496,6 +760,62 @@ public class PoolingDataSource extends ResourceBean implements DataSource, XARes
         return pool.totalPoolSize();
     }
 
+    @Override
+    public int getWaitingCount() {
+        return pool.waitingCount();
+    }
+
+    @Override
+    public long getWaitCount() {
+        return pool.waitCount();
+    }
+
+    @Override
+    public long getWaitTimeoutCount() {
+        return pool.waitTimeoutCount();
+    }
+
+    @Override
+    public long getWaitTimeMedian() {
+        return pool.waitTimePercentile(50.0);
+    }
+
+    @Override
+    public long getWaitTime95thPercentile() {
+        return pool.waitTimePercentile(95.0);
+    }
+
+    @Override
+    public long getWaitTime99thPercentile() {
+        return pool.waitTimePercentile(99.0);
+    }
+
+    @Override
+    public long getConnectionCreationTime95thPercentile() {
+        return pool.creationTimePercentile(95.0);
+    }
+
+    @Override
+    public int getTargetPoolSize() {
+        return pool.targetPoolSize();
+    }
+
+    @Override
+    public String getLastPoolSizingDecision() {
+        return pool.lastPoolSizingDecision();
+    }
+
+    @Override
+    public int getLongHeldConnectionCount() {
+        return pool.longHeldCount();
+    }
+
+    @Override
+    public String[] getLongHeldConnections() {
+        List<String> descriptions = pool.longHeldDescriptions();
+        return descriptions.toArray(new String[descriptions.size()]);
+    }
+
     @Override
     public void reset() throws Exception {
         pool.reset();
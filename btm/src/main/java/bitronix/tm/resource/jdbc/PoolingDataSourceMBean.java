@@ -25,6 +25,17 @@ public interface PoolingDataSourceMBean {
     public int getMaxPoolSize();
     public int getInPoolSize();
     public int getTotalPoolSize();
+    public int getWaitingCount();
+    public long getWaitCount();
+    public long getWaitTimeoutCount();
+    public long getWaitTimeMedian();
+    public long getWaitTime95thPercentile();
+    public long getWaitTime99thPercentile();
+    public long getConnectionCreationTime95thPercentile();
+    public int getTargetPoolSize();
+    public String getLastPoolSizingDecision();
+    public int getLongHeldConnectionCount();
+    public String[] getLongHeldConnections();
     public boolean isFailed();
     public void reset() throws Exception;
     public boolean isDisabled();
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.resource.jdbc;
+
+import bitronix.tm.BitronixTransaction;
+import bitronix.tm.internal.BitronixRuntimeException;
+import bitronix.tm.resource.common.TransactionContextHelper;
+import bitronix.tm.resource.jdbc.LruStatementCache.CacheKey;
+import bitronix.tm.utils.Scheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Locale;
+
+/**
+ * Write-behind buffer of a {@link JdbcPooledConnection}: consecutive executeUpdate() calls of the same prepared
+ * statement within a global transaction are turned into addBatch() calls and executed as a single batch.
+ * <p>Only cached statements inserting a single row with a plain INSERT ... VALUES (...) are deferred, as their
+ * row count is known to be 1 in advance; all other updates are executed right away so that the application sees
+ * their real row count.</p>
+ * <p>The batch is flushed when another statement of the connection gets executed, when it reaches its maximum
+ * size, when the connection is closed and at the latest right before the transaction completes. Flushing fails,
+ * and the transaction is marked as rollback only, if the driver does not report one inserted row for each of
+ * the deferred calls.</p>
+ */
+final class WriteBehindBatch implements Synchronization {
+
+    private final static Logger log = LoggerFactory.getLogger(WriteBehindBatch.class);
+
+    private final static String[] NOT_SINGLE_ROW_KEYWORDS = { "SELECT", "IGNORE", "CONFLICT", "DUPLICATE", "RETURNING" };
+
+    private final JdbcPooledConnection owner;
+    private final int maxSize;
+
+    private PreparedStatement statement;
+    private int size;
+    private BitronixTransaction transaction;
+
+    WriteBehindBatch(JdbcPooledConnection owner, int maxSize) {
+        this.owner = owner;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Check if the updates of a cached statement can be deferred.
+     * @param key the cache key of the statement.
+     * @return true if the statement inserts exactly one row per execution and does not return generated keys.
+     */
+    static boolean isDeferrable(CacheKey key) {
+        return !key.returnsGeneratedKeys() && isSingleRowInsert(key.getSql());
+    }
+
+    /**
+     * Recognize INSERT INTO ... VALUES (...) statements with a single row of values. Inserts from a query, multi-row
+     * inserts and statements with a conflict clause, which may not report exactly one row, are not recognized.
+     * @param sql the SQL of the statement.
+     * @return true if the statement always inserts exactly one row.
+     */
+    static boolean isSingleRowInsert(String sql) {
+        if (sql == null)
+            return false;
+        String upperSql = sql.trim().toUpperCase(Locale.ENGLISH);
+        if (!upperSql.startsWith("INSERT") || upperSql.length() == 6 || !Character.isWhitespace(upperSql.charAt(6)))
+            return false;
+        for (String keyword : NOT_SINGLE_ROW_KEYWORDS) {
+            if (upperSql.contains(keyword))
+                return false;
+        }
+
+        int valuesIndex = upperSql.indexOf("VALUES");
+        if (valuesIndex < 0)
+            return false;
+        int i = valuesIndex + "VALUES".length();
+        while (i < upperSql.length() && Character.isWhitespace(upperSql.charAt(i))) {
+            i++;
+        }
+        if (i == upperSql.length() || upperSql.charAt(i) != '(')
+            return false;
+
+        // skip the row of values, anything but a trailing semicolon after it means more rows or clauses
+        int depth = 0;
+        boolean quoted = false;
+        for (; i < upperSql.length(); i++) {
+            char c = upperSql.charAt(i);
+            if (c == '\'')
+                quoted = !quoted;
+            else if (quoted)
+                continue;
+            else if (c == '(')
+                depth++;
+            else if (c == ')' && --depth == 0)
+                break;
+        }
+        if (depth != 0)
+            return false;
+        String rest = upperSql.substring(i + 1).trim();
+        return rest.length() == 0 || rest.equals(";");
+    }
+
+    /**
+     * Add the current parameters of the statement to the batch.
+     * @param preparedStatement the statement whose update is deferred.
+     * @return false if there is no transaction to defer the update in.
+     * @throws SQLException if the batch cannot be extended or flushed.
+     */
+    synchronized boolean defer(PreparedStatement preparedStatement) throws SQLException {
+        BitronixTransaction currentTransaction = TransactionContextHelper.currentTransaction();
+        if (currentTransaction == null) {
+            flush();
+            return false;
+        }
+        if (statement != null && statement != preparedStatement) {
+            flush();
+        }
+
+        if (transaction != currentTransaction) {
+            // run after all other synchronizations, they may still issue updates
+            currentTransaction.getSynchronizationScheduler().add(this, Scheduler.ALWAYS_FIRST_POSITION);
+            transaction = currentTransaction;
+        }
+
+        preparedStatement.addBatch();
+        statement = preparedStatement;
+        size++;
+        if (size >= maxSize) {
+            flush();
+        }
+        return true;
+    }
+
+    /**
+     * Execute the pending batch, if any.
+     * @throws SQLException if the batch fails or an insert did not affect exactly one row.
+     */
+    synchronized void flush() throws SQLException {
+        if (statement == null) {
+            return;
+        }
+        PreparedStatement pending = statement;
+        int pendingSize = size;
+        statement = null;
+        size = 0;
+
+        if (log.isDebugEnabled()) { log.debug("flushing " + pendingSize + " deferred update(s) of " + owner); }
+        try {
+            int[] counts = pending.executeBatch();
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] != 1 && counts[i] != Statement.SUCCESS_NO_INFO)
+                    throw new SQLException("deferred insert #" + (i + 1) + " of " + owner + " affected " + counts[i] + " row(s) while 1 was reported");
+            }
+        } catch (SQLException ex) {
+            markRollbackOnly();
+            throw ex;
+        }
+    }
+
+    /**
+     * Drop the pending batch, if any.
+     */
+    synchronized void discard() {
+        if (statement == null) {
+            return;
+        }
+        if (log.isDebugEnabled()) { log.debug("discarding " + size + " deferred update(s) of " + owner); }
+        try {
+            statement.clearBatch();
+        } catch (SQLException ex) {
+            if (log.isDebugEnabled()) { log.debug("error clearing deferred updates of " + owner, ex); }
+        }
+        statement = null;
+        size = 0;
+    }
+
+    private void markRollbackOnly() {
+        BitronixTransaction currentTransaction = transaction;
+        if (currentTransaction == null) {
+            return;
+        }
+        try {
+            currentTransaction.setRollbackOnly();
+        } catch (IllegalStateException ex) {
+            if (log.isDebugEnabled()) { log.debug("cannot mark " + currentTransaction + " as rollback only", ex); }
+        } catch (SystemException ex) {
+            if (log.isDebugEnabled()) { log.debug("cannot mark " + currentTransaction + " as rollback only", ex); }
+        }
+    }
+
+    @Override
+    public void beforeCompletion() {
+        try {
+            flush();
+        } catch (SQLException ex) {
+            throw new BitronixRuntimeException("error flushing deferred updates of " + owner, ex);
+        }
+    }
+
+    @Override
+    public synchronized void afterCompletion(int status) {
+        // only left over when the transaction rolled back
+        discard();
+        transaction = null;
+    }
+
+    @Override
+    public String toString() {
+        return "a WriteBehindBatch of " + owner;
+    }
+}
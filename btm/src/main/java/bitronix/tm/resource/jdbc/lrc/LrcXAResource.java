@@ -16,6 +16,7 @@
 package bitronix.tm.resource.jdbc.lrc;
 
 import bitronix.tm.internal.BitronixXAException;
+import bitronix.tm.resource.common.LastResourceXAResource;
 import bitronix.tm.utils.Decoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -55,7 +56,7 @@ import java.sql.SQLException;
  *
  * @author Ludovic Orban
  */
-public class LrcXAResource implements XAResource {
+public class LrcXAResource implements LastResourceXAResource {
 
     private final static Logger log = LoggerFactory.getLogger(LrcXAResource.class);
 
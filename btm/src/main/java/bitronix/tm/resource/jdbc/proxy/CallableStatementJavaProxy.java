@@ -17,20 +17,21 @@ package bitronix.tm.resource.jdbc.proxy;
 
 import bitronix.tm.resource.jdbc.JdbcPooledConnection;
 
-import java.lang.reflect.Method;
 import java.sql.CallableStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.Map;
 
 /**
  * @author Brett Wooldridge
  */
 public class CallableStatementJavaProxy extends JavaProxyBase<CallableStatement> {
 
-    private final static Map<String, Method> selfMethodMap = createMethodMap(CallableStatementJavaProxy.class);
+    private final static DispatchTable dispatchTable = new DispatchTable(CallableStatementJavaProxy.class);
 
     private JdbcPooledConnection jdbcPooledConnection;
+    private ResultSetTracker resultSets;
+    private JdbcCallTracer tracer;
+    private String sql;
     
     public CallableStatementJavaProxy() {
         // Default constructor
@@ -43,7 +44,10 @@ public class CallableStatementJavaProxy extends JavaProxyBase<CallableStatement>
     void initialize(JdbcPooledConnection jdbcPooledConnection, CallableStatement statement) {
     	this.proxy = this;
         this.jdbcPooledConnection = jdbcPooledConnection;
+        this.resultSets = new ResultSetTracker(jdbcPooledConnection);
         this.delegate = statement;
+        this.tracer = JdbcCallTracer.of(jdbcPooledConnection);
+        this.sql = tracer == null ? null : tracer.takePreparedSql(statement);
     }
 
     /* Overridden methods of java.sql.CallableStatement */
@@ -53,20 +57,36 @@ public class CallableStatementJavaProxy extends JavaProxyBase<CallableStatement>
             return;
         }
 
+        resultSets.clear();
         jdbcPooledConnection.unregisterUncachedStatement(delegate);
         delegate.close();
     }
 
     public ResultSet executeQuery() throws SQLException {
-    	return JdbcProxyFactory.INSTANCE.getProxyResultSet(this.getProxy(), delegate.executeQuery());
+        jdbcPooledConnection.flushDeferredUpdates();
+        ResultSet resultSet = (ResultSet) TracedCall.EXECUTE_PREPARED_QUERY.invoke(tracer, delegate, sql);
+        return resultSets.trackQuery(this.getProxy(), resultSet, sql);
     }
 
     public ResultSet executeQuery(String sql) throws SQLException {
-    	return JdbcProxyFactory.INSTANCE.getProxyResultSet(this.getProxy(), delegate.executeQuery(sql));
+        jdbcPooledConnection.flushDeferredUpdates();
+        ResultSet resultSet = (ResultSet) TracedCall.EXECUTE_QUERY.invoke(tracer, delegate, sql);
+        return resultSets.trackQuery(this.getProxy(), resultSet, sql);
     }
 
     public ResultSet getGeneratedKeys() throws SQLException {
-    	return JdbcProxyFactory.INSTANCE.getProxyResultSet(this.getProxy(), delegate.getGeneratedKeys());
+        jdbcPooledConnection.flushDeferredUpdates();
+    	return resultSets.track(this.getProxy(), delegate.getGeneratedKeys());
+    }
+
+    public boolean execute() throws SQLException {
+        jdbcPooledConnection.flushDeferredUpdates();
+        return (Boolean) TracedCall.EXECUTE_PREPARED.invoke(tracer, delegate, sql);
+    }
+
+    public int executeUpdate() throws SQLException {
+        jdbcPooledConnection.flushDeferredUpdates();
+        return (Integer) TracedCall.EXECUTE_PREPARED_UPDATE.invoke(tracer, delegate, sql);
     }
 
     /* java.sql.Wrapper implementation */
@@ -87,7 +107,7 @@ public class CallableStatementJavaProxy extends JavaProxyBase<CallableStatement>
     }
 
     @Override
-    protected Map<String, Method> getMethodMap() {
-        return selfMethodMap;
+    protected DispatchTable getDispatchTable() {
+        return dispatchTable;
     }
 }
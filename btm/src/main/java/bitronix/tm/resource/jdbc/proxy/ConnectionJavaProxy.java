@@ -24,14 +24,12 @@ import org.slf4j.LoggerFactory;
 
 import javax.transaction.RollbackException;
 import javax.transaction.SystemException;
-import java.lang.reflect.Method;
 import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Savepoint;
 import java.sql.Statement;
-import java.util.Map;
 
 /**
  * @author Brett Wooldridge
@@ -40,10 +38,11 @@ public class ConnectionJavaProxy extends JavaProxyBase<Connection> implements Po
 
     private final static Logger log = LoggerFactory.getLogger(ConnectionJavaProxy.class);
 
-    private final static Map<String, Method> selfMethodMap = createMethodMap(ConnectionJavaProxy.class);
+    private final static DispatchTable dispatchTable = new DispatchTable(ConnectionJavaProxy.class);
 
     private JdbcPooledConnection jdbcPooledConnection;
     private boolean useStatementCache;
+    private JdbcCallTracer tracer;
 
     public ConnectionJavaProxy() {
         // Default constructor
@@ -61,6 +60,7 @@ public class ConnectionJavaProxy extends JavaProxyBase<Connection> implements Po
         if (jdbcPooledConnection != null) {
             useStatementCache = jdbcPooledConnection.getPoolingDataSource().getPreparedStatementCacheSize() > 0;
         }
+        tracer = JdbcCallTracer.of(jdbcPooledConnection);
     }
 
     @Override
@@ -205,6 +205,7 @@ public class ConnectionJavaProxy extends JavaProxyBase<Connection> implements Po
 
         CallableStatement statement = delegate.prepareCall(sql);
         jdbcPooledConnection.registerUncachedStatement(statement);
+        tracePrepared(statement, sql);
         CallableStatement statementProxy = JdbcProxyFactory.INSTANCE.getProxyCallableStatement(jdbcPooledConnection, statement);
         return statementProxy;
     }
@@ -214,6 +215,7 @@ public class ConnectionJavaProxy extends JavaProxyBase<Connection> implements Po
 
         CallableStatement statement = delegate.prepareCall(sql, resultSetType, resultSetConcurrency);
         jdbcPooledConnection.registerUncachedStatement(statement);
+        tracePrepared(statement, sql);
         CallableStatement statementProxy = JdbcProxyFactory.INSTANCE.getProxyCallableStatement(jdbcPooledConnection, statement);
         return statementProxy;
     }
@@ -223,6 +225,7 @@ public class ConnectionJavaProxy extends JavaProxyBase<Connection> implements Po
 
         CallableStatement statement = delegate.prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
         jdbcPooledConnection.registerUncachedStatement(statement);
+        tracePrepared(statement, sql);
         CallableStatement statementProxy = JdbcProxyFactory.INSTANCE.getProxyCallableStatement(jdbcPooledConnection, statement);
         return statementProxy;
     }
@@ -233,8 +236,9 @@ public class ConnectionJavaProxy extends JavaProxyBase<Connection> implements Po
         enlistResource();
 
         if (useStatementCache) {
-            CacheKey cacheKey = new CacheKey(sql);
+            CacheKey cacheKey = jdbcPooledConnection.internCacheKey(sql);
             PreparedStatement cachedStmt = jdbcPooledConnection.getCachedStatement(cacheKey);
+            traceCacheAccess(sql, cachedStmt != null);
             if (cachedStmt == null) {
                 cachedStmt = delegate.prepareStatement(sql);
                 jdbcPooledConnection.putCachedStatement(cacheKey, cachedStmt);
@@ -245,6 +249,7 @@ public class ConnectionJavaProxy extends JavaProxyBase<Connection> implements Po
         else {
             PreparedStatement stmt = delegate.prepareStatement(sql);
             jdbcPooledConnection.registerUncachedStatement(stmt);
+            tracePrepared(stmt, sql);
             PreparedStatement statementProxy = JdbcProxyFactory.INSTANCE.getProxyPreparedStatement(jdbcPooledConnection, stmt, null);
             return statementProxy;
         }
@@ -254,8 +259,9 @@ public class ConnectionJavaProxy extends JavaProxyBase<Connection> implements Po
         enlistResource();
 
         if (useStatementCache) {
-            CacheKey cacheKey = new CacheKey(sql, autoGeneratedKeys);
+            CacheKey cacheKey = jdbcPooledConnection.internCacheKey(new CacheKey(sql, autoGeneratedKeys));
             PreparedStatement cachedStmt = jdbcPooledConnection.getCachedStatement(cacheKey);
+            traceCacheAccess(sql, cachedStmt != null);
             if (cachedStmt == null) {
                 cachedStmt = delegate.prepareStatement(sql, autoGeneratedKeys);
                 jdbcPooledConnection.putCachedStatement(cacheKey, cachedStmt);
@@ -266,6 +272,7 @@ public class ConnectionJavaProxy extends JavaProxyBase<Connection> implements Po
         else {
             PreparedStatement stmt = delegate.prepareStatement(sql, autoGeneratedKeys);
             jdbcPooledConnection.registerUncachedStatement(stmt);
+            tracePrepared(stmt, sql);
             PreparedStatement statementProxy = JdbcProxyFactory.INSTANCE.getProxyPreparedStatement(jdbcPooledConnection, stmt, null);
             return statementProxy;
         }
@@ -275,8 +282,9 @@ public class ConnectionJavaProxy extends JavaProxyBase<Connection> implements Po
         enlistResource();
 
         if (useStatementCache) {
-            CacheKey cacheKey = new CacheKey(sql, resultSetType, resultSetConcurrency);
+            CacheKey cacheKey = jdbcPooledConnection.internCacheKey(new CacheKey(sql, resultSetType, resultSetConcurrency));
             PreparedStatement cachedStmt = jdbcPooledConnection.getCachedStatement(cacheKey);
+            traceCacheAccess(sql, cachedStmt != null);
             if (cachedStmt == null) {
                 cachedStmt = delegate.prepareStatement(sql, resultSetType, resultSetConcurrency);
                 jdbcPooledConnection.putCachedStatement(cacheKey, cachedStmt);
@@ -287,6 +295,7 @@ public class ConnectionJavaProxy extends JavaProxyBase<Connection> implements Po
         else {
             PreparedStatement stmt = delegate.prepareStatement(sql, resultSetType, resultSetConcurrency);
             jdbcPooledConnection.registerUncachedStatement(stmt);
+            tracePrepared(stmt, sql);
             PreparedStatement statementProxy = JdbcProxyFactory.INSTANCE.getProxyPreparedStatement(jdbcPooledConnection, stmt, null);
             return statementProxy;
         }
@@ -296,8 +305,9 @@ public class ConnectionJavaProxy extends JavaProxyBase<Connection> implements Po
         enlistResource();
 
         if (useStatementCache) {
-            CacheKey cacheKey = new CacheKey(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+            CacheKey cacheKey = jdbcPooledConnection.internCacheKey(new CacheKey(sql, resultSetType, resultSetConcurrency, resultSetHoldability));
             PreparedStatement cachedStmt = jdbcPooledConnection.getCachedStatement(cacheKey);
+            traceCacheAccess(sql, cachedStmt != null);
             if (cachedStmt == null) {
                 cachedStmt = delegate.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
                 jdbcPooledConnection.putCachedStatement(cacheKey, cachedStmt);
@@ -308,6 +318,7 @@ public class ConnectionJavaProxy extends JavaProxyBase<Connection> implements Po
         else {
             PreparedStatement stmt = delegate.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
             jdbcPooledConnection.registerUncachedStatement(stmt);
+            tracePrepared(stmt, sql);
             PreparedStatement statementProxy = JdbcProxyFactory.INSTANCE.getProxyPreparedStatement(jdbcPooledConnection, stmt, null);
             return statementProxy;
         }
@@ -317,8 +328,9 @@ public class ConnectionJavaProxy extends JavaProxyBase<Connection> implements Po
         enlistResource();
 
         if (useStatementCache) {
-            CacheKey cacheKey = new CacheKey(sql, columnIndexes);
+            CacheKey cacheKey = jdbcPooledConnection.internCacheKey(new CacheKey(sql, columnIndexes));
             PreparedStatement cachedStmt = jdbcPooledConnection.getCachedStatement(cacheKey);
+            traceCacheAccess(sql, cachedStmt != null);
             if (cachedStmt == null) {
                 cachedStmt = delegate.prepareStatement(sql, columnIndexes);
                 jdbcPooledConnection.putCachedStatement(cacheKey, cachedStmt);
@@ -329,6 +341,7 @@ public class ConnectionJavaProxy extends JavaProxyBase<Connection> implements Po
         else {
             PreparedStatement stmt = delegate.prepareStatement(sql, columnIndexes);
             jdbcPooledConnection.registerUncachedStatement(stmt);
+            tracePrepared(stmt, sql);
             PreparedStatement statementProxy = JdbcProxyFactory.INSTANCE.getProxyPreparedStatement(jdbcPooledConnection, stmt, null);
             return statementProxy;
         }
@@ -338,8 +351,9 @@ public class ConnectionJavaProxy extends JavaProxyBase<Connection> implements Po
         enlistResource();
 
         if (useStatementCache) {
-            CacheKey cacheKey = new CacheKey(sql, columnNames);
+            CacheKey cacheKey = jdbcPooledConnection.internCacheKey(new CacheKey(sql, columnNames));
             PreparedStatement cachedStmt = jdbcPooledConnection.getCachedStatement(cacheKey);
+            traceCacheAccess(sql, cachedStmt != null);
             if (cachedStmt == null) {
                 cachedStmt = delegate.prepareStatement(sql, columnNames);
                 jdbcPooledConnection.putCachedStatement(cacheKey, cachedStmt);
@@ -350,6 +364,7 @@ public class ConnectionJavaProxy extends JavaProxyBase<Connection> implements Po
         else {
             PreparedStatement stmt = delegate.prepareStatement(sql, columnNames);
             jdbcPooledConnection.registerUncachedStatement(stmt);
+            tracePrepared(stmt, sql);
             PreparedStatement statementProxy = JdbcProxyFactory.INSTANCE.getProxyPreparedStatement(jdbcPooledConnection, stmt, null);
             return statementProxy;
         }
@@ -392,10 +407,20 @@ public class ConnectionJavaProxy extends JavaProxyBase<Connection> implements Po
         } // if getAutomaticEnlistingEnabled
     }
 
+    private void tracePrepared(Statement statement, String sql) {
+        if (tracer != null)
+            tracer.statementPrepared(statement, sql);
+    }
+
+    private void traceCacheAccess(String sql, boolean hit) {
+        if (tracer != null)
+            tracer.statementCacheAccessed(sql, hit);
+    }
+
     /* Overridden methods of JavaProxyBase */
 
     @Override
-    protected Map<String, Method> getMethodMap() {
-        return selfMethodMap;
+    protected DispatchTable getDispatchTable() {
+        return dispatchTable;
     }
 }
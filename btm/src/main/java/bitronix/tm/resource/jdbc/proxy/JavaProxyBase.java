@@ -20,6 +20,7 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -34,7 +35,14 @@ public abstract class JavaProxyBase<T> implements InvocationHandler {
 
     protected T delegate;
 
-    protected abstract Map<String, Method> getMethodMap();
+    /**
+     * @return the dispatch table of the concrete proxy class.
+     */
+    protected abstract DispatchTable getDispatchTable();
+
+    protected Map<String, Method> getMethodMap() {
+        return getDispatchTable().getMethodMap();
+    }
 
     @SuppressWarnings("unchecked")
 	protected T getProxy() {
@@ -44,12 +52,12 @@ public abstract class JavaProxyBase<T> implements InvocationHandler {
     @SuppressWarnings("unchecked")
     @Override
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-    	if (Proxy.isProxyClass(proxy.getClass())) {
+    	if (proxy != this.proxy && proxy != this && Proxy.isProxyClass(proxy.getClass())) {
     		this.proxy = (T) proxy;
     	}
 
         try {
-            Method ourMethod = getMethodMap().get(getMethodKey(method));
+            Method ourMethod = getDispatchTable().lookup(method);
             if (ourMethod != null) {
                 return ourMethod.invoke(this, args);
             }
@@ -88,6 +96,68 @@ public abstract class JavaProxyBase<T> implements InvocationHandler {
         return key;
     }
 
+    /**
+     * Maps the methods of the proxied interfaces to the methods of a proxy class overriding them. The table is
+     * indexed by {@link Method} identity: a {@link Proxy} always passes the same instance for a given method, so
+     * after the first call of each method the lookup neither builds a key string nor compares one.
+     * <p>The table is built once per proxy class and filled lazily; it is copied on write as the set of methods
+     * of an interface is small and stops growing quickly.</p>
+     */
+    protected static final class DispatchTable {
+        private static final Method PASSTHROUGH;
+        static {
+            try {
+                PASSTHROUGH = DispatchTable.class.getDeclaredMethod("passthrough");
+            } catch (NoSuchMethodException ex) {
+                throw new ExceptionInInitializerError(ex);
+            }
+        }
+
+        private final Map<String, Method> methodMap;
+        private volatile Map<Method, Method> dispatch = new IdentityHashMap<Method, Method>();
+
+        public DispatchTable(Class<?> clazz) {
+            this.methodMap = createMethodMap(clazz);
+        }
+
+        /**
+         * @param method the invoked method.
+         * @return the method of the proxy class overriding it, or null if the call must go to the delegate.
+         */
+        public Method lookup(Method method) {
+            Method target = dispatch.get(method);
+            if (target == null) {
+                target = resolve(method);
+            }
+            return target == PASSTHROUGH ? null : target;
+        }
+
+        private synchronized Method resolve(Method method) {
+            Method target = dispatch.get(method);
+            if (target != null) {
+                return target;
+            }
+
+            target = methodMap.get(getMethodKey(method));
+            if (target == null) {
+                target = PASSTHROUGH;
+            }
+            Map<Method, Method> copy = new IdentityHashMap<Method, Method>(dispatch);
+            copy.put(method, target);
+            dispatch = copy;
+            return target;
+        }
+
+        public Map<String, Method> getMethodMap() {
+            return methodMap;
+        }
+
+        @SuppressWarnings("unused")
+        private static void passthrough() {
+            // marker of the methods which are not overridden
+        }
+    }
+
     protected static boolean isWrapperFor(Object obj, Class<?> param) {
         try {
             Method isWrapperForMethod = obj.getClass().getMethod("isWrapperFor", Class.class);
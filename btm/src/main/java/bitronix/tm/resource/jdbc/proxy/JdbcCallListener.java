@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.resource.jdbc.proxy;
+
+/**
+ * Listener of the JDBC calls made through the connections of a PoolingDataSource which has JDBC call tracing
+ * enabled. Implementations are called on the application thread making the call, right after it completed: they
+ * must be fast and thread-safe.
+ * <p>The SQL passed to the listener is the statement's shape: its string and numeric literals are replaced by
+ * question marks and its whitespace collapsed, so it can safely be used as an aggregation key.</p>
+ */
+public interface JdbcCallListener {
+
+    /**
+     * Called when a statement execution completed, successfully or not.
+     * @param uniqueName the PoolingDataSource unique name.
+     * @param sql the executed statement's shape.
+     * @param elapsedNanos the execution time in nanoseconds.
+     */
+    public void onExecute(String uniqueName, String sql, long elapsedNanos);
+
+    /**
+     * Called when a result set has been read until its end or closed.
+     * @param uniqueName the PoolingDataSource unique name.
+     * @param sql the shape of the statement which returned the result set.
+     * @param rows the amount of rows read from the result set.
+     */
+    public void onFetch(String uniqueName, String sql, long rows);
+
+    /**
+     * Called when a prepared statement is looked up in the statement cache.
+     * @param uniqueName the PoolingDataSource unique name.
+     * @param sql the prepared statement's shape.
+     * @param hit true if the statement was found in the cache, false if it had to be prepared.
+     */
+    public void onStatementCacheAccess(String uniqueName, String sql, boolean hit);
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.resource.jdbc.proxy;
+
+import bitronix.tm.utils.LatencyStatistics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Execution statistics of one SQL shape, ie: of all the statements which only differ by their literal values.
+ * <p>Execution times are recorded in a {@link LatencyStatistics}, like the pool's wait and creation times, over a
+ * window of the {@link #WINDOW_SIZE} most recent executions.</p>
+ * <p>This class is thread-safe.</p>
+ */
+public final class JdbcCallStatistics {
+
+    /**
+     * Amount of most recent executions the percentiles are computed on. It is kept below the pool statistics' window
+     * as a tracer may hold up to {@link JdbcCallTracer#MAX_TRACED_STATEMENTS} of these.
+     */
+    public static final int WINDOW_SIZE = 128;
+
+    private final String sql;
+    private final LatencyStatistics executionTimes = new LatencyStatistics(WINDOW_SIZE);
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong rowsFetched = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+
+    JdbcCallStatistics(String sql) {
+        this.sql = sql;
+    }
+
+    void recordExecution(long elapsedNanos) {
+        executionTimes.record(elapsedNanos);
+        totalNanos.addAndGet(elapsedNanos);
+    }
+
+    void recordRows(long rows) {
+        rowsFetched.addAndGet(rows);
+    }
+
+    void recordCacheAccess(boolean hit) {
+        if (hit)
+            cacheHits.incrementAndGet();
+        else
+            cacheMisses.incrementAndGet();
+    }
+
+    /**
+     * @return the SQL shape, with literals replaced by question marks.
+     */
+    public String getSql() {
+        return sql;
+    }
+
+    /**
+     * @return the amount of executions.
+     */
+    public long getExecutionCount() {
+        return executionTimes.getCount();
+    }
+
+    /**
+     * @return the cumulated execution time in microseconds.
+     */
+    public long getTotalTimeMicros() {
+        return totalNanos.get() / 1000L;
+    }
+
+    /**
+     * @return the longest execution time in microseconds.
+     */
+    public long getMaxTimeMicros() {
+        return executionTimes.getMax() / 1000L;
+    }
+
+    /**
+     * Compute a percentile of the most recent execution times.
+     * @param percentile the percentile to compute, between 0 (exclusive) and 100 (inclusive).
+     * @return the execution time in microseconds at the requested percentile or 0 if nothing was recorded yet.
+     * @see LatencyStatistics#getPercentile(double)
+     */
+    public long getPercentileMicros(double percentile) {
+        return executionTimes.getPercentile(percentile) / 1000L;
+    }
+
+    /**
+     * @return the amount of rows read from the result sets returned by the executions.
+     */
+    public long getRowsFetched() {
+        return rowsFetched.get();
+    }
+
+    /**
+     * @return the amount of times the statement was found in the prepared statement cache.
+     */
+    public long getCacheHitCount() {
+        return cacheHits.get();
+    }
+
+    /**
+     * @return the amount of times the statement had to be prepared as it was not in the prepared statement cache.
+     */
+    public long getCacheMissCount() {
+        return cacheMisses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getExecutionCount() + " p50=" + getPercentileMicros(50.0) + "us p95=" + getPercentileMicros(95.0) +
+                "us p99=" + getPercentileMicros(99.0) + "us max=" + getMaxTimeMicros() + "us rows=" + getRowsFetched() +
+                " cacheHits=" + getCacheHitCount() + " cacheMisses=" + getCacheMissCount() + " sql=" + sql;
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.resource.jdbc.proxy;
+
+import bitronix.tm.resource.jdbc.JdbcPooledConnection;
+import bitronix.tm.resource.jdbc.PoolingDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the JDBC calls made through the connections of a pool: per SQL shape execution counts and latency
+ * percentiles, rows fetched and prepared statement cache hits and misses. The recorded calls are also reported to
+ * the pool's {@link JdbcCallListener}s.
+ * <p>A tracer is only created when {@link PoolingDataSource#isTraceJdbcCalls()} is true, the statement proxies
+ * skip all the bookkeeping otherwise.</p>
+ * <p>This class is thread-safe.</p>
+ */
+public class JdbcCallTracer implements JdbcCallTracerMBean {
+
+    private final static Logger log = LoggerFactory.getLogger(JdbcCallTracer.class);
+
+    /**
+     * Maximum amount of distinct SQL shapes tracked, the executions of further shapes are all accounted under
+     * {@link #OTHER_SQL}.
+     */
+    public static final int MAX_TRACED_STATEMENTS = 1024;
+    public static final String OTHER_SQL = "<other>";
+    public static final String UNKNOWN_SQL = "<unknown>";
+
+    private static final int MAX_REMEMBERED_SQL = MAX_TRACED_STATEMENTS * 4;
+    private static final int TOP_STATEMENTS = 10;
+
+    /*
+     * The result set proxies are created by the configured JdbcProxyFactory, getRowCountingProxy() hands them their
+     * row counter through this thread local. countingRows spares the lookup as long as no pool is traced.
+     */
+    private static final ThreadLocal<RowCounter> pendingRowCounter = new ThreadLocal<RowCounter>();
+    private static volatile boolean countingRows;
+
+    private final String uniqueName;
+    private final List<JdbcCallListener> listeners;
+    private final ConcurrentMap<String, JdbcCallStatistics> statisticsBySql = new ConcurrentHashMap<String, JdbcCallStatistics>();
+    private final ConcurrentMap<String, JdbcCallStatistics> statisticsByShape = new ConcurrentHashMap<String, JdbcCallStatistics>();
+    private final Map<Statement, String> preparedSql = Collections.synchronizedMap(new WeakHashMap<Statement, String>());
+    private final AtomicLong executionCount = new AtomicLong();
+    private final AtomicLong rowsFetched = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+
+    /**
+     * Create a new tracer.
+     * @param uniqueName the unique name of the traced pool.
+     * @param listeners the listeners to report the calls to, may be modified later on.
+     */
+    public JdbcCallTracer(String uniqueName, List<JdbcCallListener> listeners) {
+        this.uniqueName = uniqueName;
+        this.listeners = listeners;
+    }
+
+    static JdbcCallTracer of(JdbcPooledConnection jdbcPooledConnection) {
+        if (jdbcPooledConnection == null)
+            return null;
+        PoolingDataSource poolingDataSource = jdbcPooledConnection.getPoolingDataSource();
+        return poolingDataSource == null ? null : poolingDataSource.getJdbcCallTracer();
+    }
+
+    /* Hooks called by the proxies */
+
+    /**
+     * Remember the SQL an uncached statement was prepared with until its proxy gets created.
+     */
+    void statementPrepared(Statement statement, String sql) {
+        preparedSql.put(statement, sql);
+    }
+
+    String takePreparedSql(Statement statement) {
+        return preparedSql.remove(statement);
+    }
+
+    void statementCacheAccessed(String sql, boolean hit) {
+        JdbcCallStatistics statistics = statisticsOf(sql);
+        statistics.recordCacheAccess(hit);
+        if (hit)
+            cacheHits.incrementAndGet();
+        else
+            cacheMisses.incrementAndGet();
+
+        for (JdbcCallListener listener : listeners) {
+            try {
+                listener.onStatementCacheAccess(uniqueName, statistics.getSql(), hit);
+            } catch (RuntimeException ex) {
+                log.warn("JdbcCallListener.onStatementCacheAccess() failed for " + listener, ex);
+            }
+        }
+    }
+
+    void statementExecuted(String sql, long elapsedNanos) {
+        JdbcCallStatistics statistics = statisticsOf(sql);
+        statistics.recordExecution(elapsedNanos);
+        executionCount.incrementAndGet();
+
+        for (JdbcCallListener listener : listeners) {
+            try {
+                listener.onExecute(uniqueName, statistics.getSql(), elapsedNanos);
+            } catch (RuntimeException ex) {
+                log.warn("JdbcCallListener.onExecute() failed for " + listener, ex);
+            }
+        }
+    }
+
+    void rowsFetched(String sql, long rows) {
+        JdbcCallStatistics statistics = statisticsOf(sql);
+        statistics.recordRows(rows);
+        rowsFetched.addAndGet(rows);
+
+        for (JdbcCallListener listener : listeners) {
+            try {
+                listener.onFetch(uniqueName, statistics.getSql(), rows);
+            } catch (RuntimeException ex) {
+                log.warn("JdbcCallListener.onFetch() failed for " + listener, ex);
+            }
+        }
+    }
+
+    /**
+     * Create the proxy of a query's result set, which counts the rows read from it.
+     * @param sql the SQL of the query.
+     * @param statement the statement proxy which returned the result set.
+     * @param resultSet the driver's result set.
+     * @return the result set proxy.
+     */
+    ResultSet getRowCountingProxy(String sql, Statement statement, ResultSet resultSet) {
+        countingRows = true;
+        pendingRowCounter.set(new RowCounter(this, sql));
+        try {
+            return JdbcProxyFactory.INSTANCE.getProxyResultSet(statement, resultSet);
+        } finally {
+            pendingRowCounter.remove();
+        }
+    }
+
+    /**
+     * Called by a {@link ResultSetJavaProxy} being initialized.
+     * @return the row counter of the result set proxy created by {@link #getRowCountingProxy} on the current thread,
+     *         null if that result set's rows are not counted.
+     */
+    static RowCounter takeRowCounter() {
+        if (!countingRows)
+            return null;
+        RowCounter rowCounter = pendingRowCounter.get();
+        if (rowCounter != null)
+            pendingRowCounter.remove();
+        return rowCounter;
+    }
+
+    private JdbcCallStatistics statisticsOf(String sql) {
+        if (sql == null)
+            sql = UNKNOWN_SQL;
+
+        JdbcCallStatistics statistics = statisticsBySql.get(sql);
+        if (statistics != null)
+            return statistics;
+
+        String shape = shapeOf(sql);
+        statistics = statisticsByShape.get(shape);
+        if (statistics == null) {
+            if (statisticsByShape.size() >= MAX_TRACED_STATEMENTS)
+                shape = OTHER_SQL;
+            JdbcCallStatistics newStatistics = new JdbcCallStatistics(shape);
+            statistics = statisticsByShape.putIfAbsent(shape, newStatistics);
+            if (statistics == null)
+                statistics = newStatistics;
+        }
+        if (statisticsBySql.size() < MAX_REMEMBERED_SQL)
+            statisticsBySql.put(sql, statistics);
+        return statistics;
+    }
+
+    /**
+     * Compute the shape of a SQL statement: string and numeric literals are replaced by question marks and runs of
+     * whitespace by a single space.
+     * @param sql the SQL statement.
+     * @return the statement's shape.
+     */
+    static String shapeOf(String sql) {
+        StringBuilder sb = new StringBuilder(sql.length());
+        boolean pendingSpace = false;
+        int i = 0;
+        while (i < sql.length()) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                pendingSpace = sb.length() > 0;
+                i++;
+                continue;
+            }
+            if (pendingSpace) {
+                sb.append(' ');
+                pendingSpace = false;
+            }
+
+            if (c == '\'') {
+                i++;
+                while (i < sql.length()) {
+                    if (sql.charAt(i) == '\'') {
+                        if (i + 1 < sql.length() && sql.charAt(i + 1) == '\'') {
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    i++;
+                }
+                sb.append('?');
+                i++;
+            }
+            else if (Character.isDigit(c) && !endsWithIdentifierPart(sb)) {
+                while (i < sql.length() && (Character.isDigit(sql.charAt(i)) || sql.charAt(i) == '.'))
+                    i++;
+                sb.append('?');
+            }
+            else {
+                sb.append(c);
+                i++;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean endsWithIdentifierPart(StringBuilder sb) {
+        if (sb.length() == 0)
+            return false;
+        char last = sb.charAt(sb.length() - 1);
+        return Character.isLetterOrDigit(last) || last == '_' || last == '$';
+    }
+
+    /* Statistics accessors */
+
+    /**
+     * @param sql a SQL statement.
+     * @return the statistics of the statement's shape, or null if no such statement was traced.
+     */
+    public JdbcCallStatistics getStatistics(String sql) {
+        JdbcCallStatistics statistics = statisticsBySql.get(sql);
+        return statistics != null ? statistics : statisticsByShape.get(shapeOf(sql));
+    }
+
+    /**
+     * @return the statistics of all the traced SQL shapes.
+     */
+    public List<JdbcCallStatistics> getStatistics() {
+        return new ArrayList<JdbcCallStatistics>(statisticsByShape.values());
+    }
+
+    @Override
+    public long getExecutionCount() {
+        return executionCount.get();
+    }
+
+    @Override
+    public long getRowsFetched() {
+        return rowsFetched.get();
+    }
+
+    @Override
+    public long getStatementCacheHitCount() {
+        return cacheHits.get();
+    }
+
+    @Override
+    public long getStatementCacheMissCount() {
+        return cacheMisses.get();
+    }
+
+    @Override
+    public int getTracedStatementCount() {
+        return statisticsByShape.size();
+    }
+
+    @Override
+    public String[] getSlowestStatements() {
+        return top(new Comparator<JdbcCallStatistics>() {
+            @Override
+            public int compare(JdbcCallStatistics s1, JdbcCallStatistics s2) {
+                long p1 = s1.getPercentileMicros(95.0);
+                long p2 = s2.getPercentileMicros(95.0);
+                return p1 < p2 ? 1 : (p1 == p2 ? 0 : -1);
+            }
+        });
+    }
+
+    @Override
+    public String[] getMostExecutedStatements() {
+        return top(new Comparator<JdbcCallStatistics>() {
+            @Override
+            public int compare(JdbcCallStatistics s1, JdbcCallStatistics s2) {
+                long c1 = s1.getExecutionCount();
+                long c2 = s2.getExecutionCount();
+                return c1 < c2 ? 1 : (c1 == c2 ? 0 : -1);
+            }
+        });
+    }
+
+    private String[] top(Comparator<JdbcCallStatistics> comparator) {
+        List<JdbcCallStatistics> statistics = getStatistics();
+        Collections.sort(statistics, comparator);
+        int size = Math.min(TOP_STATEMENTS, statistics.size());
+        String[] result = new String[size];
+        for (int i = 0; i < size; i++)
+            result[i] = statistics.get(i).toString();
+        return result;
+    }
+
+    @Override
+    public void reset() {
+        statisticsBySql.clear();
+        statisticsByShape.clear();
+        executionCount.set(0L);
+        rowsFetched.set(0L);
+        cacheHits.set(0L);
+        cacheMisses.set(0L);
+    }
+
+    @Override
+    public String toString() {
+        return "a JdbcCallTracer of " + uniqueName + " with " + getTracedStatementCount() + " traced statement(s)";
+    }
+
+    /**
+     * Counts the rows read from a result set and reports them once it has been read until its end or closed.
+     */
+    static final class RowCounter {
+        private final JdbcCallTracer tracer;
+        private final String sql;
+        private long rows;
+        private boolean reported;
+
+        private RowCounter(JdbcCallTracer tracer, String sql) {
+            this.tracer = tracer;
+            this.sql = sql;
+        }
+
+        void next(boolean hasRow) {
+            if (reported)
+                return;
+            if (hasRow)
+                rows++;
+            else
+                report();
+        }
+
+        void close() {
+            if (!reported)
+                report();
+        }
+
+        private void report() {
+            reported = true;
+            tracer.rowsFetched(sql, rows);
+        }
+    }
+}
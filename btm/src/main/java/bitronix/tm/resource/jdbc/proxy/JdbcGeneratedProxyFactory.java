@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.resource.jdbc.proxy;
+
+import bitronix.tm.resource.jdbc.JdbcPooledConnection;
+import bitronix.tm.resource.jdbc.LruStatementCache.CacheKey;
+import bitronix.tm.resource.jdbc.lrc.LrcXAResource;
+import bitronix.tm.utils.ClassLoaderUtils;
+
+import javax.sql.XAConnection;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+/**
+ * This class uses the JDBC proxy classes generated at build time by {@link JdbcProxyClassGenerator}. They directly
+ * call the delegate so that a JDBC call costs a plain virtual call, like with {@link JdbcJavassistProxyFactory},
+ * but neither bytecode generation at startup nor Javassist at runtime is needed.
+ * <p>The generated classes implement the JDBC interfaces of the JDK the build ran on. This factory refuses to
+ * initialize when a method of the runtime JDK's interfaces is not delegated by them, for instance when running on
+ * a more recent JDBC version than the one of the build.</p>
+ */
+public class JdbcGeneratedProxyFactory implements JdbcProxyFactory {
+
+    /**
+     * Suffix of the names of the classes generated at build time, replacing the JavaProxy suffix of their superclass.
+     */
+    static final String CLASS_NAME_SUFFIX = "GeneratedProxy";
+
+    private static final String PROXY_PACKAGE = JdbcGeneratedProxyFactory.class.getPackage().getName() + ".";
+
+    private final Constructor<Connection> proxyConnectionConstructor;
+    private final Constructor<Statement> proxyStatementConstructor;
+    private final Constructor<CallableStatement> proxyCallableStatementConstructor;
+    private final Constructor<PreparedStatement> proxyPreparedStatementConstructor;
+    private final Constructor<ResultSet> proxyResultSetConstructor;
+
+    // For LRC we just use the standard Java Proxies
+    private final JdbcJavaProxyFactory lrcProxyFactory;
+
+    JdbcGeneratedProxyFactory() throws ClassNotFoundException, NoSuchMethodException {
+        proxyConnectionConstructor = loadProxyClass(Connection.class, "Connection").getConstructor(JdbcPooledConnection.class, Connection.class);
+        proxyStatementConstructor = loadProxyClass(Statement.class, "Statement").getConstructor(JdbcPooledConnection.class, Statement.class);
+        proxyCallableStatementConstructor = loadProxyClass(CallableStatement.class, "CallableStatement").getConstructor(JdbcPooledConnection.class, CallableStatement.class);
+        proxyPreparedStatementConstructor = loadProxyClass(PreparedStatement.class, "PreparedStatement").getConstructor(JdbcPooledConnection.class, PreparedStatement.class, CacheKey.class);
+        proxyResultSetConstructor = loadProxyClass(ResultSet.class, "ResultSet").getConstructor(Statement.class, ResultSet.class);
+
+        lrcProxyFactory = new JdbcJavaProxyFactory();
+    }
+
+    /**
+     * Load a generated proxy class and check that it delegates all the methods of the JDBC interface.
+     * @param primaryInterface the JDBC interface the class implements.
+     * @param prefix the prefix of the class name.
+     * @return the generated class.
+     * @throws ClassNotFoundException if the class was not generated or does not delegate all the methods.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> Class<T> loadProxyClass(Class<T> primaryInterface, String prefix) throws ClassNotFoundException {
+        String className = PROXY_PACKAGE + prefix + CLASS_NAME_SUFFIX;
+        Class<?> proxyClass = ClassLoaderUtils.loadClass(className);
+        if (!primaryInterface.isAssignableFrom(proxyClass))
+            throw new ClassNotFoundException(className + " does not implement " + primaryInterface.getName());
+
+        for (Method method : primaryInterface.getMethods()) {
+            try {
+                Method implementation = proxyClass.getMethod(method.getName(), method.getParameterTypes());
+                if (implementation.getDeclaringClass().isInterface())
+                    throw new ClassNotFoundException(className + " was generated for another JDBC version, it does not delegate " + method);
+            } catch (NoSuchMethodException ex) {
+                throw new ClassNotFoundException(className + " was generated for another JDBC version, it does not delegate " + method, ex);
+            }
+        }
+        return (Class<T>) proxyClass;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Connection getProxyConnection(JdbcPooledConnection jdbcPooledConnection, Connection connection) {
+        try {
+            return proxyConnectionConstructor.newInstance(jdbcPooledConnection, connection);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Statement getProxyStatement(JdbcPooledConnection jdbcPooledConnection, Statement statement) {
+        try {
+            return proxyStatementConstructor.newInstance(jdbcPooledConnection, statement);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public CallableStatement getProxyCallableStatement(JdbcPooledConnection jdbcPooledConnection, CallableStatement statement) {
+        try {
+            return proxyCallableStatementConstructor.newInstance(jdbcPooledConnection, statement);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public PreparedStatement getProxyPreparedStatement(JdbcPooledConnection jdbcPooledConnection, PreparedStatement statement, CacheKey cacheKey) {
+        try {
+            return proxyPreparedStatementConstructor.newInstance(jdbcPooledConnection, statement, cacheKey);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public ResultSet getProxyResultSet(Statement statement, ResultSet resultSet) {
+        try {
+            return proxyResultSetConstructor.newInstance(statement, resultSet);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public XAConnection getProxyXaConnection(Connection connection) {
+        return lrcProxyFactory.getProxyXaConnection(connection);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Connection getProxyConnection(LrcXAResource xaResource, Connection connection) {
+        return lrcProxyFactory.getProxyConnection(xaResource, connection);
+    }
+}
@@ -21,18 +21,9 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.Statement;
-import java.util.HashSet;
-import java.util.Set;
 
 import javassist.CannotCompileException;
-import javassist.ClassClassPath;
-import javassist.ClassMap;
-import javassist.ClassPool;
 import javassist.CtClass;
-import javassist.CtConstructor;
-import javassist.CtMethod;
-import javassist.CtNewConstructor;
-import javassist.CtNewMethod;
 import javassist.NotFoundException;
 
 import javax.sql.XAConnection;
@@ -44,14 +35,14 @@ import bitronix.tm.utils.ClassLoaderUtils;
 
 /**
  * This class generates JDBC proxy classes using Javassist bytecode generated
- * implementations.  This is the most efficient proxy factory.
+ * implementations at runtime.  This is the most efficient proxy factory after
+ * {@link JdbcGeneratedProxyFactory}, which uses the same classes generated at build time.
  *
  * @author Brett Wooldridge
  */
 public class JdbcJavassistProxyFactory implements JdbcProxyFactory {
 
-    private final ClassMap classMap;
-    private ClassPool classPool;
+    private JdbcProxyClassGenerator generator;
 
     private Constructor<Connection> proxyConnectionConstructor;
     private Constructor<Statement> proxyStatementConstructor;
@@ -63,11 +54,7 @@ public class JdbcJavassistProxyFactory implements JdbcProxyFactory {
     private final JdbcJavaProxyFactory lrcProxyFactory;
 
     JdbcJavassistProxyFactory() {
-        classMap = new ClassMap();
-        ClassPool defaultPool = ClassPool.getDefault();
-        classPool = new ClassPool(defaultPool);
-        classPool.insertClassPath(new ClassClassPath(this.getClass()));
-        classPool.childFirstLookup = true;
+        generator = new JdbcProxyClassGenerator("JavassistProxy");
 
         createProxyConnectionClass();
         createProxyStatementClass();
@@ -77,9 +64,8 @@ public class JdbcJavassistProxyFactory implements JdbcProxyFactory {
 
         lrcProxyFactory = new JdbcJavaProxyFactory();
 
-        // Clear the map, we don't need it anymore
-        classMap.clear();
-        classPool = null;
+        // Release the class pool, we don't need it anymore
+        generator = null;
     }
 
     /** {@inheritDoc} */
@@ -210,58 +196,9 @@ public class JdbcJavassistProxyFactory implements JdbcProxyFactory {
 
     @SuppressWarnings("unchecked")
     private <T> Class<T> generateProxyClass(Class<T> primaryInterface, Class<?> superClass)
-        throws NotFoundException, CannotCompileException, NoSuchMethodException, SecurityException {
-
-        // Make a new class that extends one of the JavaProxy classes (ie. superClass); use the name to XxxJavassistProxy instead of XxxJavaProxy
-        String superClassName = superClass.getName();
-        CtClass superClassCt = classPool.getCtClass(superClassName);
-        CtClass targetCt = classPool.makeClass(superClassName.replace("JavaProxy", "JavassistProxy"), superClassCt);
-
-        // Generate constructors that simply call super(..)
-        for (CtConstructor constructor : superClassCt.getConstructors()) {
-            CtConstructor ctConstructor = CtNewConstructor.make(constructor.getParameterTypes(), constructor.getExceptionTypes(), targetCt);
-            targetCt.addConstructor(ctConstructor);
-        }
-
-        // Make a set of method signatures we inherit implementation for, so we don't generate delegates for these
-        Set<String> superSigs = new HashSet<String>();
-        for (CtMethod method : superClassCt.getMethods()) {
-            superSigs.add(method.getName() + method.getSignature());
-        }
-
-        Set<String> methods = new HashSet<String>();
-        Set<Class<?>> interfaces = ClassLoaderUtils.getAllInterfaces(primaryInterface);
-        for (Class<?> intf : interfaces) {
-            CtClass intfCt = classPool.getCtClass(intf.getName());
-            targetCt.addInterface(intfCt);
-            for (CtMethod intfMethod : intfCt.getDeclaredMethods()) {
-                if (superSigs.contains(intfMethod.getName() + intfMethod.getSignature())) {
-                    // don't generate delegates for methods we override
-                    continue;
-                }
-
-                CtMethod method = CtNewMethod.copy(intfMethod, targetCt, classMap);
-                // Ignore already added methods that come from other interfaces
-                if (methods.contains(intfMethod.getName() + intfMethod.getSignature())) {
-                	continue;
-                }
-
-                methods.add(intfMethod.getName() + intfMethod.getSignature());
-
-                // Generate a method that simply invokes the same method on the delegate
-                StringBuilder call = new StringBuilder("{");
-                if ( method.getReturnType() != CtClass.voidType) {
-                    call.append("return ");
-                }
-                call.append("((").append(primaryInterface.getName()).append(')'); // cast to primary interface
-                call.append("delegate).");
-                call.append(method.getName()).append("($$);");
-                call.append('}');
-                method.setBody(call.toString());
-                targetCt.addMethod(method);
-            }
-        }
+        throws NotFoundException, CannotCompileException {
 
+        CtClass targetCt = generator.generateProxyClass(primaryInterface, superClass);
         return targetCt.toClass(ClassLoaderUtils.getClassLoader(), null);
     }
 }
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.resource.jdbc.proxy;
+
+import bitronix.tm.utils.ClassLoaderUtils;
+import javassist.CannotCompileException;
+import javassist.ClassClassPath;
+import javassist.ClassMap;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtConstructor;
+import javassist.CtMethod;
+import javassist.CtNewConstructor;
+import javassist.CtNewMethod;
+import javassist.NotFoundException;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Generates the JDBC proxy classes: subclasses of the XxxJavaProxy classes which implement the JDBC interface by
+ * directly calling the delegate for each method the JavaProxy class does not override.
+ * <p>The classes are either generated at runtime by {@link JdbcJavassistProxyFactory} or at build time by running
+ * {@link #main(String[])}, in which case they are used by {@link JdbcGeneratedProxyFactory} and Javassist is
+ * not needed at runtime.</p>
+ *
+ * @author Brett Wooldridge
+ */
+public class JdbcProxyClassGenerator {
+
+    private final ClassPool classPool;
+    private final ClassMap classMap;
+    private final String suffix;
+
+    /**
+     * Create a generator.
+     * @param suffix the suffix of the generated classes names, replacing the JavaProxy suffix of their superclass.
+     */
+    public JdbcProxyClassGenerator(String suffix) {
+        this.suffix = suffix;
+        this.classMap = new ClassMap();
+        this.classPool = new ClassPool(ClassPool.getDefault());
+        classPool.insertClassPath(new ClassClassPath(this.getClass()));
+        classPool.childFirstLookup = true;
+    }
+
+    /**
+     * Generate the proxy classes of all the JDBC interfaces the pool wraps.
+     * @return the generated classes, to be loaded or written.
+     * @throws NotFoundException if a class cannot be found.
+     * @throws CannotCompileException if a class cannot be generated.
+     */
+    public CtClass[] generateProxyClasses() throws NotFoundException, CannotCompileException {
+        return new CtClass[] {
+                generateProxyClass(Connection.class, ConnectionJavaProxy.class),
+                generateProxyClass(Statement.class, StatementJavaProxy.class),
+                generateProxyClass(CallableStatement.class, CallableStatementJavaProxy.class),
+                generateProxyClass(PreparedStatement.class, PreparedStatementJavaProxy.class),
+                generateProxyClass(ResultSet.class, ResultSetJavaProxy.class)
+        };
+    }
+
+    /**
+     * Create a proxy class: class XxxSuffix extends XxxJavaProxy implements java.sql.Xxx
+     * @param primaryInterface the JDBC interface to implement.
+     * @param superClass the JavaProxy class to extend.
+     * @return the generated class.
+     * @throws NotFoundException if a class cannot be found.
+     * @throws CannotCompileException if the class cannot be generated.
+     */
+    public CtClass generateProxyClass(Class<?> primaryInterface, Class<?> superClass) throws NotFoundException, CannotCompileException {
+        // Make a new class that extends one of the JavaProxy classes (ie. superClass); use the name to XxxSuffix instead of XxxJavaProxy
+        String superClassName = superClass.getName();
+        CtClass superClassCt = classPool.getCtClass(superClassName);
+        CtClass targetCt = classPool.makeClass(superClassName.replace("JavaProxy", suffix), superClassCt);
+        targetCt.getClassFile().setMajorVersion(superClassCt.getClassFile().getMajorVersion());
+
+        // Generate constructors that simply call super(..)
+        for (CtConstructor constructor : superClassCt.getConstructors()) {
+            CtConstructor ctConstructor = CtNewConstructor.make(constructor.getParameterTypes(), constructor.getExceptionTypes(), targetCt);
+            targetCt.addConstructor(ctConstructor);
+        }
+
+        // Make a set of method signatures we inherit implementation for, so we don't generate delegates for these
+        Set<String> superSigs = new HashSet<String>();
+        for (CtMethod method : superClassCt.getMethods()) {
+            superSigs.add(method.getName() + method.getSignature());
+        }
+
+        Set<String> methods = new HashSet<String>();
+        Set<Class<?>> interfaces = ClassLoaderUtils.getAllInterfaces(primaryInterface);
+        for (Class<?> intf : interfaces) {
+            CtClass intfCt = classPool.getCtClass(intf.getName());
+            targetCt.addInterface(intfCt);
+            for (CtMethod intfMethod : intfCt.getDeclaredMethods()) {
+                if (superSigs.contains(intfMethod.getName() + intfMethod.getSignature())) {
+                    // don't generate delegates for methods we override
+                    continue;
+                }
+
+                CtMethod method = CtNewMethod.copy(intfMethod, targetCt, classMap);
+                // Ignore already added methods that come from other interfaces
+                if (methods.contains(intfMethod.getName() + intfMethod.getSignature())) {
+                	continue;
+                }
+
+                methods.add(intfMethod.getName() + intfMethod.getSignature());
+
+                // Generate a method that simply invokes the same method on the delegate
+                StringBuilder call = new StringBuilder("{");
+                if ( method.getReturnType() != CtClass.voidType) {
+                    call.append("return ");
+                }
+                call.append("((").append(primaryInterface.getName()).append(')'); // cast to primary interface
+                call.append("delegate).");
+                call.append(method.getName()).append("($$);");
+                call.append('}');
+                method.setBody(call.toString());
+                targetCt.addMethod(method);
+            }
+        }
+
+        return targetCt;
+    }
+
+    /**
+     * Build time entry point: write the proxy classes to the given classes directory.
+     * @param args the classes directory, usually target/classes.
+     * @throws Exception if the classes cannot be generated or written.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("usage: JdbcProxyClassGenerator <classes directory>");
+            System.exit(1);
+        }
+        File outputDirectory = new File(args[0]);
+
+        JdbcProxyClassGenerator generator = new JdbcProxyClassGenerator(JdbcGeneratedProxyFactory.CLASS_NAME_SUFFIX);
+        for (CtClass ctClass : generator.generateProxyClasses()) {
+            try {
+                ctClass.writeFile(outputDirectory.getAbsolutePath());
+            } catch (IOException ex) {
+                throw new IOException("cannot write JDBC proxy class " + ctClass.getName() + " to " + outputDirectory, ex);
+            }
+            System.out.println("generated JDBC proxy class " + ctClass.getName());
+        }
+    }
+}
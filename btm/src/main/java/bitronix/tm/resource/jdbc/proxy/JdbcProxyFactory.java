@@ -62,6 +62,19 @@ public interface JdbcProxyFactory {
             try {
                 String jdbcProxyFactoryClass = TransactionManagerServices.getConfiguration().getJdbcProxyFactoryClass();
                 if ("auto".equals(jdbcProxyFactoryClass)) {
+                    try {
+                        return new JdbcGeneratedProxyFactory();
+                    }
+                    catch (ClassNotFoundException cnfe) {
+                        // proxy classes were not generated at build time or do not match this JDK's JDBC version
+                    }
+                    catch (NoSuchMethodException nsme) {
+                        // proxy classes were generated from other versions of the JavaProxy classes
+                    }
+                    catch (LinkageError le) {
+                        // proxy classes were generated against types missing from this JDK
+                    }
+
                     try {
                         ClassLoaderUtils.loadClass("javassist.CtClass");
                         jdbcProxyFactoryClass = "bitronix.tm.resource.jdbc.proxy.JdbcJavassistProxyFactory";
@@ -17,18 +17,16 @@ package bitronix.tm.resource.jdbc.proxy;
 
 import bitronix.tm.resource.jdbc.lrc.LrcXAResource;
 
-import java.lang.reflect.Method;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Savepoint;
-import java.util.Map;
 
 /**
  * @author Brett Wooldridge
  */
 public class LrcConnectionJavaProxy extends JavaProxyBase<Connection> {
 
-    private final static Map<String, Method> selfMethodMap = createMethodMap(LrcConnectionJavaProxy.class);
+    private final static DispatchTable dispatchTable = new DispatchTable(LrcConnectionJavaProxy.class);
 
     private final LrcXAResource xaResource;
 
@@ -100,7 +98,7 @@ public class LrcConnectionJavaProxy extends JavaProxyBase<Connection> {
     /* Overridden methods of JavaProxyBase */
 
     @Override
-    protected Map<String, Method> getMethodMap() {
-        return selfMethodMap;
+    protected DispatchTable getDispatchTable() {
+        return dispatchTable;
     }
 }
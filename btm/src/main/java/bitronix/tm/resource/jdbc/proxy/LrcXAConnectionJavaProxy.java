@@ -23,11 +23,9 @@ import javax.sql.ConnectionEvent;
 import javax.sql.ConnectionEventListener;
 import javax.sql.PooledConnection;
 import javax.transaction.xa.XAResource;
-import java.lang.reflect.Method;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
@@ -37,7 +35,7 @@ public class LrcXAConnectionJavaProxy extends JavaProxyBase<Connection> {
 
     private final static Logger log = LoggerFactory.getLogger(LrcXAConnectionJavaProxy.class);
 
-    private final static Map<String, Method> selfMethodMap = createMethodMap(LrcXAConnectionJavaProxy.class);
+    private final static DispatchTable dispatchTable = new DispatchTable(LrcXAConnectionJavaProxy.class);
 
     private final LrcXAResource xaResource;
     private final List<ConnectionEventListener> connectionEventListeners = new CopyOnWriteArrayList<ConnectionEventListener>();
@@ -97,7 +95,7 @@ public class LrcXAConnectionJavaProxy extends JavaProxyBase<Connection> {
     /* Overridden methods of JavaProxyBase */
 
     @Override
-    protected Map<String, Method> getMethodMap() {
-        return selfMethodMap;
+    protected DispatchTable getDispatchTable() {
+        return dispatchTable;
     }
 }
@@ -15,12 +15,10 @@
  */
 package bitronix.tm.resource.jdbc.proxy;
 
-import java.lang.reflect.Method;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
-import java.util.Map;
 
 import bitronix.tm.resource.jdbc.JdbcPooledConnection;
 import bitronix.tm.resource.jdbc.LruStatementCache.CacheKey;
@@ -30,11 +28,15 @@ import bitronix.tm.resource.jdbc.LruStatementCache.CacheKey;
  */
 public class PreparedStatementJavaProxy extends JavaProxyBase<PreparedStatement> {
 
-    private final static Map<String, Method> selfMethodMap = createMethodMap(PreparedStatementJavaProxy.class);
+    private final static DispatchTable dispatchTable = new DispatchTable(PreparedStatementJavaProxy.class);
 
     private JdbcPooledConnection jdbcPooledConnection;
+    private ResultSetTracker resultSets;
     private CacheKey cacheKey;
     private boolean pretendClosed;
+    private JdbcCallTracer tracer;
+    private String sql;
+    private boolean deferrable;
 
     public PreparedStatementJavaProxy(JdbcPooledConnection jdbcPooledConnection, PreparedStatement statement, CacheKey cacheKey) {
         initialize(jdbcPooledConnection, statement, cacheKey);
@@ -47,9 +49,16 @@ public class PreparedStatementJavaProxy extends JavaProxyBase<PreparedStatement>
     void initialize(JdbcPooledConnection jdbcPooledConnection, PreparedStatement statement, CacheKey cacheKey) {
     	this.proxy = this;
         this.jdbcPooledConnection = jdbcPooledConnection;
+        this.resultSets = new ResultSetTracker(jdbcPooledConnection);
         this.delegate = statement;
         this.cacheKey = cacheKey;
         this.pretendClosed = false;
+        this.deferrable = cacheKey != null && jdbcPooledConnection.canDeferUpdates(cacheKey);
+        this.tracer = JdbcCallTracer.of(jdbcPooledConnection);
+        if (tracer == null)
+            this.sql = null;
+        else
+            this.sql = cacheKey != null ? cacheKey.getSql() : tracer.takePreparedSql(statement);
     }
 
     @Override
@@ -65,12 +74,17 @@ public class PreparedStatementJavaProxy extends JavaProxyBase<PreparedStatement>
         }
 
         pretendClosed = true;
+        jdbcPooledConnection.flushDeferredUpdates();
 
         if (cacheKey == null) {
+            resultSets.clear();
             jdbcPooledConnection.unregisterUncachedStatement(delegate);
             delegate.close();
         }
         else {
+            // The statement stays open in the cache, close the result sets the application left open.
+            resultSets.closeAll();
+
 	        // Clear the parameters so the next use of this cached statement
 	        // doesn't pick up unexpected values.
             delegate.clearParameters();
@@ -91,35 +105,46 @@ public class PreparedStatementJavaProxy extends JavaProxyBase<PreparedStatement>
     }
 
     public ResultSet getResultSet() throws SQLException {
-    	ResultSet resultSet = delegate.getResultSet();
-    	if (resultSet == null) {
-    		return null;
-    	}
-    	return JdbcProxyFactory.INSTANCE.getProxyResultSet(this.getProxy(), resultSet);
+    	return resultSets.track(this.getProxy(), delegate.getResultSet());
     }
 
     public ResultSet executeQuery() throws SQLException {
-    	ResultSet resultSet = delegate.executeQuery();
-    	if (resultSet == null) {
-    		return null;
-    	}
-    	return JdbcProxyFactory.INSTANCE.getProxyResultSet(this.getProxy(), resultSet);
+        jdbcPooledConnection.flushDeferredUpdates();
+        ResultSet resultSet = (ResultSet) TracedCall.EXECUTE_PREPARED_QUERY.invoke(tracer, delegate, sql);
+        return resultSets.trackQuery(this.getProxy(), resultSet, sql);
     }
 
     public ResultSet executeQuery(String sql) throws SQLException {
-    	ResultSet resultSet = delegate.executeQuery(sql);
-    	if (resultSet == null) {
-    		return null;
-    	}
-    	return JdbcProxyFactory.INSTANCE.getProxyResultSet(this.getProxy(), resultSet);
+        jdbcPooledConnection.flushDeferredUpdates();
+        ResultSet resultSet = (ResultSet) TracedCall.EXECUTE_QUERY.invoke(tracer, delegate, sql);
+        return resultSets.trackQuery(this.getProxy(), resultSet, sql);
     }
 
     public ResultSet getGeneratedKeys() throws SQLException {
-    	ResultSet generatedKeys = delegate.getGeneratedKeys();
-    	if (generatedKeys == null) {
-    		return null;
-    	}
-    	return JdbcProxyFactory.INSTANCE.getProxyResultSet(this.getProxy(), generatedKeys);
+        jdbcPooledConnection.flushDeferredUpdates();
+    	return resultSets.track(this.getProxy(), delegate.getGeneratedKeys());
+    }
+
+    public int executeUpdate() throws SQLException {
+        if (deferrable && jdbcPooledConnection.deferUpdate(delegate)) {
+            return 1;
+        }
+        return (Integer) TracedCall.EXECUTE_PREPARED_UPDATE.invoke(tracer, delegate, sql);
+    }
+
+    public boolean execute() throws SQLException {
+        jdbcPooledConnection.flushDeferredUpdates();
+        return (Boolean) TracedCall.EXECUTE_PREPARED.invoke(tracer, delegate, sql);
+    }
+
+    public void addBatch() throws SQLException {
+        jdbcPooledConnection.flushDeferredUpdates();
+        delegate.addBatch();
+    }
+
+    public int[] executeBatch() throws SQLException {
+        jdbcPooledConnection.flushDeferredUpdates();
+        return (int[]) TracedCall.EXECUTE_BATCH.invoke(tracer, delegate, sql);
     }
 
     /* java.sql.Wrapper implementation */
@@ -142,7 +167,7 @@ public class PreparedStatementJavaProxy extends JavaProxyBase<PreparedStatement>
     /* Overridden methods of JavaProxyBase */
 
     @Override
-    protected Map<String, Method> getMethodMap() {
-        return selfMethodMap;
+    protected DispatchTable getDispatchTable() {
+        return dispatchTable;
     }
 }
@@ -15,20 +15,19 @@
  */
 package bitronix.tm.resource.jdbc.proxy;
 
-import java.lang.reflect.Method;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.Map;
 
 /**
  * @author Brett Wooldridge
  */
 public class ResultSetJavaProxy extends JavaProxyBase<ResultSet> {
 
-    private final static Map<String, Method> selfMethodMap = createMethodMap(ResultSetJavaProxy.class);
+    private final static DispatchTable dispatchTable = new DispatchTable(ResultSetJavaProxy.class);
 
     private Statement statement;
+    private JdbcCallTracer.RowCounter rowCounter;
 
     public ResultSetJavaProxy(Statement statement, ResultSet resultSet) {
 		initialize(statement, resultSet);
@@ -42,6 +41,7 @@ public class ResultSetJavaProxy extends JavaProxyBase<ResultSet> {
     	this.proxy = this;
         this.statement = statement;
         this.delegate = resultSet;
+        this.rowCounter = JdbcCallTracer.takeRowCounter();
     }
 
     /* Overridden methods of java.sql.ResultSet */
@@ -50,10 +50,23 @@ public class ResultSetJavaProxy extends JavaProxyBase<ResultSet> {
     	return statement;
     }
 
+    public boolean next() throws SQLException {
+        boolean hasRow = delegate.next();
+        if (rowCounter != null)
+            rowCounter.next(hasRow);
+        return hasRow;
+    }
+
+    public void close() throws SQLException {
+        if (rowCounter != null)
+            rowCounter.close();
+        delegate.close();
+    }
+
     /* Overridden methods of JavaProxyBase */
 
 	@Override
-	protected Map<String, Method> getMethodMap() {
-		return selfMethodMap;
+	protected DispatchTable getDispatchTable() {
+		return dispatchTable;
 	}
 }
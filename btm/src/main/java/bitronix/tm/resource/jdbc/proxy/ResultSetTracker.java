@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.resource.jdbc.proxy;
+
+import bitronix.tm.resource.jdbc.JdbcPooledConnection;
+import bitronix.tm.resource.jdbc.PoolingDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Hands out the result sets returned by a statement proxy: either wrapped in a result set proxy or, when the pool's
+ * {@link PoolingDataSource#isWrapResultSets()} is false, as-is while remembering them so that they can be closed
+ * together with the statement.
+ */
+final class ResultSetTracker {
+
+    private final static Logger log = LoggerFactory.getLogger(ResultSetTracker.class);
+
+    private final boolean wrap;
+    private final JdbcCallTracer tracer;
+    private List<ResultSet> openResultSets;
+
+    ResultSetTracker(JdbcPooledConnection jdbcPooledConnection) {
+        PoolingDataSource poolingDataSource = jdbcPooledConnection == null ? null : jdbcPooledConnection.getPoolingDataSource();
+        this.wrap = poolingDataSource == null || poolingDataSource.isWrapResultSets();
+        this.tracer = JdbcCallTracer.of(jdbcPooledConnection);
+    }
+
+    /**
+     * @param statement the statement proxy which returned the result set.
+     * @param resultSet the driver's result set, may be null.
+     * @return the result set to hand out to the application.
+     */
+    ResultSet track(Statement statement, ResultSet resultSet) {
+        return track(statement, resultSet, false, null);
+    }
+
+    /**
+     * Same as {@link #track(Statement, ResultSet)} for the result set of a query, whose rows are counted by the
+     * pool's {@link JdbcCallTracer} when the result set gets wrapped.
+     * @param statement the statement proxy which returned the result set.
+     * @param resultSet the driver's result set, may be null.
+     * @param sql the SQL of the query.
+     * @return the result set to hand out to the application.
+     */
+    ResultSet trackQuery(Statement statement, ResultSet resultSet, String sql) {
+        return track(statement, resultSet, true, sql);
+    }
+
+    private ResultSet track(Statement statement, ResultSet resultSet, boolean query, String sql) {
+        if (resultSet == null) {
+            return null;
+        }
+        if (wrap) {
+            if (query && tracer != null) {
+                return tracer.getRowCountingProxy(sql, statement, resultSet);
+            }
+            return JdbcProxyFactory.INSTANCE.getProxyResultSet(statement, resultSet);
+        }
+
+        if (openResultSets == null) {
+            openResultSets = new ArrayList<ResultSet>(2);
+        } else {
+            pruneClosed();
+        }
+        openResultSets.add(resultSet);
+        return resultSet;
+    }
+
+    /**
+     * Close the result sets which the application did not close.
+     */
+    void closeAll() {
+        if (openResultSets == null) {
+            return;
+        }
+        for (ResultSet resultSet : openResultSets) {
+            try {
+                resultSet.close();
+            } catch (SQLException ex) {
+                if (log.isDebugEnabled()) { log.debug("error closing result set " + resultSet, ex); }
+            }
+        }
+        openResultSets.clear();
+    }
+
+    /**
+     * Forget the tracked result sets, the driver closes them along with their statement.
+     */
+    void clear() {
+        if (openResultSets != null) {
+            openResultSets.clear();
+        }
+    }
+
+    private void pruneClosed() {
+        Iterator<ResultSet> it = openResultSets.iterator();
+        while (it.hasNext()) {
+            ResultSet resultSet = it.next();
+            try {
+                if (resultSet.isClosed()) {
+                    it.remove();
+                }
+            } catch (SQLException ex) {
+                // keep it, it will be closed with the statement
+            } catch (AbstractMethodError err) {
+                // pre-JDBC 4 driver, keep it
+            }
+        }
+    }
+}
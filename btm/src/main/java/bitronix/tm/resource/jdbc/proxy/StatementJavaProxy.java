@@ -15,11 +15,9 @@
  */
 package bitronix.tm.resource.jdbc.proxy;
 
-import java.lang.reflect.Method;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.Map;
 
 import bitronix.tm.resource.jdbc.JdbcPooledConnection;
 
@@ -28,9 +26,12 @@ import bitronix.tm.resource.jdbc.JdbcPooledConnection;
  */
 public class StatementJavaProxy extends JavaProxyBase<Statement> {
 
-    private final static Map<String, Method> selfMethodMap = createMethodMap(StatementJavaProxy.class);
+    private final static DispatchTable dispatchTable = new DispatchTable(StatementJavaProxy.class);
 
     private JdbcPooledConnection jdbcPooledConnection;
+    private ResultSetTracker resultSets;
+    private JdbcCallTracer tracer;
+    private String batchSql;
 
     public StatementJavaProxy(JdbcPooledConnection jdbcPooledConnection, Statement statement) {
         initialize(jdbcPooledConnection, statement);
@@ -43,7 +44,9 @@ public class StatementJavaProxy extends JavaProxyBase<Statement> {
     void initialize(JdbcPooledConnection jdbcPooledConnection, Statement statement) {
     	this.proxy = this;
         this.jdbcPooledConnection = jdbcPooledConnection;
+        this.resultSets = new ResultSetTracker(jdbcPooledConnection);
         this.delegate = statement;
+        this.tracer = JdbcCallTracer.of(jdbcPooledConnection);
     }
 
     /* Overridden methods of java.sql.Statement */
@@ -53,24 +56,50 @@ public class StatementJavaProxy extends JavaProxyBase<Statement> {
             return;
         }
 
+        resultSets.clear();
         jdbcPooledConnection.unregisterUncachedStatement(delegate);
         delegate.close();
     }
 
     public ResultSet executeQuery(String sql) throws SQLException {
-    	ResultSet resultSet = delegate.executeQuery(sql);
-    	if (resultSet == null) {
-    		return null;
-    	}
-    	return JdbcProxyFactory.INSTANCE.getProxyResultSet(this.getProxy(), resultSet);
+        jdbcPooledConnection.flushDeferredUpdates();
+        ResultSet resultSet = (ResultSet) TracedCall.EXECUTE_QUERY.invoke(tracer, delegate, sql);
+        return resultSets.trackQuery(this.getProxy(), resultSet, sql);
     }
 
     public ResultSet getGeneratedKeys() throws SQLException {
-    	ResultSet generatedKeys = delegate.getGeneratedKeys();
-    	if (generatedKeys == null) {
-    		return null;
-    	}
-    	return JdbcProxyFactory.INSTANCE.getProxyResultSet(this.getProxy(), generatedKeys);
+        jdbcPooledConnection.flushDeferredUpdates();
+    	return resultSets.track(this.getProxy(), delegate.getGeneratedKeys());
+    }
+
+    public boolean execute(String sql) throws SQLException {
+        jdbcPooledConnection.flushDeferredUpdates();
+        return (Boolean) TracedCall.EXECUTE.invoke(tracer, delegate, sql);
+    }
+
+    public int executeUpdate(String sql) throws SQLException {
+        jdbcPooledConnection.flushDeferredUpdates();
+        return (Integer) TracedCall.EXECUTE_UPDATE.invoke(tracer, delegate, sql);
+    }
+
+    public void addBatch(String sql) throws SQLException {
+        if (tracer != null && batchSql == null)
+            batchSql = sql;
+        delegate.addBatch(sql);
+    }
+
+    public void clearBatch() throws SQLException {
+        batchSql = null;
+        delegate.clearBatch();
+    }
+
+    public int[] executeBatch() throws SQLException {
+        jdbcPooledConnection.flushDeferredUpdates();
+        try {
+            return (int[]) TracedCall.EXECUTE_BATCH.invoke(tracer, delegate, batchSql);
+        } finally {
+            batchSql = null;
+        }
     }
 
     /* java.sql.Wrapper implementation */
@@ -93,7 +122,7 @@ public class StatementJavaProxy extends JavaProxyBase<Statement> {
     /* Overridden methods of JavaProxyBase */
 
     @Override
-    protected Map<String, Method> getMethodMap() {
-        return selfMethodMap;
+    protected DispatchTable getDispatchTable() {
+        return dispatchTable;
     }
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.resource.jdbc.proxy;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * The statement executions the statement proxies report to their pool's {@link JdbcCallTracer}. Each constant
+ * performs one execution on the driver's statement, {@link #invoke} times it.
+ */
+enum TracedCall {
+
+    EXECUTE_QUERY {
+        @Override
+        Object call(Statement statement, String sql) throws SQLException {
+            return statement.executeQuery(sql);
+        }
+    },
+    EXECUTE {
+        @Override
+        Object call(Statement statement, String sql) throws SQLException {
+            return statement.execute(sql);
+        }
+    },
+    EXECUTE_UPDATE {
+        @Override
+        Object call(Statement statement, String sql) throws SQLException {
+            return statement.executeUpdate(sql);
+        }
+    },
+    EXECUTE_BATCH {
+        @Override
+        Object call(Statement statement, String sql) throws SQLException {
+            return statement.executeBatch();
+        }
+    },
+    EXECUTE_PREPARED_QUERY {
+        @Override
+        Object call(Statement statement, String sql) throws SQLException {
+            return ((PreparedStatement) statement).executeQuery();
+        }
+    },
+    EXECUTE_PREPARED {
+        @Override
+        Object call(Statement statement, String sql) throws SQLException {
+            return ((PreparedStatement) statement).execute();
+        }
+    },
+    EXECUTE_PREPARED_UPDATE {
+        @Override
+        Object call(Statement statement, String sql) throws SQLException {
+            return ((PreparedStatement) statement).executeUpdate();
+        }
+    };
+
+    abstract Object call(Statement statement, String sql) throws SQLException;
+
+    /**
+     * Execute the call and report its duration to the tracer, whether it succeeded or not.
+     * @param tracer the tracer of the statement's pool, null when the pool's calls are not traced.
+     * @param statement the driver's statement.
+     * @param sql the executed SQL, passed to the driver by the calls which take it as a parameter.
+     * @return the driver's return value.
+     * @throws SQLException when the driver call fails.
+     */
+    Object invoke(JdbcCallTracer tracer, Statement statement, String sql) throws SQLException {
+        if (tracer == null) {
+            return call(statement, sql);
+        }
+
+        long start = System.nanoTime();
+        try {
+            return call(statement, sql);
+        } finally {
+            tracer.statementExecuted(sql, System.nanoTime() - start);
+        }
+    }
+}
@@ -30,6 +30,7 @@ public abstract class Task implements Comparable<Task> {
     private final Date executionTime;
     private final TaskScheduler taskScheduler;
     private final int uniqueId;
+    private volatile boolean dispatched;
 
     protected Task(Date executionTime, TaskScheduler scheduler) {
         this.executionTime = executionTime;
@@ -67,4 +68,12 @@ public abstract class Task implements Comparable<Task> {
     int getUniqueId() {
         return uniqueId;
     }
+
+    boolean isDispatched() {
+        return dispatched;
+    }
+
+    void setDispatched() {
+        this.dispatched = true;
+    }
 }
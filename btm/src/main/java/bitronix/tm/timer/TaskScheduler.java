@@ -20,32 +20,57 @@ import bitronix.tm.TransactionManagerServices;
 import bitronix.tm.recovery.Recoverer;
 import bitronix.tm.resource.common.XAPool;
 import bitronix.tm.utils.ClassLoaderUtils;
+import bitronix.tm.utils.ManagementRegistrar;
 import bitronix.tm.utils.MonotonicClock;
 import bitronix.tm.utils.Service;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Date;
-import java.util.HashSet;
-import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Timed tasks service.
+ * <p>The scheduler thread sleeps until the earliest execution date of the queued tasks and is woken up when a task
+ * due earlier gets scheduled. Transaction timeouts are run by the scheduler thread itself while the other tasks are
+ * handed over to a small pool of worker threads, so that a slow recovery or pool shrinking cannot hold back the
+ * timeouts.</p>
  *
  * @author Ludovic Orban
  */
-public class TaskScheduler extends Thread implements Service {
+public class TaskScheduler extends Thread implements Service, TaskSchedulerMBean {
 
     private final static Logger log = LoggerFactory.getLogger(TaskScheduler.class);
 
+    private final static long TIMEOUT_WHEEL_TICK_DURATION = 100L;
+    private final static int TIMEOUT_WHEEL_BUCKET_COUNT = 1024;
+    private final static int WORKER_COUNT = 2;
+
     private final SortedSet<Task> tasks;
+    private final TimeoutWheel transactionTimeouts = new TimeoutWheel(TIMEOUT_WHEEL_TICK_DURATION, TIMEOUT_WHEEL_BUCKET_COUNT, MonotonicClock.currentTimeMillis());
     private final Lock tasksLock;
     private final AtomicBoolean active = new AtomicBoolean(true);
+    private final ExecutorService workers = Executors.newFixedThreadPool(WORKER_COUNT, new WorkerThreadFactory());
+    private final String jmxName;
+
+    private final Lock wakeUpLock = new ReentrantLock();
+    private final Condition wakeUpCondition = wakeUpLock.newCondition();
+    /* the time until which the scheduler thread sleeps, Long.MAX_VALUE while it is not sleeping */
+    private volatile long wakeUpTime = Long.MAX_VALUE;
+
+    private volatile long lastTickLag;
+    private volatile long maxTickLag;
 
     public TaskScheduler() {
         // it is up to the ShutdownHandler to control the lifespan of the JVM and give some time for this thread
@@ -68,6 +93,11 @@ public class TaskScheduler extends Thread implements Service {
         }
         this.tasks = tasks;
         this.tasksLock = tasksLock;
+
+        String serverId = TransactionManagerServices.getConfiguration().getServerId();
+        if (serverId == null) serverId = "";
+        this.jmxName = "bitronix.tm:type=TaskScheduler,ServerId=" + ManagementRegistrar.makeValidName(serverId);
+        ManagementRegistrar.register(jmxName, this);
     }
 
     private void lock() {
@@ -82,22 +112,15 @@ public class TaskScheduler extends Thread implements Service {
         }
     }
 
-    private SortedSet<Task> getSafeIterableTasks() {
-        if (tasksLock != null) {
-            return new TreeSet<Task>(tasks);
-        } else {
-            return tasks;
-        }
-    }
-
     /**
      * Get the amount of tasks currently queued.
      * @return the amount of tasks currently queued.
      */
+    @Override
     public int countTasksQueued() {
         lock();
         try {
-            return tasks.size();
+            return tasks.size() + transactionTimeouts.size();
         } finally {
             unlock();
         }
@@ -108,23 +131,50 @@ public class TaskScheduler extends Thread implements Service {
         boolean wasActive = setActive(false);
 
         if (wasActive) {
+            wakeUp();
             try {
                 long gracefulShutdownTime = TransactionManagerServices.getConfiguration().getGracefulShutdownInterval() * 1000;
                 if (log.isDebugEnabled()) { log.debug("graceful scheduler shutdown interval: " + gracefulShutdownTime + "ms"); }
+                long startTime = MonotonicClock.currentTimeMillis();
                 join(gracefulShutdownTime);
+
+                workers.shutdown();
+                long remainingTime = gracefulShutdownTime - (MonotonicClock.currentTimeMillis() - startTime);
+                if (!workers.awaitTermination(Math.max(remainingTime, 0L), TimeUnit.MILLISECONDS))
+                    log.error("could not stop the task scheduler workers within " + TransactionManagerServices.getConfiguration().getGracefulShutdownInterval() + "s");
             } catch (InterruptedException ex) {
                 log.error("could not stop the task scheduler within " + TransactionManagerServices.getConfiguration().getGracefulShutdownInterval() + "s");
+            } finally {
+                ManagementRegistrar.unregister(jmxName);
             }
         }
     }
 
     /**
-     * Schedule a task that will mark the transaction as timed out at the specified date. If this method is called
-     * with the same transaction multiple times, the previous timeout date is dropped and replaced by the new one.
+     * {@inheritDoc}
+     */
+    @Override
+    public long getLastTickLag() {
+        return lastTickLag;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getMaxTickLag() {
+        return maxTickLag;
+    }
+
+    /**
+     * Schedule a task that will mark the transaction as timed out at the specified date. Transaction timeouts are
+     * kept in a timing wheel rather than with the other tasks so that scheduling and cancelling them is done in
+     * constant time, the returned task being the handle to give back to {@link #cancelTransactionTimeout(TransactionTimeoutTask)}.
      * @param transaction the transaction to mark as timeout.
      * @param executionTime the date at which the transaction must be marked.
+     * @return the scheduled task.
      */
-    public void scheduleTransactionTimeout(BitronixTransaction transaction, Date executionTime) {
+    public TransactionTimeoutTask scheduleTransactionTimeout(BitronixTransaction transaction, Date executionTime) {
         if (log.isDebugEnabled()) { log.debug("scheduling transaction timeout task on " + transaction + " for " + executionTime); }
         if (transaction == null)
             throw new IllegalArgumentException("expected a non-null transaction");
@@ -132,12 +182,28 @@ public class TaskScheduler extends Thread implements Service {
             throw new IllegalArgumentException("expected a non-null execution date");
 
         TransactionTimeoutTask task = new TransactionTimeoutTask(transaction, executionTime, this);
-        addTask(task);
+        transactionTimeouts.schedule(task);
+        wakeUpIfEarlier(executionTime.getTime());
         if (log.isDebugEnabled()) { log.debug("scheduled " + task + ", total task(s) queued: " + countTasksQueued()); }
+        return task;
+    }
+
+    /**
+     * Cancel a task scheduled by {@link #scheduleTransactionTimeout(BitronixTransaction, Date)}.
+     * @param task the task returned when the timeout was scheduled.
+     */
+    public void cancelTransactionTimeout(TransactionTimeoutTask task) {
+        if (log.isDebugEnabled()) { log.debug("cancelling " + task); }
+        if (task == null)
+            throw new IllegalArgumentException("expected a non-null task");
+
+        if (!transactionTimeouts.cancel(task))
+            if (log.isDebugEnabled()) { log.debug(task + " already ran or was already cancelled"); }
     }
 
     /**
-     * Cancel the task that will mark the transaction as timed out at the specified date.
+     * Cancel the task that will mark the transaction as timed out at the specified date. This has to search all
+     * scheduled timeouts, prefer {@link #cancelTransactionTimeout(TransactionTimeoutTask)} when the task is known.
      * @param transaction the transaction to mark as timeout.
      */
     public void cancelTransactionTimeout(BitronixTransaction transaction) {
@@ -145,7 +211,7 @@ public class TaskScheduler extends Thread implements Service {
         if (transaction == null)
             throw new IllegalArgumentException("expected a non-null transaction");
 
-        if (!removeTaskByObject(transaction))
+        if (transactionTimeouts.cancelByObject(transaction) == null)
             if (log.isDebugEnabled()) { log.debug("no task found based on object " + transaction); }
     }
 
@@ -214,6 +280,7 @@ public class TaskScheduler extends Thread implements Service {
         } finally {
             unlock();
         }
+        wakeUpIfEarlier(task.getExecutionTime().getTime());
     }
 
     boolean removeTaskByObject(Object obj) {
@@ -244,42 +311,151 @@ public class TaskScheduler extends Thread implements Service {
 
     @Override
     public void run() {
+        long deadline = Long.MAX_VALUE;
         while (isActive()) {
-            try {
-                executeElapsedTasks();
-                Thread.sleep(500); // execute twice per second. That's enough precision.
-            } catch (InterruptedException ex) {
-                // ignore
+            long now = MonotonicClock.currentTimeMillis();
+            if (deadline <= now) {
+                long lag = now - deadline;
+                lastTickLag = lag;
+                if (lag > maxTickLag)
+                    maxTickLag = lag;
             }
+
+            executeElapsedTasks(now);
+            deadline = awaitNextExecutionTime();
         }
     }
 
-    private void executeElapsedTasks() {
+    /**
+     * Sleep until the execution date of the earliest task, or until a task due before it gets scheduled.
+     * @return the execution date the scheduler waited for.
+     */
+    private long awaitNextExecutionTime() {
+        wakeUpLock.lock();
+        try {
+            long deadline = getNextExecutionTime();
+            wakeUpTime = deadline;
+            long delay = deadline - MonotonicClock.currentTimeMillis();
+            if (delay > 0 && isActive())
+                wakeUpCondition.await(delay, TimeUnit.MILLISECONDS);
+            return deadline;
+        } catch (InterruptedException ex) {
+            // ignore
+            return Long.MAX_VALUE;
+        } finally {
+            wakeUpTime = Long.MAX_VALUE;
+            wakeUpLock.unlock();
+        }
+    }
+
+    private long getNextExecutionTime() {
+        long nextExecutionTime = transactionTimeouts.nextTickTime();
         lock();
         try {
-            if (this.tasks.isEmpty())
-                return;
-
-            Set<Task> toRemove = new HashSet<Task>();
-            for (Task task : getSafeIterableTasks()) {
-                if (task.getExecutionTime().compareTo(new Date(MonotonicClock.currentTimeMillis())) <= 0) {
-                    // if the execution time is now or in the past
-                    if (log.isDebugEnabled()) { log.debug("running " + task); }
-                    try {
-                        task.execute();
-                        if (log.isDebugEnabled()) { log.debug("successfully ran " + task); }
-                    } catch (Exception ex) {
-                        log.warn("error running " + task, ex);
-                    } finally {
-                        toRemove.add(task);
-                        if (log.isDebugEnabled()) { log.debug("total task(s) still queued: " + tasks.size()); }
+            for (Task task : tasks) {
+                if (!task.isDispatched()) {
+                    nextExecutionTime = Math.min(nextExecutionTime, task.getExecutionTime().getTime());
+                    break;
+                }
+            }
+        } finally {
+            unlock();
+        }
+        return nextExecutionTime;
+    }
+
+    private void wakeUpIfEarlier(long executionTime) {
+        // a task added while the scheduler thread is computing its next wake up time finds Long.MAX_VALUE here,
+        // then the signal is only sent once the scheduler thread has released the lock by starting to wait
+        if (executionTime < wakeUpTime)
+            wakeUp();
+    }
+
+    private void wakeUp() {
+        wakeUpLock.lock();
+        try {
+            wakeUpCondition.signal();
+        } finally {
+            wakeUpLock.unlock();
+        }
+    }
+
+    private void executeElapsedTasks(long now) {
+        for (TransactionTimeoutTask task : transactionTimeouts.expire(now)) {
+            executeTask(task);
+        }
+
+        Task task;
+        while ((task = pollElapsedTask(now)) != null) {
+            final Task elapsedTask = task;
+            try {
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        executeDispatchedTask(elapsedTask);
                     }
-                } // if
+                });
+            } catch (RejectedExecutionException ex) {
+                log.warn("task scheduler is shutting down, dropping " + elapsedTask);
+                removeTaskByObject(elapsedTask.getObject());
             }
-            this.tasks.removeAll(toRemove);
+        }
+    }
+
+    /*
+     * Tasks stay queued while they run, as before they were run by the scheduler thread itself. This keeps
+     * countTasksQueued() stable across a task rescheduling itself, the rescheduling replacing the running task.
+     */
+    private Task pollElapsedTask(long now) {
+        lock();
+        try {
+            for (Task task : tasks) {
+                if (task.getExecutionTime().getTime() > now)
+                    return null;
+                if (!task.isDispatched()) {
+                    task.setDispatched();
+                    return task;
+                }
+            }
+            return null;
         } finally {
             unlock();
         }
     }
 
+    private void executeDispatchedTask(Task task) {
+        try {
+            executeTask(task);
+        } finally {
+            lock();
+            try {
+                tasks.remove(task);
+                if (log.isDebugEnabled()) { log.debug("total task(s) still queued: " + tasks.size()); }
+            } finally {
+                unlock();
+            }
+        }
+    }
+
+    private void executeTask(Task task) {
+        if (log.isDebugEnabled()) { log.debug("running " + task); }
+        try {
+            task.execute();
+            if (log.isDebugEnabled()) { log.debug("successfully ran " + task); }
+        } catch (Exception ex) {
+            log.warn("error running " + task, ex);
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "bitronix-task-worker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
 }
@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.timer;
+
+/**
+ * {@link TaskScheduler} Management interface.
+ */
+public interface TaskSchedulerMBean {
+
+    public int countTasksQueued();
+
+    /**
+     * @return how late in milliseconds the scheduler thread woke up compared to the execution date it waited for
+     *         the last time it ran late.
+     */
+    public long getLastTickLag();
+
+    /**
+     * @return the highest lag in milliseconds ever observed by {@link #getLastTickLag()}.
+     */
+    public long getMaxTickLag();
+
+}
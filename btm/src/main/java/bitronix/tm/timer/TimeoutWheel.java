@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.timer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timing wheel holding the transaction timeout tasks.
+ * <p>Time is cut in ticks of a fixed duration and every task is linked into the bucket of the tick at which it
+ * expires, the buckets being reused in a circular fashion. Scheduling and cancelling a task only touch its own
+ * bucket while advancing the wheel only visits the buckets of the elapsed ticks, so none of these operations
+ * depends on the amount of running transactions.</p>
+ * <p>Each bucket is guarded by its own lock. The thread advancing the wheel records in a bucket the last tick
+ * it expired so that a task scheduled for a tick which has already been processed gets moved to the next one
+ * instead of waiting for the wheel to complete a whole turn.</p>
+ */
+final class TimeoutWheel {
+
+    private final long tickDuration;
+    private final Bucket[] buckets;
+    private final int mask;
+    private final AtomicInteger size = new AtomicInteger();
+    private volatile long currentTick;
+
+    /**
+     * @param tickDuration the duration of a tick in milliseconds.
+     * @param bucketCount the amount of buckets of the wheel, rounded up to the next power of two.
+     * @param startTime the time in milliseconds from which the wheel starts advancing.
+     */
+    TimeoutWheel(long tickDuration, int bucketCount, long startTime) {
+        if (tickDuration <= 0)
+            throw new IllegalArgumentException("tick duration must be positive");
+        if (bucketCount <= 0)
+            throw new IllegalArgumentException("bucket count must be positive");
+
+        int length = 1;
+        while (length < bucketCount)
+            length <<= 1;
+
+        this.tickDuration = tickDuration;
+        this.buckets = new Bucket[length];
+        this.mask = length - 1;
+        this.currentTick = startTime / tickDuration - 1;
+        for (int i = 0; i < length; i++) {
+            buckets[i] = new Bucket(currentTick);
+        }
+    }
+
+    /**
+     * @return the amount of tasks currently scheduled in the wheel.
+     */
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * @return the time in milliseconds at which the wheel has to be advanced next, or {@link Long#MAX_VALUE} if
+     *         it is empty.
+     */
+    long nextTickTime() {
+        if (size.get() == 0)
+            return Long.MAX_VALUE;
+        return (currentTick + 1) * tickDuration;
+    }
+
+    /**
+     * Link a task into the bucket of the tick at which it expires. A task expiring in the past is expired by the
+     * next call to {@link #expire(long)}.
+     * @param task the task to schedule, which must not be already scheduled.
+     */
+    void schedule(TransactionTimeoutTask task) {
+        long tick = (task.getExecutionTime().getTime() + tickDuration - 1) / tickDuration;
+        while (true) {
+            tick = Math.max(tick, currentTick + 1);
+            Bucket bucket = buckets[(int) (tick & mask)];
+            synchronized (bucket) {
+                if (bucket.lastExpiredTick < tick) {
+                    bucket.link(task, tick);
+                    size.incrementAndGet();
+                    return;
+                }
+            }
+            // the tick has been processed concurrently, try again with the following one
+        }
+    }
+
+    /**
+     * Unlink a task from its bucket.
+     * @param task the task to cancel.
+     * @return true if the task was scheduled, false if it already expired or was already cancelled.
+     */
+    boolean cancel(TransactionTimeoutTask task) {
+        Bucket bucket = task.bucket;
+        if (bucket == null)
+            return false;
+
+        synchronized (bucket) {
+            if (task.bucket != bucket)
+                return false;
+            bucket.unlink(task);
+        }
+        size.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * Unlink the task scheduled for an object. This has to search the whole wheel, {@link #cancel(TransactionTimeoutTask)}
+     * should be preferred whenever the task is known.
+     * @param obj the object on which the task has to be found.
+     * @return the cancelled task or null if there was no task scheduled for that object.
+     */
+    TransactionTimeoutTask cancelByObject(Object obj) {
+        for (Bucket bucket : buckets) {
+            synchronized (bucket) {
+                for (TransactionTimeoutTask task = bucket.head; task != null; task = task.next) {
+                    if (task.getObject() == obj) {
+                        bucket.unlink(task);
+                        size.decrementAndGet();
+                        return task;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Advance the wheel up to the specified time and unlink all tasks expiring until then. This must only ever be
+     * called by a single thread.
+     * @param now the current time in milliseconds.
+     * @return the expired tasks, which are no longer scheduled.
+     */
+    List<TransactionTimeoutTask> expire(long now) {
+        long nowTick = now / tickDuration;
+        long fromTick = currentTick + 1;
+        if (nowTick < fromTick)
+            return Collections.emptyList();
+
+        // a bucket only needs to be visited once, for the most recent of its ticks
+        fromTick = Math.max(fromTick, nowTick - buckets.length + 1);
+
+        List<TransactionTimeoutTask> expired = null;
+        for (long tick = fromTick; tick <= nowTick; tick++) {
+            Bucket bucket = buckets[(int) (tick & mask)];
+            synchronized (bucket) {
+                bucket.lastExpiredTick = tick;
+                TransactionTimeoutTask task = bucket.head;
+                while (task != null) {
+                    TransactionTimeoutTask next = task.next;
+                    if (task.tick <= tick) {
+                        bucket.unlink(task);
+                        size.decrementAndGet();
+                        if (expired == null)
+                            expired = new ArrayList<TransactionTimeoutTask>();
+                        expired.add(task);
+                    }
+                    task = next;
+                }
+            }
+        }
+        currentTick = nowTick;
+
+        if (expired == null)
+            return Collections.emptyList();
+        return expired;
+    }
+
+    /**
+     * Doubly-linked list of the tasks hashed to the same slot of the wheel, only accessed while holding its monitor.
+     */
+    static final class Bucket {
+        private TransactionTimeoutTask head;
+        private long lastExpiredTick;
+
+        private Bucket(long lastExpiredTick) {
+            this.lastExpiredTick = lastExpiredTick;
+        }
+
+        private void link(TransactionTimeoutTask task, long tick) {
+            task.tick = tick;
+            task.prev = null;
+            task.next = head;
+            if (head != null)
+                head.prev = task;
+            head = task;
+            task.bucket = this;
+        }
+
+        private void unlink(TransactionTimeoutTask task) {
+            if (task.prev != null)
+                task.prev.next = task.next;
+            else
+                head = task.next;
+            if (task.next != null)
+                task.next.prev = task.prev;
+            task.prev = null;
+            task.next = null;
+            task.bucket = null;
+        }
+    }
+
+}
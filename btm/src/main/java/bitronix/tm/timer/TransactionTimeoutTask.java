@@ -33,6 +33,12 @@ public class TransactionTimeoutTask extends Task {
 
     private final BitronixTransaction transaction;
 
+    /* links of the timing wheel, guarded by the monitor of the bucket the task belongs to */
+    long tick;
+    TransactionTimeoutTask prev;
+    TransactionTimeoutTask next;
+    volatile TimeoutWheel.Bucket bucket;
+
     public TransactionTimeoutTask(BitronixTransaction transaction, Date executionTime, TaskScheduler scheduler) {
         super(executionTime, scheduler);
         this.transaction = transaction;
@@ -35,10 +35,15 @@ import java.util.SortedSet;
 
 /**
  * Abstract phase execution engine.
+ * <p>Engines do not keep any per-transaction state so that a single instance can execute the phases of all
+ * transactions concurrently: what a phase needs to track is kept in a context object created by each phase
+ * execution and handed to {@link #isParticipating(XAResourceHolderState, Object)} and
+ * {@link #createJob(XAResourceHolderState, Object)}.</p>
  *
  * @author Ludovic Orban
+ * @param <C> the type of the phase execution context
  */
-public abstract class AbstractPhaseEngine {
+public abstract class AbstractPhaseEngine<C> {
 
     private final static Logger log = LoggerFactory.getLogger(AbstractPhaseEngine.class);
 
@@ -55,11 +60,12 @@ public abstract class AbstractPhaseEngine {
      * in parallel by using the detected {@link Executor} implementation.
      * @param resourceManager the {@link XAResourceManager} containing the enlisted resources to execute the phase on.
      * @param reverse true if jobs should be executed in reverse position / enlistment order, false for natural position / enlistment order.
+     * @param context the context of this phase execution.
      * @throws PhaseException if one or more resource threw an exception during phase execution.
      * @see bitronix.tm.twopc.executor.SyncExecutor
      * @see bitronix.tm.twopc.executor.AsyncExecutor
      */
-    protected void executePhase(XAResourceManager resourceManager, boolean reverse) throws PhaseException {
+    protected void executePhase(XAResourceManager resourceManager, boolean reverse, C context) throws PhaseException {
         SortedSet<Integer> positions;
         if (reverse) {
             positions = resourceManager.getReverseOrderPositions();
@@ -81,7 +87,7 @@ public abstract class AbstractPhaseEngine {
             }
 
             if (log.isDebugEnabled()) { log.debug("running " + resources.size() + " job(s) for position '" + positionKey + "'"); }
-            JobsExecutionReport report = runJobsForPosition(resources);
+            JobsExecutionReport report = runJobsForPosition(resources, context);
             if (report.getExceptions().size() > 0) {
                 if (log.isDebugEnabled()) { log.debug(report.getExceptions().size() + " error(s) happened during execution of position '" + positionKey + "'"); }
                 positionErrorReports.add(report);
@@ -104,19 +110,19 @@ public abstract class AbstractPhaseEngine {
         }
     }
 
-    private JobsExecutionReport runJobsForPosition(List<XAResourceHolderState> resources) {
+    private JobsExecutionReport runJobsForPosition(List<XAResourceHolderState> resources, C context) {
         List<Job> jobs = new ArrayList<Job>();
         List<Exception> exceptions = new ArrayList<Exception>();
         List<XAResourceHolderState> errorResources = new ArrayList<XAResourceHolderState>();
 
         // start threads
         for (XAResourceHolderState resource : resources) {
-            if (!isParticipating(resource)) {
+            if (!isParticipating(resource, context)) {
                 if (log.isDebugEnabled()) { log.debug("skipping not participating resource " + resource); }
                 continue;
             }
 
-            Job job = createJob(resource);
+            Job job = createJob(resource, context);
             Object future = executor.submit(job);
             job.setFuture(future);
             jobs.add(job);
@@ -153,16 +159,18 @@ public abstract class AbstractPhaseEngine {
      * Determine if a resource is participating in the phase or not. A participating resource gets
      * a job created to execute the phase's command on it.
      * @param xaResourceHolderState the resource to check for its participation.
+     * @param context the context of the phase execution.
      * @return true if the resource must participate in the phase.
      */
-    protected abstract boolean isParticipating(XAResourceHolderState xaResourceHolderState);
+    protected abstract boolean isParticipating(XAResourceHolderState xaResourceHolderState, C context);
 
     /**
      * Create a {@link Job} that is going to execute the phase command on the given resource.
      * @param xaResourceHolderState the resource that is going to receive a command.
+     * @param context the context of the phase execution.
      * @return the {@link Job} that is going to execute the command.
      */
-    protected abstract Job createJob(XAResourceHolderState xaResourceHolderState);
+    protected abstract Job createJob(XAResourceHolderState xaResourceHolderState, C context);
 
     /**
      * Log exceptions that happened during a phase failure.
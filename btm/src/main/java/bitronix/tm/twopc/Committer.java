@@ -45,15 +45,10 @@ import java.util.Set;
  *
  * @author Ludovic Orban
  */
-public final class Committer extends AbstractPhaseEngine {
+public final class Committer extends AbstractPhaseEngine<Committer.CommitContext> {
 
     private final static Logger log = LoggerFactory.getLogger(Committer.class);
 
-    private volatile boolean onePhase;
-    private final List<XAResourceHolderState> interestedResources = Collections.synchronizedList(new ArrayList<XAResourceHolderState>());
-    // this list has to be thread-safe as the CommitJobs can be executed in parallel (when async 2PC is configured)
-    private final List<XAResourceHolderState> committedResources = Collections.synchronizedList(new ArrayList<XAResourceHolderState>());
-
 
     public Committer(Executor executor) {
        super(executor);
@@ -79,21 +74,20 @@ public final class Committer extends AbstractPhaseEngine {
 
         transaction.setStatus(Status.STATUS_COMMITTING);
 
-        this.interestedResources.clear();
-        this.interestedResources.addAll(interestedResources);
-        this.onePhase = resourceManager.size() == 1;
+        if (resourceManager.size() == 1) {
+            commitOnePhase(transaction, interestedResources);
+            return;
+        }
+
+        CommitContext context = new CommitContext(interestedResources);
+        List<XAResourceHolderState> committedResources = context.committedResources;
 
         try {
-            executePhase(resourceManager, true);
+            executePhase(resourceManager, true, context);
         } catch (PhaseException ex) {
             logFailedResources(ex);
-            if (onePhase) {
-                transaction.setStatus(Status.STATUS_ROLLEDBACK);
-                throw new BitronixRollbackException("transaction failed during 1PC commit of " + transaction, ex);
-            } else {
-                transaction.setStatus(Status.STATUS_UNKNOWN);
-                throwException("transaction failed during commit of " + transaction, ex, interestedResources.size());
-            }
+            transaction.setStatus(Status.STATUS_UNKNOWN);
+            throwException("transaction failed during commit of " + transaction, ex, interestedResources.size());
         }
 
         if (log.isDebugEnabled()) { log.debug("phase 2 commit executed on resources " + Decoder.collectResourcesNames(committedResources)); }
@@ -119,6 +113,38 @@ public final class Committer extends AbstractPhaseEngine {
         transaction.setStatus(Status.STATUS_COMMITTED, committedAndNotInterestedUniqueNames);
     }
 
+    /**
+     * Commit the only enlisted resource with the one-phase optimization. There is neither ordering nor parallelism to
+     * take care of so the command is sent straight from the calling thread, without going through the executor.
+     * @param transaction the transaction wanting to commit.
+     * @param interestedResources the single enlisted resource.
+     * @throws BitronixSystemException when an internal error occured.
+     * @throws BitronixRollbackException when the resource failed to commit.
+     */
+    private void commitOnePhase(BitronixTransaction transaction, List<XAResourceHolderState> interestedResources) throws BitronixSystemException, BitronixRollbackException {
+        List<XAResourceHolderState> committedResources = new ArrayList<XAResourceHolderState>(1);
+
+        for (XAResourceHolderState resourceHolder : interestedResources) {
+            try {
+                commitResource(resourceHolder, true, committedResources);
+            } catch (XAException ex) {
+                throw onePhaseFailure(transaction, resourceHolder, ex);
+            } catch (RuntimeException ex) {
+                throw onePhaseFailure(transaction, resourceHolder, ex);
+            }
+        }
+
+        if (log.isDebugEnabled()) { log.debug("1PC commit succeeded on resource(s) " + Decoder.collectResourcesNames(committedResources)); }
+        transaction.setStatus(Status.STATUS_COMMITTED, collectResourcesUniqueNames(committedResources));
+    }
+
+    private BitronixRollbackException onePhaseFailure(BitronixTransaction transaction, XAResourceHolderState resourceHolder, Exception ex) throws BitronixSystemException {
+        PhaseException phaseException = new PhaseException(Collections.singletonList(ex), Collections.singletonList(resourceHolder));
+        logFailedResources(phaseException);
+        transaction.setStatus(Status.STATUS_ROLLEDBACK);
+        return new BitronixRollbackException("transaction failed during 1PC commit of " + transaction, phaseException);
+    }
+
     private void throwException(String message, PhaseException phaseException, int totalResourceCount) throws HeuristicMixedException, HeuristicRollbackException {
         List<Exception> exceptions = phaseException.getExceptions();
         List<XAResourceHolderState> resources = phaseException.getResourceStates();
@@ -161,24 +187,94 @@ public final class Committer extends AbstractPhaseEngine {
     }
 
     @Override
-    protected Job createJob(XAResourceHolderState resourceHolder) {
-        return new CommitJob(resourceHolder);
+    protected Job createJob(XAResourceHolderState resourceHolder, CommitContext context) {
+        return new CommitJob(resourceHolder, context);
     }
 
     @Override
-    protected boolean isParticipating(XAResourceHolderState xaResourceHolderState) {
-        for (XAResourceHolderState resourceHolderState : interestedResources) {
+    protected boolean isParticipating(XAResourceHolderState xaResourceHolderState, CommitContext context) {
+        for (XAResourceHolderState resourceHolderState : context.interestedResources) {
             if (xaResourceHolderState == resourceHolderState)
                 return true;
         }
         return false;
     }
 
+    private static void commitResource(XAResourceHolderState resourceHolder, boolean onePhase, List<XAResourceHolderState> committedResources) throws XAException {
+        try {
+            if (log.isDebugEnabled()) { log.debug("committing resource " + resourceHolder + (onePhase ? " (with one-phase optimization)" : "")); }
+            resourceHolder.getXAResource().commit(resourceHolder.getXid(), onePhase);
+            committedResources.add(resourceHolder);
+            if (log.isDebugEnabled()) { log.debug("committed resource " + resourceHolder); }
+        } catch (XAException ex) {
+           handleXAException(resourceHolder, ex, onePhase);
+        }
+    }
+
+    private static void handleXAException(XAResourceHolderState failedResourceHolder, XAException xaException, boolean onePhase) throws XAException {
+        switch (xaException.errorCode) {
+            case XAException.XA_HEURCOM:
+                forgetHeuristicCommit(failedResourceHolder);
+                return;
+
+            case XAException.XAER_NOTA:
+                throw new BitronixXAException("unknown heuristic termination, global state of this transaction is unknown - guilty: " + failedResourceHolder, XAException.XA_HEURHAZ, xaException);
+
+            case XAException.XA_HEURHAZ:
+            case XAException.XA_HEURMIX:
+            case XAException.XA_HEURRB:
+            case XAException.XA_RBCOMMFAIL:
+            case XAException.XA_RBDEADLOCK:
+            case XAException.XA_RBINTEGRITY:
+            case XAException.XA_RBOTHER:
+            case XAException.XA_RBPROTO:
+            case XAException.XA_RBROLLBACK:
+            case XAException.XA_RBTIMEOUT:
+            case XAException.XA_RBTRANSIENT:
+                log.error("heuristic rollback is incompatible with the global state of this transaction - guilty: " + failedResourceHolder);
+                throw xaException;
+
+            default:
+                if (onePhase) {
+                    if (log.isDebugEnabled()) { log.debug("XAException thrown in commit phase of 1PC optimization, rethrowing it"); }
+                    throw xaException;
+                }
+                String extraErrorDetails = TransactionManagerServices.getExceptionAnalyzer().extractExtraXAExceptionDetails(xaException);
+                log.warn("resource '" + failedResourceHolder.getUniqueName() + "' reported " + Decoder.decodeXAExceptionErrorCode(xaException) +
+                        (extraErrorDetails == null ? "" : ", extra error=" + extraErrorDetails) + " when asked to commit transaction branch." +
+                        " Transaction is prepared and will commit via recovery service when resource availability allows.", xaException);
+        }
+    }
+
+    private static void forgetHeuristicCommit(XAResourceHolderState resourceHolder) {
+        try {
+            if (log.isDebugEnabled()) { log.debug("handling heuristic commit on resource " + resourceHolder.getXAResource()); }
+            resourceHolder.getXAResource().forget(resourceHolder.getXid());
+            if (log.isDebugEnabled()) { log.debug("forgotten heuristically committed resource " + resourceHolder.getXAResource()); }
+        } catch (XAException ex) {
+            String extraErrorDetails = TransactionManagerServices.getExceptionAnalyzer().extractExtraXAExceptionDetails(ex);
+            log.error("cannot forget " + resourceHolder.getXid() + " assigned to " + resourceHolder.getXAResource() +
+                    ", error=" + Decoder.decodeXAExceptionErrorCode(ex) + (extraErrorDetails == null ? "" : ", extra error=" + extraErrorDetails), ex);
+        }
+    }
 
-    private final class CommitJob extends Job {
+    static final class CommitContext {
+        private final List<XAResourceHolderState> interestedResources;
+        // this list has to be thread-safe as the CommitJobs can be executed in parallel (when async 2PC is configured)
+        private final List<XAResourceHolderState> committedResources = Collections.synchronizedList(new ArrayList<XAResourceHolderState>());
 
-        public CommitJob(XAResourceHolderState resourceHolder) {
+        private CommitContext(List<XAResourceHolderState> interestedResources) {
+            this.interestedResources = interestedResources;
+        }
+    }
+
+
+    private final static class CommitJob extends Job {
+        private final List<XAResourceHolderState> committedResources;
+
+        public CommitJob(XAResourceHolderState resourceHolder, CommitContext context) {
             super(resourceHolder);
+            this.committedResources = context.committedResources;
         }
 
         @Override
@@ -194,7 +290,7 @@ public final class Committer extends AbstractPhaseEngine {
         @Override
         public void execute() {
             try {
-                commitResource(getResource(), onePhase);
+                commitResource(getResource(), false, committedResources);
             } catch (RuntimeException ex) {
                 runtimeException = ex;
             } catch (XAException ex) {
@@ -202,67 +298,9 @@ public final class Committer extends AbstractPhaseEngine {
             }
         }
 
-        private void commitResource(XAResourceHolderState resourceHolder, boolean onePhase) throws XAException {
-            try {
-                if (log.isDebugEnabled()) { log.debug("committing resource " + resourceHolder + (onePhase ? " (with one-phase optimization)" : "")); }
-                resourceHolder.getXAResource().commit(resourceHolder.getXid(), onePhase);
-                committedResources.add(resourceHolder);
-                if (log.isDebugEnabled()) { log.debug("committed resource " + resourceHolder); }
-            } catch (XAException ex) {
-               handleXAException(resourceHolder, ex, onePhase);
-            }
-        }
-
-        private void handleXAException(XAResourceHolderState failedResourceHolder, XAException xaException, boolean onePhase) throws XAException {
-            switch (xaException.errorCode) {
-                case XAException.XA_HEURCOM:
-                    forgetHeuristicCommit(failedResourceHolder);
-                    return;
-
-                case XAException.XAER_NOTA:
-                    throw new BitronixXAException("unknown heuristic termination, global state of this transaction is unknown - guilty: " + failedResourceHolder, XAException.XA_HEURHAZ, xaException);
-
-                case XAException.XA_HEURHAZ:
-                case XAException.XA_HEURMIX:
-                case XAException.XA_HEURRB:
-                case XAException.XA_RBCOMMFAIL:
-                case XAException.XA_RBDEADLOCK:
-                case XAException.XA_RBINTEGRITY:
-                case XAException.XA_RBOTHER:
-                case XAException.XA_RBPROTO:
-                case XAException.XA_RBROLLBACK:
-                case XAException.XA_RBTIMEOUT:
-                case XAException.XA_RBTRANSIENT:
-                    log.error("heuristic rollback is incompatible with the global state of this transaction - guilty: " + failedResourceHolder);
-                    throw xaException;
-
-                default:
-                    if (onePhase) {
-                        if (log.isDebugEnabled()) { log.debug("XAException thrown in commit phase of 1PC optimization, rethrowing it"); }
-                        throw xaException;
-                    }
-                    String extraErrorDetails = TransactionManagerServices.getExceptionAnalyzer().extractExtraXAExceptionDetails(xaException);
-                    log.warn("resource '" + failedResourceHolder.getUniqueName() + "' reported " + Decoder.decodeXAExceptionErrorCode(xaException) +
-                            (extraErrorDetails == null ? "" : ", extra error=" + extraErrorDetails) + " when asked to commit transaction branch." +
-                            " Transaction is prepared and will commit via recovery service when resource availability allows.", xaException);
-            }
-        }
-
-        private void forgetHeuristicCommit(XAResourceHolderState resourceHolder) {
-            try {
-                if (log.isDebugEnabled()) { log.debug("handling heuristic commit on resource " + resourceHolder.getXAResource()); }
-                resourceHolder.getXAResource().forget(resourceHolder.getXid());
-                if (log.isDebugEnabled()) { log.debug("forgotten heuristically committed resource " + resourceHolder.getXAResource()); }
-            } catch (XAException ex) {
-                String extraErrorDetails = TransactionManagerServices.getExceptionAnalyzer().extractExtraXAExceptionDetails(ex);
-                log.error("cannot forget " + resourceHolder.getXid() + " assigned to " + resourceHolder.getXAResource() +
-                        ", error=" + Decoder.decodeXAExceptionErrorCode(ex) + (extraErrorDetails == null ? "" : ", extra error=" + extraErrorDetails), ex);
-            }
-        }
-
         @Override
         public String toString() {
-            return "a CommitJob " + (onePhase ? "(one phase) " : "") + "with " + getResource();
+            return "a CommitJob with " + getResource();
         }
     }
 
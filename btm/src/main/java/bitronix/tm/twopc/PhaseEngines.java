@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.twopc;
+
+import bitronix.tm.twopc.executor.Executor;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holder of the phase engines shared by all transactions. The engines being stateless, one set of them is
+ * enough per {@link Executor}; a new set is only created when the executor changes, i.e. after the transaction
+ * manager got restarted.
+ */
+public final class PhaseEngines {
+
+    private static final AtomicReference<PhaseEngines> current = new AtomicReference<PhaseEngines>();
+
+    private final Executor executor;
+    private final Preparer preparer;
+    private final Committer committer;
+    private final Rollbacker rollbacker;
+
+    private PhaseEngines(Executor executor) {
+        this.executor = executor;
+        this.preparer = new Preparer(executor);
+        this.committer = new Committer(executor);
+        this.rollbacker = new Rollbacker(executor);
+    }
+
+    /**
+     * Get the phase engines running their jobs with the specified executor.
+     * @param executor the executor the engines must use.
+     * @return the shared phase engines.
+     */
+    public static PhaseEngines getPhaseEngines(Executor executor) {
+        PhaseEngines engines = current.get();
+        if (engines == null || engines.executor != executor) {
+            engines = new PhaseEngines(executor);
+            current.set(engines);
+        }
+        return engines;
+    }
+
+    public Preparer getPreparer() {
+        return preparer;
+    }
+
+    public Committer getCommitter() {
+        return committer;
+    }
+
+    public Rollbacker getRollbacker() {
+        return rollbacker;
+    }
+
+}
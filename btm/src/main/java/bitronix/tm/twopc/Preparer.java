@@ -21,6 +21,7 @@ import bitronix.tm.internal.BitronixRollbackException;
 import bitronix.tm.internal.BitronixSystemException;
 import bitronix.tm.internal.XAResourceHolderState;
 import bitronix.tm.internal.XAResourceManager;
+import bitronix.tm.resource.common.LastResourceXAResource;
 import bitronix.tm.twopc.executor.Executor;
 import bitronix.tm.twopc.executor.Job;
 import bitronix.tm.utils.Decoder;
@@ -37,16 +38,15 @@ import java.util.List;
 
 /**
  * Phase 1 Prepare logic engine.
+ * <p>When a single {@link LastResourceXAResource} is enlisted along with XA resources, it is not prepared but
+ * committed in one phase once all the other resources prepared successfully. It then does not take part in phase 2.</p>
  *
  * @author Ludovic Orban
  */
-public final class Preparer extends AbstractPhaseEngine {
+public final class Preparer extends AbstractPhaseEngine<Preparer.PrepareContext> {
 
     private final static Logger log = LoggerFactory.getLogger(Preparer.class);
 
-    // this list has to be thread-safe as the PrepareJobs can be executed in parallel (when async 2PC is configured)
-    private final List<XAResourceHolderState> preparedResources = Collections.synchronizedList(new ArrayList<XAResourceHolderState>());
-
     public Preparer(Executor executor) {
         super(executor);
     }
@@ -62,7 +62,6 @@ public final class Preparer extends AbstractPhaseEngine {
     public List<XAResourceHolderState> prepare(BitronixTransaction transaction) throws RollbackException, BitronixSystemException {
         XAResourceManager resourceManager = transaction.getResourceManager();
         transaction.setStatus(Status.STATUS_PREPARING);
-        preparedResources.clear();
 
         if (resourceManager.size() == 0) {
             if (TransactionManagerServices.getConfiguration().isWarnAboutZeroResourceTransaction())
@@ -71,21 +70,24 @@ public final class Preparer extends AbstractPhaseEngine {
                 if (log.isDebugEnabled()) { log.debug("0 resource enlisted, no prepare needed"); }
 
             transaction.setStatus(Status.STATUS_PREPARED);
-            return preparedResources;
+            return Collections.emptyList();
         }
 
         // 1PC optimization
         if (resourceManager.size() == 1) {
             XAResourceHolderState resourceHolder = resourceManager.getAllResources().get(0);
 
-            preparedResources.add(resourceHolder);
             if (log.isDebugEnabled()) { log.debug("1 resource enlisted, no prepare needed (1PC)"); }
             transaction.setStatus(Status.STATUS_PREPARED);
-            return preparedResources;
+            return Collections.singletonList(resourceHolder);
         }
 
+        PrepareContext context = new PrepareContext(findLastResource(resourceManager));
+        List<XAResourceHolderState> preparedResources = context.preparedResources;
         try {
-            executePhase(resourceManager, false);
+            executePhase(resourceManager, false, context);
+            if (context.lastResource != null)
+                commitLastResource(context.lastResource);
         } catch (PhaseException ex) {
             logFailedResources(ex);
             throwException("transaction failed during prepare of " + transaction, ex);
@@ -96,6 +98,36 @@ public final class Preparer extends AbstractPhaseEngine {
         return Collections.unmodifiableList(preparedResources);
     }
 
+    /**
+     * @return the only enlisted {@link LastResourceXAResource}, or null if there is none or more than one of them in
+     *  which case they are all prepared in position order like the XA resources.
+     */
+    private static XAResourceHolderState findLastResource(XAResourceManager resourceManager) {
+        XAResourceHolderState lastResource = null;
+        for (XAResourceHolderState resourceHolder : resourceManager.getAllResources()) {
+            if (resourceHolder.getXAResource() instanceof LastResourceXAResource) {
+                if (lastResource != null) {
+                    if (log.isDebugEnabled()) { log.debug("more than one last resource enlisted, preparing them all"); }
+                    return null;
+                }
+                lastResource = resourceHolder;
+            }
+        }
+        return lastResource;
+    }
+
+    private static void commitLastResource(XAResourceHolderState resourceHolder) throws PhaseException {
+        try {
+            if (log.isDebugEnabled()) { log.debug("committing last resource " + resourceHolder + " (with one-phase optimization)"); }
+            resourceHolder.getXAResource().commit(resourceHolder.getXid(), true);
+            if (log.isDebugEnabled()) { log.debug("committed last resource " + resourceHolder); }
+        } catch (XAException ex) {
+            throw new PhaseException(Collections.<Exception>singletonList(ex), Collections.singletonList(resourceHolder));
+        } catch (RuntimeException ex) {
+            throw new PhaseException(Collections.<Exception>singletonList(ex), Collections.singletonList(resourceHolder));
+        }
+    }
+
     private void throwException(String message, PhaseException phaseException) throws BitronixRollbackException {
         List<Exception> exceptions = phaseException.getExceptions();
         List<XAResourceHolderState> resources = phaseException.getResourceStates();
@@ -133,19 +165,32 @@ public final class Preparer extends AbstractPhaseEngine {
     }
 
     @Override
-    protected Job createJob(XAResourceHolderState xaResourceHolderState) {
-        return new PrepareJob(xaResourceHolderState);
+    protected Job createJob(XAResourceHolderState xaResourceHolderState, PrepareContext context) {
+        return new PrepareJob(xaResourceHolderState, context.preparedResources);
     }
 
     @Override
-    protected boolean isParticipating(XAResourceHolderState xaResourceHolderState) {
-        return true;
+    protected boolean isParticipating(XAResourceHolderState xaResourceHolderState, PrepareContext context) {
+        return xaResourceHolderState != context.lastResource;
+    }
+
+    static final class PrepareContext {
+        private final XAResourceHolderState lastResource;
+        // this list has to be thread-safe as the PrepareJobs can be executed in parallel (when async 2PC is configured)
+        private final List<XAResourceHolderState> preparedResources = Collections.synchronizedList(new ArrayList<XAResourceHolderState>());
+
+        private PrepareContext(XAResourceHolderState lastResource) {
+            this.lastResource = lastResource;
+        }
     }
 
 
-    private final class PrepareJob extends Job {
-        public PrepareJob(XAResourceHolderState resourceHolder) {
+    private final static class PrepareJob extends Job {
+        private final List<XAResourceHolderState> preparedResources;
+
+        public PrepareJob(XAResourceHolderState resourceHolder, List<XAResourceHolderState> preparedResources) {
             super(resourceHolder);
+            this.preparedResources = preparedResources;
         }
 
         @Override
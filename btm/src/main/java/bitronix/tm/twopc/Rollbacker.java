@@ -43,14 +43,10 @@ import java.util.Set;
  *
  * @author Ludovic Orban
  */
-public final class Rollbacker extends AbstractPhaseEngine {
+public final class Rollbacker extends AbstractPhaseEngine<Rollbacker.RollbackContext> {
 
     private final static Logger log = LoggerFactory.getLogger(Rollbacker.class);
 
-    private final List<XAResourceHolderState> interestedResources = Collections.synchronizedList(new ArrayList<XAResourceHolderState>());
-    // this list has to be thread-safe as the RollbackJobs can be executed in parallel (when async 2PC is configured)
-    private final List<XAResourceHolderState> rolledbackResources = Collections.synchronizedList(new ArrayList<XAResourceHolderState>());
-
     public Rollbacker(Executor executor) {
         super(executor);
     }
@@ -68,11 +64,11 @@ public final class Rollbacker extends AbstractPhaseEngine {
     public void rollback(BitronixTransaction transaction, List<XAResourceHolderState> interestedResources) throws HeuristicMixedException, HeuristicCommitException, BitronixSystemException {
         XAResourceManager resourceManager = transaction.getResourceManager();
         transaction.setStatus(Status.STATUS_ROLLING_BACK);
-        this.interestedResources.clear();
-        this.interestedResources.addAll(interestedResources);
+        RollbackContext context = new RollbackContext(interestedResources);
+        List<XAResourceHolderState> rolledbackResources = context.rolledbackResources;
 
         try {
-            executePhase(resourceManager, true);
+            executePhase(resourceManager, true, context);
         } catch (PhaseException ex) {
             logFailedResources(ex);
             transaction.setStatus(Status.STATUS_UNKNOWN);
@@ -144,23 +140,35 @@ public final class Rollbacker extends AbstractPhaseEngine {
     }
 
     @Override
-    protected Job createJob(XAResourceHolderState resourceHolder) {
-        return new RollbackJob(resourceHolder);
+    protected Job createJob(XAResourceHolderState resourceHolder, RollbackContext context) {
+        return new RollbackJob(resourceHolder, context.rolledbackResources);
     }
 
     @Override
-    protected boolean isParticipating(XAResourceHolderState xaResourceHolderState) {
-        for (XAResourceHolderState resourceHolderState : interestedResources) {
+    protected boolean isParticipating(XAResourceHolderState xaResourceHolderState, RollbackContext context) {
+        for (XAResourceHolderState resourceHolderState : context.interestedResources) {
             if (xaResourceHolderState == resourceHolderState)
                 return true;
         }
         return false;
     }
 
-    private final class RollbackJob extends Job {
+    static final class RollbackContext {
+        private final List<XAResourceHolderState> interestedResources;
+        // this list has to be thread-safe as the RollbackJobs can be executed in parallel (when async 2PC is configured)
+        private final List<XAResourceHolderState> rolledbackResources = Collections.synchronizedList(new ArrayList<XAResourceHolderState>());
+
+        private RollbackContext(List<XAResourceHolderState> interestedResources) {
+            this.interestedResources = interestedResources;
+        }
+    }
+
+    private final static class RollbackJob extends Job {
+        private final List<XAResourceHolderState> rolledbackResources;
 
-        public RollbackJob(XAResourceHolderState resourceHolder) {
+        public RollbackJob(XAResourceHolderState resourceHolder, List<XAResourceHolderState> rolledbackResources) {
             super(resourceHolder);
+            this.rolledbackResources = rolledbackResources;
         }
 
         @Override
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.utils;
+
+import java.util.Arrays;
+
+/**
+ * Records durations and computes percentiles over a sliding window of the most recent samples.
+ * <p>This class is thread-safe.</p>
+ */
+public class LatencyStatistics {
+
+    public static final int DEFAULT_WINDOW_SIZE = 1024;
+
+    private final long[] samples;
+    private int nextSampleIndex;
+    private int sampleCount;
+    private long totalCount;
+    private long maxDuration;
+
+    public LatencyStatistics() {
+        this(DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Create a new instance.
+     * @param windowSize the amount of most recent samples percentiles are computed on.
+     */
+    public LatencyStatistics(int windowSize) {
+        if (windowSize < 1)
+            throw new IllegalArgumentException("window size must be at least 1, got " + windowSize);
+        this.samples = new long[windowSize];
+    }
+
+    /**
+     * Record a duration.
+     * @param duration the duration to record.
+     */
+    public synchronized void record(long duration) {
+        samples[nextSampleIndex] = duration;
+        nextSampleIndex = (nextSampleIndex + 1) % samples.length;
+        if (sampleCount < samples.length)
+            sampleCount++;
+        totalCount++;
+        if (duration > maxDuration)
+            maxDuration = duration;
+    }
+
+    /**
+     * @return the total amount of recorded durations, including the ones which slid out of the window.
+     */
+    public synchronized long getCount() {
+        return totalCount;
+    }
+
+    /**
+     * @return the longest duration ever recorded.
+     */
+    public synchronized long getMax() {
+        return maxDuration;
+    }
+
+    /**
+     * Compute a percentile over the samples currently in the window using the nearest-rank method.
+     * @param percentile the percentile to compute, between 0 (exclusive) and 100 (inclusive).
+     * @return the duration at the requested percentile or 0 if nothing was recorded yet.
+     */
+    public long getPercentile(double percentile) {
+        if (percentile <= 0.0 || percentile > 100.0)
+            throw new IllegalArgumentException("percentile must be in the ]0, 100] range, got " + percentile);
+
+        long[] sorted;
+        synchronized (this) {
+            if (sampleCount == 0)
+                return 0L;
+            sorted = Arrays.copyOf(samples, sampleCount);
+        }
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+
+    /**
+     * Forget all recorded durations.
+     */
+    public synchronized void reset() {
+        nextSampleIndex = 0;
+        sampleCount = 0;
+        totalCount = 0L;
+        maxDuration = 0L;
+    }
+
+    @Override
+    public String toString() {
+        return "a LatencyStatistics with " + getCount() + " recorded duration(s)";
+    }
+}
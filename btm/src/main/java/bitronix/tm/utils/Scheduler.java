@@ -16,13 +16,12 @@
 package bitronix.tm.utils;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.SortedSet;
-import java.util.TreeMap;
 import java.util.TreeSet;
 
 /**
@@ -39,8 +38,16 @@ public class Scheduler<T> implements Iterable<T> {
     public static final Integer ALWAYS_FIRST_POSITION = Integer.MIN_VALUE;
     public static final Integer ALWAYS_LAST_POSITION = Integer.MAX_VALUE;
 
-    private final List<Integer> keys = new ArrayList<Integer>();
-    private final Map<Integer, List<T>> objects = new TreeMap<Integer, List<T>>();
+    private static final int INITIAL_POSITIONS = 2;
+
+    /*
+     * Positions are kept sorted in a plain array with the objects of each position at the same index of a parallel
+     * array. Nearly all schedulers hold one or two positions so looking one up is a couple of int comparisons, and
+     * adding an object to an existing position neither boxes, sorts nor walks a tree.
+     */
+    private int[] positions = new int[INITIAL_POSITIONS];
+    private Object[] lists = new Object[INITIAL_POSITIONS];
+    private int positionCount = 0;
     private int size = 0;
 
 
@@ -48,43 +55,54 @@ public class Scheduler<T> implements Iterable<T> {
     }
 
     public synchronized void add(T obj, Integer position) {
-        List<T> list = objects.get(position);
-        if (list == null) {
-            if (!keys.contains(position)) {
-                keys.add(position);
-                Collections.sort(keys);
-            }
-            list = new ArrayList<T>();
-            objects.put(position, list);
+        int pos = position;
+        int index = indexOf(pos);
+        List<T> list;
+        if (index < 0) {
+            list = new ArrayList<T>(4);
+            insertPosition(-(index + 1), pos, list);
+        } else {
+            list = listAt(index);
         }
         list.add(obj);
         size++;
     }
 
     public synchronized void remove(T obj) {
-        Iterator<T> it = iterator();
-        while (it.hasNext()) {
-            T o = it.next();
-            if (o == obj) {
-                it.remove();
-                return;
+        for (int i = 0; i < positionCount; i++) {
+            List<T> list = listAt(i);
+            for (int j = 0; j < list.size(); j++) {
+                if (list.get(j) == obj) {
+                    list.remove(j);
+                    if (list.isEmpty())
+                        removePosition(i);
+                    size--;
+                    return;
+                }
             }
         }
         throw new NoSuchElementException("no such element: " + obj);
     }
 
     public synchronized SortedSet<Integer> getNaturalOrderPositions() {
-        return new TreeSet<Integer>(objects.keySet());
+        SortedSet<Integer> result = new TreeSet<Integer>();
+        for (int i = 0; i < positionCount; i++) {
+            result.add(positions[i]);
+        }
+        return result;
     }
 
     public synchronized SortedSet<Integer> getReverseOrderPositions() {
-        TreeSet<Integer> result = new TreeSet<Integer>(Collections.reverseOrder());
-        result.addAll(getNaturalOrderPositions());
+        SortedSet<Integer> result = new TreeSet<Integer>(Collections.reverseOrder());
+        for (int i = 0; i < positionCount; i++) {
+            result.add(positions[i]);
+        }
         return result;
     }
 
     public synchronized List<T> getByNaturalOrderForPosition(Integer position) {
-        return objects.get(position);
+        int index = indexOf(position);
+        return index < 0 ? null : listAt(index);
     }
 
     public synchronized List<T> getByReverseOrderForPosition(Integer position) {
@@ -108,7 +126,48 @@ public class Scheduler<T> implements Iterable<T> {
 
     @Override
     public String toString() {
-        return "a Scheduler with " + size() + " object(s) in " + getNaturalOrderPositions().size() + " position(s)";
+        synchronized (this) {
+            return "a Scheduler with " + size + " object(s) in " + positionCount + " position(s)";
+        }
+    }
+
+    /**
+     * @return the index of the position, or (-(insertion point) - 1) if there is no object at that position.
+     */
+    private int indexOf(int position) {
+        // fast path: a single position or an object added after all the others
+        if (positionCount > 0) {
+            int last = positions[positionCount - 1];
+            if (last == position)
+                return positionCount - 1;
+            if (last < position)
+                return -(positionCount + 1);
+        }
+        return Arrays.binarySearch(positions, 0, positionCount, position);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<T> listAt(int index) {
+        return (List<T>) lists[index];
+    }
+
+    private void insertPosition(int index, int position, List<T> list) {
+        if (positionCount == positions.length) {
+            positions = Arrays.copyOf(positions, positionCount * 2);
+            lists = Arrays.copyOf(lists, positionCount * 2);
+        }
+        System.arraycopy(positions, index, positions, index + 1, positionCount - index);
+        System.arraycopy(lists, index, lists, index + 1, positionCount - index);
+        positions[index] = position;
+        lists[index] = list;
+        positionCount++;
+    }
+
+    private void removePosition(int index) {
+        positionCount--;
+        System.arraycopy(positions, index + 1, positions, index, positionCount - index);
+        System.arraycopy(lists, index + 1, lists, index, positionCount - index);
+        lists[positionCount] = null;
     }
 
     /**
@@ -134,9 +193,7 @@ public class Scheduler<T> implements Iterable<T> {
                 if (objectsOfCurrentKey.isEmpty()) {
                     // there are no more objects in the current position's list -> remove it
                     nextKeyIndex--;
-                    Integer key = Scheduler.this.keys.get(nextKeyIndex);
-                    Scheduler.this.keys.remove(nextKeyIndex);
-                    Scheduler.this.objects.remove(key);
+                    removePosition(nextKeyIndex);
                     objectsOfCurrentKey = null;
                 }
                 Scheduler.this.size--;
@@ -146,34 +203,37 @@ public class Scheduler<T> implements Iterable<T> {
         @Override
         public boolean hasNext() {
             synchronized (Scheduler.this) {
-                if (objectsOfCurrentKey == null || objectsOfCurrentKeyIndex >= objectsOfCurrentKey.size()) {
-                    // we reached the end of the current position's list
-
-                    if (nextKeyIndex < Scheduler.this.keys.size()) {
-                        // there is another position after this one
-                        Integer currentKey = Scheduler.this.keys.get(nextKeyIndex++);
-                        objectsOfCurrentKey = Scheduler.this.objects.get(currentKey);
-                        objectsOfCurrentKeyIndex = 0;
-                        return true;
-                    } else {
-                        // there is no other position after this one
-                        return false;
-                    }
-                }
-
-                // there are still objects in the current position's list
-                return true;
+                return advance();
             }
         }
 
         @Override
         public T next() {
             synchronized (Scheduler.this) {
-                if (!hasNext())
+                if (!advance())
                     throw new NoSuchElementException("iterator bounds reached");
                 return objectsOfCurrentKey.get(objectsOfCurrentKeyIndex++);
             }
         }
+
+        private boolean advance() {
+            if (objectsOfCurrentKey == null || objectsOfCurrentKeyIndex >= objectsOfCurrentKey.size()) {
+                // we reached the end of the current position's list
+
+                if (nextKeyIndex < positionCount) {
+                    // there is another position after this one
+                    objectsOfCurrentKey = listAt(nextKeyIndex++);
+                    objectsOfCurrentKeyIndex = 0;
+                    return true;
+                } else {
+                    // there is no other position after this one
+                    return false;
+                }
+            }
+
+            // there are still objects in the current position's list
+            return true;
+        }
     }
 
     /**
@@ -186,7 +246,7 @@ public class Scheduler<T> implements Iterable<T> {
 
         private SchedulerReverseOrderIterator() {
             synchronized (Scheduler.this) {
-                this.nextKeyIndex = Scheduler.this.keys.size() -1;
+                this.nextKeyIndex = positionCount - 1;
             }
         }
 
@@ -200,9 +260,7 @@ public class Scheduler<T> implements Iterable<T> {
                 objectsOfCurrentKey.remove(objectsOfCurrentKeyIndex);
                 if (objectsOfCurrentKey.isEmpty()) {
                     // there are no more objects in the current position's list -> remove it
-                    Integer key = Scheduler.this.keys.get(nextKeyIndex+1);
-                    Scheduler.this.keys.remove(nextKeyIndex+1);
-                    Scheduler.this.objects.remove(key);
+                    removePosition(nextKeyIndex + 1);
                     objectsOfCurrentKey = null;
                 }
                 Scheduler.this.size--;
@@ -212,34 +270,37 @@ public class Scheduler<T> implements Iterable<T> {
         @Override
         public boolean hasNext() {
             synchronized (Scheduler.this) {
-                if (objectsOfCurrentKey == null || objectsOfCurrentKeyIndex >= objectsOfCurrentKey.size()) {
-                    // we reached the end of the current position's list
-
-                    if (nextKeyIndex >= 0) {
-                        // there is another position after this one
-                        Integer currentKey = Scheduler.this.keys.get(nextKeyIndex--);
-                        objectsOfCurrentKey = Scheduler.this.objects.get(currentKey);
-                        objectsOfCurrentKeyIndex = 0;
-                        return true;
-                    } else {
-                        // there is no other position after this one
-                        return false;
-                    }
-                }
-
-                // there are still objects in the current position's list
-                return true;
+                return advance();
             }
         }
 
         @Override
         public T next() {
             synchronized (Scheduler.this) {
-                if (!hasNext())
+                if (!advance())
                     throw new NoSuchElementException("iterator bounds reached");
                 return objectsOfCurrentKey.get(objectsOfCurrentKeyIndex++);
             }
         }
+
+        private boolean advance() {
+            if (objectsOfCurrentKey == null || objectsOfCurrentKeyIndex >= objectsOfCurrentKey.size()) {
+                // we reached the end of the current position's list
+
+                if (nextKeyIndex >= 0) {
+                    // there is another position after this one
+                    objectsOfCurrentKey = listAt(nextKeyIndex--);
+                    objectsOfCurrentKeyIndex = 0;
+                    return true;
+                } else {
+                    // there is no other position after this one
+                    return false;
+                }
+            }
+
+            // there are still objects in the current position's list
+            return true;
+        }
     }
 
 }
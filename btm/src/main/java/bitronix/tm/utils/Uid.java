@@ -26,13 +26,24 @@ public final class Uid {
 
     private final byte[] array;
     private final int hashCodeValue;
-    private final String toStringValue;
+    private volatile String toStringValue;
 
     public Uid(byte[] array) {
-        this.array = new byte[array.length];
-        System.arraycopy(array, 0, this.array, 0, array.length);
+        this(array, true);
+    }
+
+    /**
+     * @param array the UID bytes.
+     * @param copy false if the UID can take ownership of the array, which must then never be modified anymore.
+     */
+    Uid(byte[] array, boolean copy) {
+        if (copy) {
+            this.array = new byte[array.length];
+            System.arraycopy(array, 0, this.array, 0, array.length);
+        } else {
+            this.array = array;
+        }
         this.hashCodeValue = arrayHashCode(array);
-        this.toStringValue = arrayToString(array);
     }
 
     public byte[] getArray() {
@@ -82,7 +93,13 @@ public final class Uid {
 
     @Override
     public String toString() {
-        return toStringValue;
+        // decoded on first use only as most UIDs are never printed; racing threads compute the same value
+        String value = toStringValue;
+        if (value == null) {
+            value = arrayToString(array);
+            toStringValue = value;
+        }
+        return value;
     }
 
     /**
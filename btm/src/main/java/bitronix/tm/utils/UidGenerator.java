@@ -16,6 +16,7 @@
 package bitronix.tm.utils;
 
 import bitronix.tm.BitronixXid;
+import bitronix.tm.Configuration;
 import bitronix.tm.TransactionManagerServices;
 
 import java.util.concurrent.atomic.AtomicInteger;
@@ -33,24 +34,48 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class UidGenerator {
 
     private final static AtomicInteger sequenceGenerator = new AtomicInteger();
+    private final static ThreadLocal<SequenceBlock> sequenceBlocks = new ThreadLocal<SequenceBlock>() {
+        @Override
+        protected SequenceBlock initialValue() {
+            return new SequenceBlock();
+        }
+    };
 
     /**
      * Generate a UID, globally unique. This method relies on the configured serverId for network uniqueness.
      * @return the generated UID.
      */
     public static Uid generateUid() {
-        byte[] timestamp = Encoder.longToBytes(MonotonicClock.currentTimeMillis());
-        byte[] sequence = Encoder.intToBytes(sequenceGenerator.incrementAndGet());
-        byte[] serverId = TransactionManagerServices.getConfiguration().buildServerIdArray();
-
-        int uidLength = serverId.length + timestamp.length + sequence.length;
-        byte[] uidArray = new byte[uidLength];
+        Configuration configuration = TransactionManagerServices.getConfiguration();
+        byte[] serverId = configuration.buildServerIdArray();
+        long timestamp = MonotonicClock.currentTimeMillis();
+        int sequence = nextSequence(configuration.getUidSequenceBlockSize());
 
+        // the server ID is cached by the configuration, only the timestamp and sequence have to be encoded
+        byte[] uidArray = new byte[serverId.length + 8 + 4];
         System.arraycopy(serverId, 0, uidArray, 0, serverId.length);
-        System.arraycopy(timestamp, 0, uidArray, serverId.length, timestamp.length);
-        System.arraycopy(sequence, 0, uidArray, serverId.length + timestamp.length, sequence.length);
+        int pos = serverId.length;
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            uidArray[pos++] = (byte) (timestamp >> shift);
+        }
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            uidArray[pos++] = (byte) (sequence >> shift);
+        }
+
+        return new Uid(uidArray, false);
+    }
+
+    private static int nextSequence(int blockSize) {
+        if (blockSize <= 1)
+            return sequenceGenerator.incrementAndGet();
 
-        return new Uid(uidArray);
+        SequenceBlock block = sequenceBlocks.get();
+        if (block.next == block.end) {
+            int first = sequenceGenerator.getAndAdd(blockSize) + 1;
+            block.next = first;
+            block.end = first + blockSize;
+        }
+        return block.next++;
     }
 
     /**
@@ -62,4 +87,12 @@ public class UidGenerator {
         return new BitronixXid(gtrid, generateUid());
     }
 
+    /**
+     * Range of sequence numbers reserved by a thread.
+     */
+    private final static class SequenceBlock {
+        private int next;
+        private int end;
+    }
+
 }
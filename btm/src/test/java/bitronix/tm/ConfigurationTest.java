@@ -98,8 +98,8 @@ public class ConfigurationTest extends TestCase {
                 " jndiTransactionSynchronizationRegistryName=java:comp/TransactionSynchronizationRegistry," +
                 " jndiUserTransactionName=java:comp/UserTransaction, journal=disk," +
                 " logPart1Filename=target/btm1.tlog, logPart2Filename=target/btm2.tlog, maxLogSizeInMb=2," +
-                " resourceConfigurationFilename=null, serverId=null, skipCorruptedLogs=false, synchronousJmxRegistration=false," +
-                " warnAboutZeroResourceTransaction=true]";
+                " parallelBeforeCompletionThreads=0, resourceConfigurationFilename=null, serverId=null, skipCorruptedLogs=false, synchronousJmxRegistration=false," +
+                " uidSequenceBlockSize=1, warnAboutZeroResourceTransaction=true]";
 
         assertEquals(expectation, new Configuration().toString());
     }
@@ -28,6 +28,10 @@ import javax.transaction.Status;
 import javax.transaction.Synchronization;
 import javax.transaction.Transaction;
 import java.sql.Connection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  *
@@ -77,6 +81,130 @@ public class JtaTest extends TestCase {
         log.info("test over");
     }
 
+    public void testActivateContextOnOtherThread() throws Exception {
+        btm.begin();
+        final BitronixTransaction tx = btm.getCurrentTransaction();
+        TransactionContext context = btm.captureContext();
+
+        // FutureTask.get() rethrows any exception thrown by the worker in the test thread
+        FutureTask<Transaction> task = new FutureTask<Transaction>(context.wrap(new Callable<Transaction>() {
+            public Transaction call() throws Exception {
+                btm.getTransaction().registerSynchronization(new CountingSynchronization());
+                return btm.getTransaction();
+            }
+        }));
+        runOnOtherThread(task);
+        assertSame(tx, task.get());
+        assertSame(tx, btm.getTransaction());
+
+        // the worker's thread context must have been cleared
+        task = new FutureTask<Transaction>(new Callable<Transaction>() {
+            public Transaction call() throws Exception {
+                return btm.getTransaction();
+            }
+        });
+        runOnOtherThread(task);
+        assertNull(task.get());
+
+        btm.commit();
+        assertNull(btm.getTransaction());
+    }
+
+    public void testCompletionRefusedWhileContextActive() throws Exception {
+        btm.begin();
+        final TransactionContext context = btm.captureContext();
+
+        final CountDownLatch activated = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        FutureTask<Object> task = new FutureTask<Object>(context.wrap(new Callable<Object>() {
+            public Object call() throws Exception {
+                activated.countDown();
+                release.await();
+                return null;
+            }
+        }));
+        new Thread(task).start();
+        activated.await();
+
+        try {
+            btm.commit();
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException ex) {
+            assertEquals("cannot commit transaction, its context is still active on 1 thread(s)", ex.getMessage());
+        }
+        try {
+            btm.rollback();
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException ex) {
+            assertEquals("cannot roll back transaction, its context is still active on 1 thread(s)", ex.getMessage());
+        }
+        assertEquals(Status.STATUS_ACTIVE, btm.getStatus());
+
+        release.countDown();
+        task.get();
+        btm.commit();
+
+        // the context cannot be activated anymore once the transaction completed
+        task = new FutureTask<Object>(context.wrap(new Callable<Object>() {
+            public Object call() throws Exception {
+                return null;
+            }
+        }));
+        runOnOtherThread(task);
+        try {
+            task.get();
+            fail("expected ExecutionException");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    private static void runOnOtherThread(Runnable task) throws InterruptedException {
+        Thread thread = new Thread(task);
+        thread.start();
+        thread.join();
+    }
+
+    public void testActivateContextErrors() throws Exception {
+        try {
+            btm.captureContext();
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException ex) {
+            assertEquals("no transaction started on this thread", ex.getMessage());
+        }
+
+        btm.begin();
+        TransactionContext context = btm.captureContext();
+        try {
+            context.activate();
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException ex) {
+            assertEquals("a transaction is already running on this thread", ex.getMessage());
+        }
+
+        Transaction tx = btm.suspend();
+        context.activate();
+        assertSame(tx, btm.getTransaction());
+        context.deactivate();
+        assertNull(btm.getTransaction());
+        try {
+            context.deactivate();
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+
+        btm.resume(tx);
+        btm.rollback();
+        try {
+            context.activate();
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        assertNull(btm.getTransaction());
+    }
+
     public void testTimeout() throws Exception {
         btm.setTransactionTimeout(1);
         btm.begin();
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm;
+
+import bitronix.tm.utils.Scheduler;
+import junit.framework.TestCase;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ */
+public class ParallelBeforeCompletionTest extends TestCase {
+
+    private BitronixTransactionManager btm;
+
+    @Override
+    protected void setUp() throws Exception {
+        TransactionManagerServices.getConfiguration().setGracefulShutdownInterval(1);
+        TransactionManagerServices.getConfiguration().setParallelBeforeCompletionThreads(2);
+        btm = TransactionManagerServices.getTransactionManager();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        btm.shutdown();
+    }
+
+    public void testSamePositionRunsInParallel() throws Exception {
+        btm.begin();
+        Transaction tx = btm.getTransaction();
+
+        CyclicBarrier barrier = new CyclicBarrier(3);
+        List<Transaction> seen = Collections.synchronizedList(new ArrayList<Transaction>());
+        RecordingSynchronization sync1 = new RecordingSynchronization(barrier, seen);
+        RecordingSynchronization sync2 = new RecordingSynchronization(barrier, seen);
+        RecordingSynchronization sync3 = new RecordingSynchronization(barrier, seen);
+        tx.registerSynchronization(sync1);
+        tx.registerSynchronization(sync2);
+        tx.registerSynchronization(sync3);
+
+        btm.commit();
+
+        // the barrier only opens when the three synchronizations run at the same time
+        assertEquals(3, seen.size());
+        for (Transaction transaction : seen) {
+            assertSame(tx, transaction);
+        }
+        assertEquals(Status.STATUS_COMMITTED, sync1.afterStatus);
+        assertEquals(Status.STATUS_COMMITTED, sync2.afterStatus);
+        assertEquals(Status.STATUS_COMMITTED, sync3.afterStatus);
+        assertNull(btm.getTransaction());
+    }
+
+    public void testPositionsAreExecutedInOrder() throws Exception {
+        btm.begin();
+        final BitronixTransaction tx = btm.getCurrentTransaction();
+
+        final List<String> executions = Collections.synchronizedList(new ArrayList<String>());
+        tx.getSynchronizationScheduler().add(new NamedSynchronization("low", executions), -10);
+        tx.getSynchronizationScheduler().add(new NamedSynchronization("high1", executions), 10);
+        tx.getSynchronizationScheduler().add(new NamedSynchronization("high2", executions), 10);
+        tx.registerSynchronization(new NamedSynchronization("default", executions) {
+            @Override
+            public void beforeCompletion() {
+                super.beforeCompletion();
+                tx.getSynchronizationScheduler().add(new NamedSynchronization("late", executions), Scheduler.DEFAULT_POSITION);
+            }
+        });
+
+        btm.commit();
+
+        assertEquals(5, executions.size());
+        assertTrue(executions.subList(0, 2).contains("high1"));
+        assertTrue(executions.subList(0, 2).contains("high2"));
+        assertEquals("default", executions.get(2));
+        assertEquals("late", executions.get(3));
+        assertEquals("low", executions.get(4));
+    }
+
+    public void testFailureRollsBack() throws Exception {
+        btm.begin();
+        Transaction tx = btm.getTransaction();
+
+        RecordingSynchronization sync = new RecordingSynchronization(null, new ArrayList<Transaction>());
+        tx.registerSynchronization(sync);
+        tx.registerSynchronization(new Synchronization() {
+            public void beforeCompletion() {
+                throw new IllegalStateException("flush failed");
+            }
+
+            public void afterCompletion(int status) {
+            }
+        });
+
+        try {
+            btm.commit();
+            fail("expected RollbackException");
+        } catch (RollbackException ex) {
+            assertEquals("RuntimeException thrown during beforeCompletion cycle caused transaction rollback", ex.getMessage());
+            assertEquals("flush failed", ex.getCause().getMessage());
+        }
+
+        assertEquals(1, sync.beforeCount);
+        assertEquals(Status.STATUS_ROLLEDBACK, sync.afterStatus);
+        assertNull(btm.getTransaction());
+    }
+
+    public void testErrorOnCompletingThreadAwaitsOtherSynchronizations() throws Exception {
+        btm.begin();
+        Transaction tx = btm.getTransaction();
+
+        final AtomicBoolean slowDone = new AtomicBoolean();
+        // runs on the executor
+        tx.registerSynchronization(new Synchronization() {
+            public void beforeCompletion() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException ex) {
+                    throw new RuntimeException(ex);
+                }
+                slowDone.set(true);
+            }
+
+            public void afterCompletion(int status) {
+            }
+        });
+        // runs on the thread completing the transaction
+        tx.registerSynchronization(new Synchronization() {
+            public void beforeCompletion() {
+                throw new AssertionError("flush failed");
+            }
+
+            public void afterCompletion(int status) {
+            }
+        });
+
+        try {
+            btm.commit();
+            fail("expected AssertionError");
+        } catch (AssertionError ex) {
+            assertEquals("flush failed", ex.getMessage());
+        }
+        assertTrue(slowDone.get());
+        assertEquals(Status.STATUS_MARKED_ROLLBACK, tx.getStatus());
+
+        btm.rollback();
+        assertNull(btm.getTransaction());
+    }
+
+    private class RecordingSynchronization implements Synchronization {
+        private final CyclicBarrier barrier;
+        private final List<Transaction> seen;
+        private volatile int beforeCount;
+        private volatile int afterStatus = -1;
+
+        private RecordingSynchronization(CyclicBarrier barrier, List<Transaction> seen) {
+            this.barrier = barrier;
+            this.seen = seen;
+        }
+
+        public void beforeCompletion() {
+            beforeCount++;
+            try {
+                seen.add(btm.getTransaction());
+                if (barrier != null)
+                    barrier.await(5, TimeUnit.SECONDS);
+            } catch (Exception ex) {
+                throw new RuntimeException("synchronizations did not run in parallel", ex);
+            }
+        }
+
+        public void afterCompletion(int status) {
+            afterStatus = status;
+        }
+    }
+
+    private static class NamedSynchronization implements Synchronization {
+        private final String name;
+        private final List<String> executions;
+
+        private NamedSynchronization(String name, List<String> executions) {
+            this.name = name;
+            this.executions = executions;
+        }
+
+        public void beforeCompletion() {
+            executions.add(name);
+        }
+
+        public void afterCompletion(int status) {
+        }
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.internal;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ */
+public class InFlightTransactionsTest extends TestCase {
+
+    public void testPutGetRemove() throws Exception {
+        InFlightTransactions<String, Integer> registry = new InFlightTransactions<String, Integer>(4);
+        registry.put("tx1", 100L, 1);
+        registry.put("tx2", 200L, 2);
+        assertEquals(2, registry.size());
+        assertEquals(Integer.valueOf(1), registry.get("tx1"));
+        assertEquals(Integer.valueOf(2), registry.get("tx2"));
+
+        assertEquals(Integer.valueOf(1), registry.remove("tx1"));
+        assertNull(registry.remove("tx1"));
+        assertNull(registry.get("tx1"));
+        assertEquals(1, registry.size());
+        assertEquals(Collections.singletonList("tx2"), registry.getTransactions());
+    }
+
+    public void testOldestTimestamp() throws Exception {
+        InFlightTransactions<String, Integer> registry = new InFlightTransactions<String, Integer>(1);
+        assertEquals(Long.MIN_VALUE, registry.getOldestTimestamp());
+
+        registry.put("tx2", 200L, 2);
+        registry.put("tx1", 100L, 1);
+        registry.put("tx3", 300L, 3);
+        assertEquals(100L, registry.getOldestTimestamp());
+
+        registry.remove("tx1");
+        assertEquals(200L, registry.getOldestTimestamp());
+        registry.remove("tx3");
+        assertEquals(200L, registry.getOldestTimestamp());
+        registry.remove("tx2");
+        assertEquals(Long.MIN_VALUE, registry.getOldestTimestamp());
+    }
+
+    public void testConcurrentRegistrations() throws Exception {
+        final InFlightTransactions<Object, Object> registry = new InFlightTransactions<Object, Object>();
+        final int threadCount = 4;
+        final int iterations = 10000;
+        final CountDownLatch start = new CountDownLatch(1);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    for (int j = 0; j < iterations; j++) {
+                        Object transaction = new Object();
+                        registry.put(transaction, j, transaction);
+                        registry.remove(transaction);
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, registry.size());
+        assertTrue(registry.getTransactions().isEmpty());
+        assertEquals(Long.MIN_VALUE, registry.getOldestTimestamp());
+    }
+
+}
@@ -37,6 +37,11 @@ import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
 
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
 /**
  *
  * @author Ludovic Orban
@@ -344,6 +349,35 @@ public class JdbcPoolTest extends TestCase {
         }
     }
 
+    public void testRecycleOnlyWithinSameTransaction() throws Exception {
+        if (log.isDebugEnabled()) { log.debug("*** Starting testRecycleOnlyWithinSameTransaction"); }
+        TransactionManager tm = TransactionManagerServices.getTransactionManager();
+        tm.begin();
+
+        Connection c1 = pds.getConnection();
+        c1.createStatement();
+        c1.close();
+        assertEquals(0, pds.getInPoolSize());
+
+        javax.transaction.Transaction suspended = tm.suspend();
+        tm.begin();
+        Connection c2 = pds.getConnection();
+        c2.createStatement();
+        assertEquals(0, pds.getInPoolSize());
+        c2.close();
+        tm.commit();
+        assertEquals(1, pds.getInPoolSize());
+
+        tm.resume(suspended);
+        Connection c3 = pds.getConnection();
+        c3.createStatement();
+        assertEquals(1, pds.getInPoolSize());
+        c3.close();
+        tm.commit();
+
+        assertEquals(2, pds.getInPoolSize());
+    }
+
     public void testCloseGlobalContextNoRecycle() throws Exception {
         if (log.isDebugEnabled()) { log.debug("*** Starting testCloseGlobalContextNoRecycle"); }
         TransactionManager tm = TransactionManagerServices.getTransactionManager();
@@ -455,6 +489,68 @@ public class JdbcPoolTest extends TestCase {
         assertTrue(unwrappedCStmt.getClass().getName().contains("java.sql.CallableStatement") && unwrappedCStmt.getClass().getName().contains("EnhancerByMockito"));
     }
 
+    public void testConnectionTestedOnEachAcquisitionByDefault() throws Exception {
+        if (log.isDebugEnabled()) { log.debug("*** Starting testConnectionTestedOnEachAcquisitionByDefault"); }
+        pds.setTestQuery("SELECT 1");
+
+        Connection c = pds.getConnection();
+        Connection physicalConnection = (Connection) unwrap(c, Connection.class);
+        c.close();
+        c = pds.getConnection();
+        c.close();
+
+        verify(physicalConnection, times(2)).prepareStatement("SELECT 1");
+    }
+
+    public void testRecentlyValidConnectionNotTested() throws Exception {
+        if (log.isDebugEnabled()) { log.debug("*** Starting testRecentlyValidConnectionNotTested"); }
+        pds.setTestQuery("SELECT 1");
+        pds.setConnectionTestIdleTime(60);
+
+        Connection c = pds.getConnection();
+        Connection physicalConnection = (Connection) unwrap(c, Connection.class);
+        c.close();
+        c = pds.getConnection();
+        c.close();
+
+        verify(physicalConnection, never()).prepareStatement("SELECT 1");
+    }
+
+    public void testBrokenIdleConnectionClosedByShrink() throws Exception {
+        if (log.isDebugEnabled()) { log.debug("*** Starting testBrokenIdleConnectionClosedByShrink"); }
+        pds.close();
+
+        pds = new PoolingDataSource();
+        pds.setMinPoolSize(1);
+        pds.setMaxPoolSize(1);
+        pds.setMaxIdleTime(60);
+        pds.setClassName(MockitoXADataSource.class.getName());
+        pds.setUniqueName("pds");
+        pds.setAllowLocalTransactions(true);
+        pds.setAcquisitionTimeout(1);
+        pds.setTestQuery("SELECT 1");
+        pds.setConnectionTestIdleTime(1);
+        pds.init();
+
+        Field poolField = pds.getClass().getDeclaredField("pool");
+        poolField.setAccessible(true);
+        XAPool pool = (XAPool) poolField.get(pds);
+
+        Connection c = pds.getConnection();
+        Connection physicalConnection = (Connection) unwrap(c, Connection.class);
+        c.close();
+        doThrow(new SQLException("connection reset")).when(physicalConnection).prepareStatement("SELECT 1");
+
+        Thread.sleep(1100); // let the connection become due for an idle test
+        pool.shrink();
+
+        assertEquals(1, pool.totalPoolSize());
+        assertEquals(1, pool.inPoolSize());
+        c = pds.getConnection();
+        assertNotSame(physicalConnection, unwrap(c, Connection.class));
+        c.close();
+    }
+
     private static boolean isWrapperFor(Object obj, Class param) throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
         Method isWrapperForMethod = obj.getClass().getMethod("isWrapperFor", Class.class);
         return (Boolean) isWrapperForMethod.invoke(obj, param);
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.mock;
+
+import bitronix.tm.BitronixTransactionManager;
+import bitronix.tm.TransactionManagerServices;
+import bitronix.tm.mock.events.EventRecorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.transaction.Status;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+
+/**
+ * Measures the time and, when the JVM can report it, the memory allocated by a begin / enlist / commit cycle, and
+ * compares a single resource transaction with a plain JDBC local transaction on the same pool. This is not part of
+ * the unit tests, run it with <code>mvn test -Pbenchmark</code>.
+ */
+public class TransactionLifecycleBenchmark extends AbstractMockJdbcTest {
+
+    private final static Logger log = LoggerFactory.getLogger(TransactionLifecycleBenchmark.class);
+
+    private static final int WARMUP_ITERATIONS = 2000;
+    private static final int ITERATIONS = 10000;
+
+    public void testBeginEnlistCommit() throws Exception {
+        BitronixTransactionManager tm = TransactionManagerServices.getTransactionManager();
+
+        runTransactions(tm, WARMUP_ITERATIONS);
+
+        long allocatedBefore = getAllocatedBytes();
+        long start = System.nanoTime();
+        runTransactions(tm, ITERATIONS);
+        long totalTime = System.nanoTime() - start;
+        long allocatedAfter = getAllocatedBytes();
+
+        log.info("begin/enlist/commit: " + (totalTime / ITERATIONS) + "ns per transaction" +
+                (allocatedBefore < 0 ? "" : ", " + ((allocatedAfter - allocatedBefore) / ITERATIONS) + " bytes allocated per transaction"));
+
+        assertEquals(Status.STATUS_NO_TRANSACTION, tm.getStatus());
+        assertEquals(0, tm.getInFlightTransactionCount());
+    }
+
+    public void testOnePhaseCommitOverhead() throws Exception {
+        BitronixTransactionManager tm = TransactionManagerServices.getTransactionManager();
+
+        runTransactions(tm, WARMUP_ITERATIONS);
+        runLocalTransactions(WARMUP_ITERATIONS);
+
+        long start = System.nanoTime();
+        runLocalTransactions(ITERATIONS);
+        long localTime = (System.nanoTime() - start) / ITERATIONS;
+
+        start = System.nanoTime();
+        runTransactions(tm, ITERATIONS);
+        long xaTime = (System.nanoTime() - start) / ITERATIONS;
+
+        log.info("local commit: " + localTime + "ns per transaction, 1PC commit: " + xaTime + "ns per transaction" +
+                ", overhead: " + (xaTime - localTime) + "ns per transaction");
+
+        assertEquals(Status.STATUS_NO_TRANSACTION, tm.getStatus());
+        assertEquals(0, tm.getInFlightTransactionCount());
+    }
+
+    private void runTransactions(BitronixTransactionManager tm, int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            tm.begin();
+            Connection connection = poolingDataSource1.getConnection();
+            connection.createStatement();
+            connection.close();
+            tm.commit();
+
+            // the recorder would otherwise keep every event of the run
+            EventRecorder.clear();
+        }
+    }
+
+    private void runLocalTransactions(int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            Connection connection = poolingDataSource1.getConnection();
+            connection.setAutoCommit(false);
+            connection.createStatement();
+            connection.commit();
+            connection.close();
+
+            EventRecorder.clear();
+        }
+    }
+
+    /**
+     * @return the amount of bytes allocated by the current thread, or -1 if the JVM cannot tell.
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        try {
+            Class<?> sunThreadMXBean = Class.forName("com.sun.management.ThreadMXBean");
+            if (!sunThreadMXBean.isInstance(threadMXBean))
+                return -1L;
+            Method method = sunThreadMXBean.getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(threadMXBean, Thread.currentThread().getId());
+        } catch (Exception ex) {
+            return -1L;
+        }
+    }
+
+}
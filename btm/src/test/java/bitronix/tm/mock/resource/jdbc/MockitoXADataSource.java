@@ -32,11 +32,13 @@ import java.io.PrintWriter;
 import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
 
@@ -54,7 +56,7 @@ import static org.mockito.Mockito.when;
  */
 public class MockitoXADataSource implements XADataSource {
 
-    private List<XAConnection> xaConnections = new ArrayList<XAConnection>();
+    private List<XAConnection> xaConnections = Collections.synchronizedList(new ArrayList<XAConnection>());
     private String userName;
     private String password;
     private String database;
@@ -230,7 +232,7 @@ public class MockitoXADataSource implements XADataSource {
 			}
         }).doThrow(new SQLException("Connection is already closed")).when(mockConnection).close();
 
-        // Handle Connection.commit()
+        // Handle Connection.commit(), a connection can commit one local transaction after another
         doAnswer(new Answer() {
             @Override
 			public Object answer(InvocationOnMock invocation) throws Throwable {
@@ -238,7 +240,7 @@ public class MockitoXADataSource implements XADataSource {
 				eventRecorder.addEvent(new LocalCommitEvent(mockConnection, new Exception()));
 				return null;
 			}
-        }).doThrow(new SQLException("Transaction already commited")).when(mockConnection).commit();
+        }).when(mockConnection).commit();
 
         // Handle Connection.rollback()
         doAnswer(new Answer() {
@@ -274,7 +276,11 @@ public class MockitoXADataSource implements XADataSource {
         return new Answer<PreparedStatement>() {
             @Override
             public PreparedStatement answer(InvocationOnMock invocation) throws Throwable {
-                return mock(PreparedStatement.class);
+                // connection test queries need a result set to close
+                PreparedStatement mockPreparedStatement = mock(PreparedStatement.class);
+                ResultSet mockResultSet = mock(ResultSet.class);
+                when(mockPreparedStatement.executeQuery()).thenReturn(mockResultSet);
+                return mockPreparedStatement;
             }
         };
     }
@@ -20,8 +20,13 @@ import bitronix.tm.TransactionManagerServices;
 import bitronix.tm.mock.resource.jdbc.MockitoXADataSource;
 import bitronix.tm.resource.jdbc.PoolingDataSource;
 import bitronix.tm.utils.CryptoEngine;
+import bitronix.tm.utils.MonotonicClock;
 import junit.framework.TestCase;
 
+import java.lang.reflect.Field;
+import java.sql.Connection;
+import java.sql.SQLException;
+
 /**
  *
  * @author Ludovic Orban
@@ -60,4 +65,231 @@ public class XAPoolTest extends TestCase {
         assertFalse(TransactionManagerServices.isTaskSchedulerRunning());
     }
 
-}
\ No newline at end of file
+    public void testSpareIdleConnectionsAreCreatedInBackground() throws Exception {
+        PoolingDataSource pds = new PoolingDataSource();
+        pds.setClassName(MockitoXADataSource.class.getName());
+        pds.setUniqueName("spare");
+        pds.setMaxPoolSize(4);
+        pds.setSpareIdleConnections(2);
+        pds.setPoolFillerThreads(2);
+        pds.setAllowLocalTransactions(true);
+        pds.init();
+        try {
+            XAPool pool = getPool(pds);
+            assertTrue(pool.awaitBackgroundCreations(5000));
+            assertEquals(2, pds.getInPoolSize());
+            assertEquals(2, pds.getTotalPoolSize());
+
+            Connection c1 = pds.getConnection();
+            assertTrue(pool.awaitBackgroundCreations(5000));
+            assertEquals(2, pds.getInPoolSize());
+            assertEquals(3, pds.getTotalPoolSize());
+
+            Connection c2 = pds.getConnection();
+            Connection c3 = pds.getConnection();
+            assertTrue(pool.awaitBackgroundCreations(5000));
+            assertEquals(1, pds.getInPoolSize());
+            assertEquals(4, pds.getTotalPoolSize());
+
+            c1.close();
+            c2.close();
+            c3.close();
+            assertEquals(4, pds.getInPoolSize());
+        } finally {
+            pds.close();
+            TransactionManagerServices.getTransactionManager().shutdown();
+        }
+    }
+
+    public void testBackgroundCreationFailureWakesWaitingBorrower() throws Exception {
+        PoolingDataSource pds = new PoolingDataSource();
+        pds.setClassName(MockitoXADataSource.class.getName());
+        pds.setUniqueName("spare-failure");
+        pds.setMaxPoolSize(2);
+        pds.setSpareIdleConnections(1);
+        pds.setAcquisitionTimeout(30);
+        pds.setAllowLocalTransactions(true);
+        pds.init();
+        try {
+            XAPool pool = getPool(pds);
+            assertTrue(pool.awaitBackgroundCreations(5000));
+            assertEquals(1, pds.getInPoolSize());
+
+            MockitoXADataSource.setStaticGetXAConnectionException(new SQLException("creation failed"));
+            Connection c1 = pds.getConnection();
+            // the spare connection creation fails while nobody is waiting
+            assertTrue(pool.awaitBackgroundCreations(5000));
+            assertEquals(1, pds.getTotalPoolSize());
+
+            // the creation requested by the waiting borrower fails and must wake it up well before its timeout
+            try {
+                pds.getConnection();
+                fail("expected SQLException");
+            } catch (SQLException ex) {
+                Throwable cause = ex;
+                while (cause.getCause() != null) {
+                    cause = cause.getCause();
+                }
+                assertEquals("creation failed", cause.getMessage());
+            }
+            assertEquals(0, pds.getWaitTimeoutCount());
+            assertEquals(0, pds.getWaitingCount());
+
+            MockitoXADataSource.setStaticGetXAConnectionException(null);
+            c1.close();
+        } finally {
+            MockitoXADataSource.setStaticGetXAConnectionException(null);
+            pds.close();
+            TransactionManagerServices.getTransactionManager().shutdown();
+        }
+    }
+
+    public void testReleasedConnectionIsHandedOffToWaitingBorrower() throws Exception {
+        final PoolingDataSource pds = new PoolingDataSource();
+        pds.setClassName(MockitoXADataSource.class.getName());
+        pds.setUniqueName("handoff");
+        pds.setMaxPoolSize(1);
+        pds.setAcquisitionTimeout(5);
+        pds.setAllowLocalTransactions(true);
+        pds.init();
+        try {
+            Connection c1 = pds.getConnection();
+            assertEquals(0, pds.getWaitCount());
+
+            final Connection[] borrowed = new Connection[1];
+            Thread waiter = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        borrowed[0] = pds.getConnection();
+                    } catch (Exception ex) {
+                        // asserted below
+                    }
+                }
+            };
+            waiter.start();
+
+            for (int i = 0; i < 100 && pds.getWaitingCount() == 0; i++) {
+                Thread.sleep(20);
+            }
+            assertEquals(1, pds.getWaitingCount());
+
+            c1.close();
+            waiter.join(5000);
+
+            assertNotNull(borrowed[0]);
+            assertEquals(0, pds.getInPoolSize());
+            assertEquals(0, pds.getWaitingCount());
+            assertEquals(1, pds.getWaitCount());
+            assertEquals(0, pds.getWaitTimeoutCount());
+
+            borrowed[0].close();
+            assertEquals(1, pds.getInPoolSize());
+        } finally {
+            pds.close();
+            TransactionManagerServices.getTransactionManager().shutdown();
+        }
+    }
+
+    public void testConnectionTestIdleTimeSchedulesMaintenance() throws Exception {
+        PoolingDataSource pds = new PoolingDataSource();
+        pds.setClassName(MockitoXADataSource.class.getName());
+        pds.setUniqueName("idle-test");
+        pds.setMaxPoolSize(2);
+        pds.setConnectionTestIdleTime(30);
+        pds.setAllowLocalTransactions(true);
+        try {
+            int queuedTasks = TransactionManagerServices.getTaskScheduler().countTasksQueued();
+            pds.init();
+            assertEquals(queuedTasks + 1, TransactionManagerServices.getTaskScheduler().countTasksQueued());
+
+            long now = MonotonicClock.currentTimeMillis();
+            long delay = getPool(pds).getNextShrinkDate().getTime() - now;
+            assertTrue("next maintenance in " + delay + "ms", delay > 29000L && delay <= 30000L);
+
+            pds.close();
+            assertEquals(queuedTasks, TransactionManagerServices.getTaskScheduler().countTasksQueued());
+        } finally {
+            pds.close();
+            TransactionManagerServices.getTransactionManager().shutdown();
+        }
+    }
+
+    public void testAdaptivePoolSizing() throws Exception {
+        PoolingDataSource pds = new PoolingDataSource();
+        pds.setClassName(MockitoXADataSource.class.getName());
+        pds.setUniqueName("adaptive");
+        pds.setMaxPoolSize(10);
+        pds.setAdaptivePoolSizingInterval(3600);
+        pds.setAllowLocalTransactions(true);
+        pds.init();
+        try {
+            XAPool pool = getPool(pds);
+            assertEquals(0, pool.targetPoolSize());
+            assertNull(pool.lastPoolSizingDecision());
+
+            Connection[] connections = new Connection[6];
+            for (int i = 0; i < connections.length; i++) {
+                connections[i] = pds.getConnection();
+            }
+            for (Connection connection : connections) {
+                connection.close();
+            }
+            assertEquals(6, pool.totalPoolSize());
+
+            // 6 connections were in use at peak time, the pool grows above that to keep some headroom, without
+            // a pool filler it does so one acquire increment at a time
+            pool.shrink();
+            assertTrue(pool.lastPoolSizingDecision(), pool.lastPoolSizingDecision().startsWith("grew"));
+            assertTrue(pool.targetPoolSize() > 6);
+            assertEquals(7, pool.totalPoolSize());
+
+            // nothing was borrowed since, the pool shrinks one acquire increment at a time
+            int size = pool.totalPoolSize();
+            pool.shrink();
+            assertTrue(pool.lastPoolSizingDecision(), pool.lastPoolSizingDecision().startsWith("shrank"));
+            assertEquals(1, pool.targetPoolSize());
+            assertEquals(size - 1, pool.totalPoolSize());
+        } finally {
+            pds.close();
+            TransactionManagerServices.getTransactionManager().shutdown();
+        }
+    }
+
+    public void testLongHeldConnectionsAreReported() throws Exception {
+        PoolingDataSource pds = new PoolingDataSource();
+        pds.setClassName(MockitoXADataSource.class.getName());
+        pds.setUniqueName("leak");
+        pds.setMaxPoolSize(2);
+        pds.setLeakDetectionThreshold(1);
+        pds.setLeakDetectionStackSampling(1);
+        pds.setAllowLocalTransactions(true);
+        pds.init();
+        try {
+            Connection held = pds.getConnection();
+            Connection returned = pds.getConnection();
+            returned.close();
+            assertEquals(0, pds.getLongHeldConnectionCount());
+
+            Thread.sleep(1100);
+
+            assertEquals(1, pds.getLongHeldConnectionCount());
+            String description = pds.getLongHeldConnections()[0];
+            assertTrue(description, description.contains("by thread '" + Thread.currentThread().getName() + "'"));
+            assertTrue(description, description.contains("testLongHeldConnectionsAreReported"));
+
+            held.close();
+            assertEquals(0, pds.getLongHeldConnectionCount());
+        } finally {
+            pds.close();
+            TransactionManagerServices.getTransactionManager().shutdown();
+        }
+    }
+
+    private static XAPool getPool(PoolingDataSource pds) throws Exception {
+        Field poolField = pds.getClass().getDeclaredField("pool");
+        poolField.setAccessible(true);
+        return (XAPool) poolField.get(pds);
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.resource.jdbc;
+
+import bitronix.tm.resource.jdbc.LruStatementCache.CacheKey;
+import junit.framework.TestCase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.PreparedStatement;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Compares statement cache lookups done with freshly built keys and with interned keys. This is not part of the
+ * unit tests, run it with <code>mvn test -Pbenchmark</code>.
+ */
+public class CacheKeyInternerBenchmark extends TestCase {
+
+    private final static Logger log = LoggerFactory.getLogger(CacheKeyInternerBenchmark.class);
+
+    public void testLookupCost() throws Exception {
+        StringBuilder sb = new StringBuilder("select * from big_table where ");
+        for (int i = 0; i < 200; i++) {
+            sb.append("column").append(i).append(" = ? and ");
+        }
+        sb.append("1 = 1");
+        String sql = sb.toString();
+        int iterations = 200000;
+
+        LruStatementCache cache = new LruStatementCache(10);
+        PreparedStatement stmt = mock(PreparedStatement.class);
+        CacheKeyInterner interner = new CacheKeyInterner(10);
+        cache.put(interner.intern(sql), stmt);
+        cache.put(interner.intern(sql), stmt);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            // a copy of the SQL, like a statement built on each call
+            CacheKey key = new CacheKey(new String(sql));
+            assertSame(stmt, cache.get(key));
+            cache.put(key, stmt);
+        }
+        long freshKeysTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            CacheKey key = interner.intern(sql);
+            assertSame(stmt, cache.get(key));
+            cache.put(key, stmt);
+        }
+        long internedKeysTime = System.nanoTime() - start;
+
+        log.info("cache lookups of a " + sql.length() + " characters statement, fresh keys: " + (freshKeysTime / iterations) + "ns/op, interned keys: " + (internedKeysTime / iterations) + "ns/op");
+    }
+
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.resource.jdbc;
+
+import bitronix.tm.resource.jdbc.LruStatementCache.CacheKey;
+import junit.framework.TestCase;
+
+import java.sql.ResultSet;
+
+public class CacheKeyInternerTest extends TestCase {
+
+    public void testKeysAreShared() throws Exception {
+        CacheKeyInterner interner = new CacheKeyInterner(10);
+
+        CacheKey key = interner.intern("select 1");
+        assertSame(key, interner.intern("select 1"));
+        assertSame(key, interner.intern(new String("select 1")));
+        assertSame(key, interner.intern(new CacheKey("select 1")));
+
+        CacheKey scrollableKey = interner.intern(new CacheKey("select 1", ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY));
+        assertFalse(key.equals(scrollableKey));
+        assertSame(scrollableKey, interner.intern(new CacheKey("select 1", ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY)));
+        assertEquals(new CacheKey("select 1", new int[] {1, 2}), new CacheKey("select 1", new int[] {1, 2}));
+        assertEquals(new CacheKey("select 1", new int[] {1, 2}).hashCode(), new CacheKey("select 1", new int[] {1, 2}).hashCode());
+    }
+
+    public void testCapacityIsBounded() throws Exception {
+        CacheKeyInterner interner = new CacheKeyInterner(2);
+
+        CacheKey key1 = interner.intern("select 1");
+        CacheKey key2 = interner.intern("select 2");
+        assertEquals(2, interner.size());
+
+        assertSame(key1, interner.intern("select 1"));
+        CacheKey key3 = interner.intern("select 3");
+        assertEquals(key3, interner.intern("select 3"));
+        assertNotSame(key3, interner.intern("select 3"));
+        assertEquals(2, interner.size());
+        assertSame(key2, interner.intern(new CacheKey("select 2")));
+    }
+
+}
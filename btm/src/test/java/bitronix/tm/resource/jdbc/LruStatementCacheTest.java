@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.resource.jdbc;
+
+import bitronix.tm.resource.jdbc.LruStatementCache.CacheKey;
+import junit.framework.TestCase;
+
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.mockito.Mockito.mock;
+
+public class LruStatementCacheTest extends TestCase {
+
+    private final List<PreparedStatement> evicted = new ArrayList<PreparedStatement>();
+
+    private LruStatementCache createCache(int maxSize) {
+        LruStatementCache cache = new LruStatementCache(maxSize);
+        cache.addEvictionListener(new LruEvictionListener<PreparedStatement>() {
+            @Override
+            public void onEviction(PreparedStatement value) {
+                evicted.add(value);
+            }
+        });
+        return cache;
+    }
+
+    private PreparedStatement prepareAndClose(LruStatementCache cache, CacheKey key) {
+        PreparedStatement stmt = cache.get(key);
+        if (stmt == null) {
+            stmt = mock(PreparedStatement.class);
+            cache.put(key, stmt);
+        }
+        cache.put(key, stmt);
+        return stmt;
+    }
+
+    public void testFrequentStatementsSurviveScans() throws Exception {
+        LruStatementCache cache = createCache(2);
+        CacheKey popular = new CacheKey("select * from popular");
+        for (int i = 0; i < 10; i++) {
+            prepareAndClose(cache, popular);
+        }
+        PreparedStatement popularStmt = prepareAndClose(cache, popular);
+
+        for (int i = 0; i < 20; i++) {
+            prepareAndClose(cache, new CacheKey("select * from scanned where id = " + i));
+        }
+
+        assertTrue(cache.contains(popular));
+        assertSame(popularStmt, cache.get(popular));
+        assertEquals(19, evicted.size());
+        assertFalse(evicted.contains(popularStmt));
+    }
+
+    public void testInUseStatementsAreNotEvicted() throws Exception {
+        LruStatementCache cache = createCache(1);
+        CacheKey key1 = new CacheKey("select 1");
+        CacheKey key2 = new CacheKey("select 2");
+        PreparedStatement stmt1 = mock(PreparedStatement.class);
+        PreparedStatement stmt2 = mock(PreparedStatement.class);
+
+        cache.put(key1, stmt1);
+        cache.put(key2, stmt2);
+        assertTrue(cache.contains(key1));
+        assertTrue(cache.contains(key2));
+        assertTrue(evicted.isEmpty());
+
+        assertSame(stmt1, cache.get(key1));
+        cache.put(key1, stmt1);
+        assertTrue(cache.contains(key1));
+
+        cache.put(key1, stmt1);
+        assertFalse(cache.contains(key1));
+        assertTrue(cache.contains(key2));
+        assertEquals(1, evicted.size());
+        assertSame(stmt1, evicted.get(0));
+        assertNull(cache.get(key1));
+    }
+
+}
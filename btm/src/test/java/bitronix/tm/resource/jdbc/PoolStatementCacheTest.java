@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.resource.jdbc;
+
+import bitronix.tm.resource.jdbc.LruStatementCache.CacheKey;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class PoolStatementCacheTest extends TestCase {
+
+    public void testHotStatementsElection() throws Exception {
+        PoolStatementCache cache = new PoolStatementCache(4);
+        assertEquals(0, cache.getGeneration());
+        assertTrue(cache.getHotStatements().isEmpty());
+
+        CacheKey hot = new CacheKey("select 1");
+        CacheKey warm = new CacheKey("select 2");
+        CacheKey cold = new CacheKey("select 3");
+        for (int i = 0; i < PoolStatementCache.ELECTION_INTERVAL - 2; i++) {
+            cache.recordRequest(i % 2 == 0 ? hot : warm);
+            cache.recordRequest(hot);
+        }
+        cache.recordRequest(cold);
+
+        assertEquals(1, cache.getGeneration());
+        assertEquals(Arrays.asList(hot, warm), cache.getHotStatements());
+    }
+
+    public void testColdStatementsAgeOut() throws Exception {
+        PoolStatementCache cache = new PoolStatementCache(10);
+        CacheKey old = new CacheKey("select 1");
+        CacheKey recent = new CacheKey("select 2");
+
+        cache.recordRequest(old);
+        cache.electHotStatements();
+        assertEquals(Arrays.asList(old), cache.getHotStatements());
+
+        // the count of 'old' got halved to zero, it is not tracked anymore
+        cache.recordRequest(recent);
+        cache.electHotStatements();
+        assertEquals(Arrays.asList(recent), cache.getHotStatements());
+    }
+
+    public void testConnectionShareFollowsPoolSize() throws Exception {
+        PoolStatementCache cache = new PoolStatementCache(10);
+        assertEquals(10, cache.getConnectionShare(1));
+        assertEquals(5, cache.getConnectionShare(2));
+        assertEquals(3, cache.getConnectionShare(3));
+        assertEquals(1, cache.getConnectionShare(20));
+    }
+
+}
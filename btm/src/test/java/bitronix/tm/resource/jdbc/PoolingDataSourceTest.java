@@ -1,9 +1,18 @@
 package bitronix.tm.resource.jdbc;
 
+import bitronix.tm.TransactionManagerServices;
 import bitronix.tm.mock.resource.jdbc.MockitoXADataSource;
+import bitronix.tm.resource.common.XAPool;
+import bitronix.tm.utils.PropertyUtils;
+import bitronix.tm.resource.jdbc.LruStatementCache.CacheKey;
 import junit.framework.TestCase;
 
+import java.lang.reflect.Field;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 
 /**
  * @author Ludovic Orban
@@ -28,6 +37,136 @@ public class PoolingDataSourceTest extends TestCase {
         }
     }
 
+    public void testWarmUp() throws Exception {
+        PoolingDataSource pds = new PoolingDataSource();
+        try {
+            pds.setUniqueName("warm-up");
+            pds.setClassName(MockitoXADataSource.class.getName());
+            pds.setMinPoolSize(3);
+            pds.setMaxPoolSize(3);
+            pds.setWarmUpThreads(3);
+            pds.setPreparedStatementCacheSize(5);
+            PropertyUtils.setProperty(pds, "warmUpStatements.first", "select 1 from dual");
+            PropertyUtils.setProperty(pds, "warmUpStatements.second", "select ';' from dual");
+            pds.setAllowLocalTransactions(true);
+
+            pds.init();
+            assertEquals(3, pds.getTotalPoolSize());
+            assertEquals(3, pds.getInPoolSize());
+
+            Connection connection = pds.getConnection();
+            JdbcPooledConnection pooledConnection = ((PooledConnectionProxy) connection).getPooledConnection();
+            assertNotNull(pooledConnection.getCachedStatement(new CacheKey("select 1 from dual")));
+            assertNotNull(pooledConnection.getCachedStatement(new CacheKey("select ';' from dual")));
+            assertNull(pooledConnection.getCachedStatement(new CacheKey("select 3 from dual")));
+            connection.close();
+        } finally {
+            pds.close();
+            TransactionManagerServices.getTransactionManager().shutdown();
+        }
+    }
+
+    public void testWarmUpAfterReset() throws Exception {
+        PoolingDataSource pds = new PoolingDataSource();
+        try {
+            pds.setUniqueName("warm-up-reset");
+            pds.setClassName(MockitoXADataSource.class.getName());
+            pds.setMinPoolSize(1);
+            pds.setMaxPoolSize(1);
+            pds.setPreparedStatementCacheSize(5);
+            pds.getWarmUpStatements().setProperty("first", "select 1 from dual");
+            pds.setAllowLocalTransactions(true);
+            pds.init();
+
+            pds.reset();
+
+            Connection connection = pds.getConnection();
+            JdbcPooledConnection pooledConnection = ((PooledConnectionProxy) connection).getPooledConnection();
+            assertNotNull(pooledConnection.getCachedStatement(new CacheKey("select 1 from dual")));
+            connection.close();
+        } finally {
+            pds.close();
+            TransactionManagerServices.getTransactionManager().shutdown();
+        }
+    }
+
+    public void testHotStatementsPreparedOnIdleConnections() throws Exception {
+        PoolingDataSource pds = new PoolingDataSource();
+        try {
+            pds.setUniqueName("hot-statements");
+            pds.setClassName(MockitoXADataSource.class.getName());
+            pds.setMinPoolSize(2);
+            pds.setMaxPoolSize(2);
+            pds.setMaxIdleTime(60);
+            pds.setPreparedStatementCacheSize(5);
+            pds.setPoolStatementCacheSize(4);
+            pds.setAllowLocalTransactions(true);
+            pds.init();
+
+            Connection busyConnection = pds.getConnection();
+            Connection idleConnection = pds.getConnection();
+            Connection idlePhysicalConnection = idleConnection.unwrap(Connection.class);
+            idleConnection.close();
+
+            for (int i = 0; i < PoolStatementCache.ELECTION_INTERVAL; i++) {
+                busyConnection.prepareStatement("select 1").close();
+            }
+            busyConnection.close();
+            // releasing connections must not cost any round trip
+            verify(idlePhysicalConnection, never()).prepareStatement("select 1");
+
+            Field poolField = PoolingDataSource.class.getDeclaredField("pool");
+            poolField.setAccessible(true);
+            XAPool pool = (XAPool) poolField.get(pds);
+            pool.shrink();
+
+            verify(idlePhysicalConnection).prepareStatement("select 1");
+        } finally {
+            pds.close();
+            TransactionManagerServices.getTransactionManager().shutdown();
+        }
+    }
+
+    public void testStatementCacheShareFollowsPoolSize() throws Exception {
+        PoolingDataSource pds = new PoolingDataSource();
+        try {
+            pds.setUniqueName("statement-share");
+            pds.setClassName(MockitoXADataSource.class.getName());
+            pds.setMinPoolSize(1);
+            pds.setMaxPoolSize(2);
+            pds.setPreparedStatementCacheSize(10);
+            pds.setPoolStatementCacheSize(2);
+            pds.setAllowLocalTransactions(true);
+            pds.init();
+            assertEquals(2, pds.getStatementCacheShare());
+
+            Connection connection = pds.getConnection();
+            PreparedStatement first = connection.prepareStatement("select 1");
+            PreparedStatement physicalFirst = first.unwrap(PreparedStatement.class);
+            first.close();
+            PreparedStatement second = connection.prepareStatement("select 2");
+            PreparedStatement physicalSecond = second.unwrap(PreparedStatement.class);
+            second.close();
+            verify(physicalFirst, never()).close();
+            verify(physicalSecond, never()).close();
+
+            // the pool grows, each connection may now only cache half as many statements
+            Connection otherConnection = pds.getConnection();
+            assertEquals(1, pds.getStatementCacheShare());
+            otherConnection.close();
+            connection.close();
+
+            // the share is applied as soon as the connection is acquired again, evicting the least recently used
+            connection = pds.getConnection();
+            verify(physicalFirst).close();
+            verify(physicalSecond, never()).close();
+            connection.close();
+        } finally {
+            pds.close();
+            TransactionManagerServices.getTransactionManager().shutdown();
+        }
+    }
+
     public void testEffectiveConnectionTimeoutWhenSet() {
         PoolingDataSource pds = new PoolingDataSource();
         pds.setConnectionTestTimeout(10);
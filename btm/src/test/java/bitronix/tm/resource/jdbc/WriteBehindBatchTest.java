@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.resource.jdbc;
+
+import bitronix.tm.BitronixTransactionManager;
+import bitronix.tm.TransactionManagerServices;
+import bitronix.tm.resource.jdbc.LruStatementCache.CacheKey;
+import junit.framework.TestCase;
+import org.mockito.InOrder;
+
+import javax.transaction.Status;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests of the write-behind batch of deferred single-row inserts.
+ */
+public class WriteBehindBatchTest extends TestCase {
+
+    private BitronixTransactionManager tm;
+    private WriteBehindBatch batch;
+
+    @Override
+    protected void setUp() throws Exception {
+        TransactionManagerServices.getConfiguration().setJournal("null").setGracefulShutdownInterval(2);
+        tm = TransactionManagerServices.getTransactionManager();
+        batch = new WriteBehindBatch(mock(JdbcPooledConnection.class), 10);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (tm.getStatus() != Status.STATUS_NO_TRANSACTION)
+            tm.rollback();
+        tm.shutdown();
+    }
+
+    public void testSingleRowInsertDetection() throws Exception {
+        assertTrue(WriteBehindBatch.isSingleRowInsert("INSERT INTO T VALUES (?)"));
+        assertTrue(WriteBehindBatch.isSingleRowInsert("  insert into t (a, b) values (?, coalesce(?, 'x)'));"));
+        assertFalse(WriteBehindBatch.isSingleRowInsert("INSERT INTO T VALUES (?), (?)"));
+        assertFalse(WriteBehindBatch.isSingleRowInsert("INSERT INTO T SELECT * FROM U"));
+        assertFalse(WriteBehindBatch.isSingleRowInsert("INSERT IGNORE INTO T VALUES (?)"));
+        assertFalse(WriteBehindBatch.isSingleRowInsert("INSERT INTO T VALUES (?) ON CONFLICT DO NOTHING"));
+        assertFalse(WriteBehindBatch.isSingleRowInsert("UPDATE T SET A = ?"));
+        assertFalse(WriteBehindBatch.isSingleRowInsert("DELETE FROM T"));
+        assertFalse(WriteBehindBatch.isSingleRowInsert("INSERTED"));
+
+        assertTrue(WriteBehindBatch.isDeferrable(new CacheKey("INSERT INTO T VALUES (?)")));
+        assertTrue(WriteBehindBatch.isDeferrable(new CacheKey("INSERT INTO T VALUES (?)", Statement.NO_GENERATED_KEYS)));
+        assertFalse(WriteBehindBatch.isDeferrable(new CacheKey("INSERT INTO T VALUES (?)", Statement.RETURN_GENERATED_KEYS)));
+        assertFalse(WriteBehindBatch.isDeferrable(new CacheKey("INSERT INTO T VALUES (?)", new String[] { "ID" })));
+    }
+
+    public void testNotDeferredOutsideOfTransaction() throws Exception {
+        PreparedStatement statement = mock(PreparedStatement.class);
+
+        assertFalse(batch.defer(statement));
+
+        verify(statement, never()).addBatch();
+    }
+
+    public void testFlushKeepsExecutionOrder() throws Exception {
+        PreparedStatement first = mock(PreparedStatement.class);
+        PreparedStatement second = mock(PreparedStatement.class);
+        when(first.executeBatch()).thenReturn(new int[] { 1, 1 });
+        when(second.executeBatch()).thenReturn(new int[] { Statement.SUCCESS_NO_INFO });
+
+        tm.begin();
+        assertTrue(batch.defer(first));
+        assertTrue(batch.defer(first));
+        verify(first, never()).executeBatch();
+
+        // using another statement flushes the pending inserts of the first one
+        assertTrue(batch.defer(second));
+        batch.flush();
+
+        InOrder order = inOrder(first, second);
+        order.verify(first, times(2)).addBatch();
+        order.verify(first).executeBatch();
+        order.verify(second).addBatch();
+        order.verify(second).executeBatch();
+
+        tm.commit();
+        verify(first, times(1)).executeBatch();
+        verify(second, times(1)).executeBatch();
+    }
+
+    public void testFlushWhenFull() throws Exception {
+        batch = new WriteBehindBatch(mock(JdbcPooledConnection.class), 2);
+        PreparedStatement statement = mock(PreparedStatement.class);
+        when(statement.executeBatch()).thenReturn(new int[] { 1, 1 });
+
+        tm.begin();
+        batch.defer(statement);
+        verify(statement, never()).executeBatch();
+        batch.defer(statement);
+        verify(statement).executeBatch();
+        tm.commit();
+    }
+
+    public void testRowCountMismatchMarksRollbackOnly() throws Exception {
+        PreparedStatement statement = mock(PreparedStatement.class);
+        when(statement.executeBatch()).thenReturn(new int[] { 1, 0 });
+
+        tm.begin();
+        batch.defer(statement);
+        batch.defer(statement);
+        try {
+            batch.flush();
+            fail("expected SQLException");
+        } catch (SQLException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().startsWith("deferred insert #2 of "));
+        }
+        assertEquals(Status.STATUS_MARKED_ROLLBACK, tm.getStatus());
+
+        tm.rollback();
+    }
+
+    public void testFlushedInBeforeCompletion() throws Exception {
+        PreparedStatement statement = mock(PreparedStatement.class);
+        when(statement.executeBatch()).thenReturn(new int[] { 1 });
+
+        tm.begin();
+        batch.defer(statement);
+        verify(statement, never()).executeBatch();
+
+        tm.commit();
+        verify(statement).executeBatch();
+    }
+
+    public void testDiscardedOnRollback() throws Exception {
+        PreparedStatement statement = mock(PreparedStatement.class);
+
+        tm.begin();
+        batch.defer(statement);
+        tm.rollback();
+
+        verify(statement, never()).executeBatch();
+        verify(statement).clearBatch();
+    }
+
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.resource.jdbc.proxy;
+
+import java.lang.reflect.Method;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class JavaProxyBaseTest {
+
+    @Test
+    public void testDispatchTable() throws Exception {
+        JavaProxyBase.DispatchTable dispatchTable = new JavaProxyBase.DispatchTable(ResultSetJavaProxy.class);
+
+        Method getStatement = ResultSet.class.getMethod("getStatement");
+        Method getString = ResultSet.class.getMethod("getString", int.class);
+
+        Method override = dispatchTable.lookup(getStatement);
+        assertEquals(ResultSetJavaProxy.class, override.getDeclaringClass());
+        assertSame(override, dispatchTable.lookup(getStatement));
+        assertNull(dispatchTable.lookup(getString));
+        assertNull(dispatchTable.lookup(getString));
+    }
+
+    @Test
+    public void testJavaProxyDispatch() throws SQLException {
+        Statement stmt = mock(Statement.class);
+        ResultSet rs = mock(ResultSet.class);
+        when(rs.getString(1)).thenReturn("foo");
+
+        ResultSet proxy = new JdbcJavaProxyFactory().getProxyResultSet(stmt, rs);
+
+        assertEquals("foo", proxy.getString(1));
+        assertEquals("foo", proxy.getString(1));
+        verify(rs, times(2)).getString(1);
+        assertSame(stmt, proxy.getStatement());
+    }
+
+}
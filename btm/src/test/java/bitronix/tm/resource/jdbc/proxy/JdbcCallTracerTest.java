@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2006-2014 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.resource.jdbc.proxy;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ */
+public class JdbcCallTracerTest {
+
+    private List<JdbcCallListener> listeners;
+    private JdbcCallTracer tracer;
+
+    @Before
+    public void setup() {
+        listeners = new CopyOnWriteArrayList<JdbcCallListener>();
+        tracer = new JdbcCallTracer("ds", listeners);
+    }
+
+    @Test
+    public void testShapeReplacesLiterals() {
+        assertEquals("SELECT * FROM t1 WHERE id = ? AND name = ?",
+                JdbcCallTracer.shapeOf("SELECT *  FROM t1\n WHERE id = 42 AND name = 'O''Brien'"));
+        assertEquals("UPDATE t SET price = ? WHERE id = ?", JdbcCallTracer.shapeOf("UPDATE t SET price = 1.5 WHERE id = ?"));
+    }
+
+    @Test
+    public void testExecutionsAreAggregatedByShape() {
+        tracer.statementExecuted("SELECT * FROM t WHERE id = 1", 2000000L);
+        tracer.statementExecuted("SELECT * FROM t WHERE id = 2", 5000L);
+        tracer.statementExecuted("DELETE FROM t", 1000L);
+
+        assertEquals(3L, tracer.getExecutionCount());
+        assertEquals(2, tracer.getTracedStatementCount());
+
+        JdbcCallStatistics statistics = tracer.getStatistics("SELECT * FROM t WHERE id = 3");
+        assertEquals("SELECT * FROM t WHERE id = ?", statistics.getSql());
+        assertEquals(2L, statistics.getExecutionCount());
+        assertEquals(2000L, statistics.getMaxTimeMicros());
+        assertEquals(5L, statistics.getPercentileMicros(50.0));
+        assertEquals(2000L, statistics.getPercentileMicros(99.0));
+        assertTrue(tracer.getSlowestStatements()[0].endsWith("sql=SELECT * FROM t WHERE id = ?"));
+
+        tracer.reset();
+        assertEquals(0L, tracer.getExecutionCount());
+        assertEquals(0, tracer.getTracedStatementCount());
+    }
+
+    @Test
+    public void testTracedStatementsAreBounded() {
+        for (int i = 0; i < JdbcCallTracer.MAX_TRACED_STATEMENTS + 10; i++) {
+            tracer.statementExecuted("SELECT c" + i + " FROM t", 1000L);
+        }
+
+        assertEquals(JdbcCallTracer.MAX_TRACED_STATEMENTS + 1, tracer.getTracedStatementCount());
+        assertEquals(JdbcCallTracer.OTHER_SQL, tracer.getStatistics("SELECT c" + (JdbcCallTracer.MAX_TRACED_STATEMENTS + 5) + " FROM t").getSql());
+    }
+
+    @Test
+    public void testCacheAccessesAreCounted() {
+        tracer.statementCacheAccessed("SELECT 1", false);
+        tracer.statementCacheAccessed("SELECT 1", true);
+        tracer.statementCacheAccessed("SELECT 1", true);
+
+        assertEquals(2L, tracer.getStatementCacheHitCount());
+        assertEquals(1L, tracer.getStatementCacheMissCount());
+        assertEquals(1L, tracer.getStatistics("SELECT 1").getCacheMissCount());
+    }
+
+    @Test
+    public void testRowsAreCountedOnceWhenResultSetIsExhausted() throws SQLException {
+        final List<Long> fetched = new ArrayList<Long>();
+        listeners.add(new RecordingListener(fetched));
+        ResultSet resultSet = mock(ResultSet.class);
+        when(resultSet.next()).thenReturn(true, true, false);
+
+        ResultSet counted = tracer.getRowCountingProxy("SELECT * FROM t", mock(Statement.class), resultSet);
+        while (counted.next()) {
+            counted.getString(1);
+        }
+        counted.close();
+
+        verify(resultSet).close();
+        assertEquals(2L, tracer.getRowsFetched());
+        assertEquals(1, fetched.size());
+        assertEquals(Long.valueOf(2L), fetched.get(0));
+    }
+
+    @Test
+    public void testFailingListenerDoesNotBreakTracing() {
+        listeners.add(new RecordingListener(null));
+
+        tracer.statementExecuted("SELECT 1", 1000L);
+
+        assertEquals(1L, tracer.getExecutionCount());
+    }
+
+    private static class RecordingListener implements JdbcCallListener {
+        private final List<Long> fetched;
+
+        private RecordingListener(List<Long> fetched) {
+            this.fetched = fetched;
+        }
+
+        @Override
+        public void onExecute(String uniqueName, String sql, long elapsedNanos) {
+            if (fetched == null)
+                throw new IllegalStateException("listener failure");
+        }
+
+        @Override
+        public void onFetch(String uniqueName, String sql, long rows) {
+            fetched.add(rows);
+        }
+
+        @Override
+        public void onStatementCacheAccess(String uniqueName, String sql, boolean hit) {
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.resource.jdbc.proxy;
+
+import bitronix.tm.resource.jdbc.JdbcPooledConnection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * The proxy classes are generated during the process-classes phase of the build.
+ */
+public class JdbcGeneratedProxyFactoryTest {
+
+    private JdbcGeneratedProxyFactory factory;
+
+    @Before
+    public void setup() throws Exception {
+        factory = new JdbcGeneratedProxyFactory();
+    }
+
+    @Test
+    public void testResultSetCallsAreDelegated() throws SQLException {
+        Statement stmt = mock(Statement.class);
+        ResultSet rs = mock(ResultSet.class);
+        when(rs.getString(1)).thenReturn("foo");
+
+        ResultSet proxy = factory.getProxyResultSet(stmt, rs);
+
+        assertEquals(ResultSetJavaProxy.class, proxy.getClass().getSuperclass());
+        assertEquals("foo", proxy.getString(1));
+        verify(rs).getString(1);
+        assertSame(stmt, proxy.getStatement());
+    }
+
+    @Test
+    public void testStatementCallsAreDelegated() throws SQLException {
+        JdbcPooledConnection connection = mock(JdbcPooledConnection.class);
+        Statement stmt = mock(Statement.class);
+        when(stmt.getMaxRows()).thenReturn(42);
+
+        Statement proxy = factory.getProxyStatement(connection, stmt);
+
+        assertEquals(StatementJavaProxy.class, proxy.getClass().getSuperclass());
+        assertEquals(42, proxy.getMaxRows());
+        verify(stmt).getMaxRows();
+    }
+
+}
@@ -17,7 +17,9 @@ package bitronix.tm.resource.jdbc.proxy;
 
 import bitronix.tm.resource.jdbc.JdbcPooledConnection;
 import bitronix.tm.resource.jdbc.LruStatementCache.CacheKey;
+import bitronix.tm.resource.jdbc.PoolingDataSource;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import static org.junit.Assert.*;
 import org.junit.Before;
@@ -25,6 +27,7 @@ import org.junit.Test;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 /**
  *
@@ -81,4 +84,66 @@ public class PreparedStatementJavaProxyTest {
         verify(stmt).close();
     }
 
+    @Test
+    public void testUnwrappedResultSetsAreClosedWithCachedStatement() throws SQLException {
+        PoolingDataSource poolingDataSource = new PoolingDataSource();
+        poolingDataSource.setWrapResultSets(false);
+        when(connection.getPoolingDataSource()).thenReturn(poolingDataSource);
+        ResultSet rs = mock(ResultSet.class);
+        when(stmt.executeQuery()).thenReturn(rs);
+
+        CacheKey key = new CacheKey("SELECT * FROM DUAL");
+        PreparedStatement proxy = JdbcProxyFactory.INSTANCE.getProxyPreparedStatement(connection, stmt, key);
+        assertSame(rs, proxy.executeQuery());
+
+        proxy.close();
+
+        verify(rs).close();
+        verify(stmt, never()).close();
+    }
+
+    @Test
+    public void testDeferredUpdateIsNotExecutedImmediately() throws SQLException {
+        CacheKey key = new CacheKey("INSERT INTO T VALUES (?)");
+        when(connection.canDeferUpdates(key)).thenReturn(true);
+        when(connection.deferUpdate(stmt)).thenReturn(true);
+        PreparedStatement proxy = JdbcProxyFactory.INSTANCE.getProxyPreparedStatement(connection, stmt, key);
+
+        assertEquals(1, proxy.executeUpdate());
+
+        verify(stmt, never()).executeUpdate();
+    }
+
+    @Test
+    public void testUpdateIsNotDeferredWhenStatementIsNotDeferrable() throws SQLException {
+        CacheKey key = new CacheKey("UPDATE T SET A = ?");
+        when(connection.deferUpdate(stmt)).thenReturn(true);
+        when(stmt.executeUpdate()).thenReturn(0);
+        PreparedStatement proxy = JdbcProxyFactory.INSTANCE.getProxyPreparedStatement(connection, stmt, key);
+
+        assertEquals(0, proxy.executeUpdate());
+
+        verify(connection, never()).deferUpdate(stmt);
+        verify(stmt).executeUpdate();
+    }
+
+    @Test
+    public void testUpdateIsExecutedWhenNotDeferred() throws SQLException {
+        when(stmt.executeUpdate()).thenReturn(3);
+        PreparedStatement proxy = JdbcProxyFactory.INSTANCE.getProxyPreparedStatement(connection, stmt, null);
+
+        assertEquals(3, proxy.executeUpdate());
+
+        verify(stmt).executeUpdate();
+    }
+
+    @Test
+    public void testDeferredUpdatesAreFlushedBeforeQuery() throws SQLException {
+        PreparedStatement proxy = JdbcProxyFactory.INSTANCE.getProxyPreparedStatement(connection, stmt, null);
+
+        proxy.executeQuery();
+
+        verify(connection).flushDeferredUpdates();
+    }
+
 }
@@ -90,6 +90,45 @@ public class TaskSchedulerTest extends TestCase {
         ts.join(1000);
     }
 
+    public void testEarlierTaskWakesUpScheduler() throws Exception {
+        List<SimpleTask> result = Collections.synchronizedList(new ArrayList<SimpleTask>());
+
+        ts.addTask(new SimpleTask(new Date(MonotonicClock.currentTimeMillis() + 60000), ts, 0, result));
+        Thread.sleep(100);
+        ts.addTask(new SimpleTask(new Date(MonotonicClock.currentTimeMillis() + 50), ts, 1, result));
+
+        Thread.sleep(300);
+        assertEquals(1, result.size());
+        assertEquals(1, result.get(0).getObject());
+
+        assertTrue(ts.removeTaskByObject(0));
+    }
+
+    public void testSlowTaskDoesNotDelayOtherTasks() throws Exception {
+        List<SimpleTask> result = Collections.synchronizedList(new ArrayList<SimpleTask>());
+
+        ts.addTask(new SimpleTask(new Date(MonotonicClock.currentTimeMillis()), ts, 0, result) {
+            @Override
+            public void execute() throws TaskException {
+                try {
+                    Thread.sleep(2000);
+                } catch (InterruptedException ex) {
+                    throw new TaskException("interrupted", ex);
+                }
+                super.execute();
+            }
+        });
+        ts.addTask(new SimpleTask(new Date(MonotonicClock.currentTimeMillis() + 100), ts, 1, result));
+
+        Thread.sleep(500);
+        assertEquals(1, result.size());
+        assertEquals(1, result.get(0).getObject());
+        assertTrue(ts.getMaxTickLag() < 500);
+
+        Thread.sleep(2000);
+        assertEquals(2, result.size());
+    }
+
     private static class SimpleTask extends Task {
 
         private final Object obj;
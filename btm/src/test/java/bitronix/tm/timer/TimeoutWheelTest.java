@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.timer;
+
+import junit.framework.TestCase;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ */
+public class TimeoutWheelTest extends TestCase {
+
+    private static final long START = 1000000L;
+
+    private TimeoutWheel wheel;
+
+    @Override
+    protected void setUp() throws Exception {
+        wheel = new TimeoutWheel(100L, 8, START);
+    }
+
+    private static TransactionTimeoutTask task(long executionTime) {
+        return new TransactionTimeoutTask(null, new Date(executionTime), null);
+    }
+
+    public void testExpireOnlyElapsedTasks() throws Exception {
+        TransactionTimeoutTask early = task(START + 250);
+        TransactionTimeoutTask late = task(START + 650);
+        wheel.schedule(late);
+        wheel.schedule(early);
+        assertEquals(2, wheel.size());
+
+        assertTrue(wheel.expire(START + 199).isEmpty());
+
+        List<TransactionTimeoutTask> expired = wheel.expire(START + 300);
+        assertEquals(1, expired.size());
+        assertSame(early, expired.get(0));
+        assertEquals(1, wheel.size());
+
+        expired = wheel.expire(START + 700);
+        assertEquals(1, expired.size());
+        assertSame(late, expired.get(0));
+        assertEquals(0, wheel.size());
+    }
+
+    public void testTaskLongerThanOneRotation() throws Exception {
+        TransactionTimeoutTask task = task(START + 2050);
+        wheel.schedule(task);
+
+        // the task hashes to a bucket visited twice before its tick
+        assertTrue(wheel.expire(START + 1000).isEmpty());
+        assertTrue(wheel.expire(START + 1999).isEmpty());
+        assertEquals(1, wheel.size());
+
+        List<TransactionTimeoutTask> expired = wheel.expire(START + 2100);
+        assertEquals(1, expired.size());
+        assertSame(task, expired.get(0));
+    }
+
+    public void testCancel() throws Exception {
+        TransactionTimeoutTask first = task(START + 150);
+        TransactionTimeoutTask second = task(START + 160);
+        TransactionTimeoutTask third = task(START + 170);
+        wheel.schedule(first);
+        wheel.schedule(second);
+        wheel.schedule(third);
+
+        assertTrue(wheel.cancel(second));
+        assertFalse(wheel.cancel(second));
+        assertEquals(2, wheel.size());
+
+        List<TransactionTimeoutTask> expired = wheel.expire(START + 200);
+        assertEquals(2, expired.size());
+        assertTrue(expired.contains(first));
+        assertTrue(expired.contains(third));
+        assertFalse(wheel.cancel(first));
+        assertEquals(0, wheel.size());
+    }
+
+    public void testTaskScheduledInThePastExpiresOnNextAdvance() throws Exception {
+        wheel.expire(START + 500);
+
+        TransactionTimeoutTask task = task(START + 100);
+        wheel.schedule(task);
+
+        List<TransactionTimeoutTask> expired = wheel.expire(START + 600);
+        assertEquals(1, expired.size());
+        assertSame(task, expired.get(0));
+    }
+
+    public void testCancelByObject() throws Exception {
+        final Object transaction = new Object();
+        TransactionTimeoutTask task = new TransactionTimeoutTask(null, new Date(START + 100), null) {
+            @Override
+            public Object getObject() {
+                return transaction;
+            }
+        };
+        wheel.schedule(task(START + 100));
+        wheel.schedule(task);
+
+        assertSame(task, wheel.cancelByObject(transaction));
+        assertNull(wheel.cancelByObject(transaction));
+        assertEquals(1, wheel.size());
+        assertEquals(1, wheel.expire(START + 100).size());
+    }
+
+}
@@ -22,7 +22,9 @@ import bitronix.tm.mock.AbstractMockJdbcTest;
 import bitronix.tm.mock.events.Event;
 import bitronix.tm.mock.events.EventRecorder;
 import bitronix.tm.mock.events.JournalLogEvent;
+import bitronix.tm.mock.events.LocalCommitEvent;
 import bitronix.tm.mock.events.LocalRollbackEvent;
+import bitronix.tm.mock.events.XAResourceCommitEvent;
 import bitronix.tm.mock.events.XAResourcePrepareEvent;
 import bitronix.tm.mock.events.XAResourceRollbackEvent;
 import bitronix.tm.mock.resource.MockJournal;
@@ -32,6 +34,7 @@ import bitronix.tm.mock.resource.jdbc.MockitoXADataSource;
 import bitronix.tm.resource.jdbc.PooledConnectionProxy;
 import bitronix.tm.resource.jdbc.PoolingDataSource;
 import bitronix.tm.resource.jdbc.lrc.LrcXADataSource;
+import bitronix.tm.resource.jdbc.lrc.LrcXAResource;
 import junit.framework.TestCase;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,9 +45,12 @@ import javax.transaction.Status;
 import javax.transaction.xa.XAException;
 import java.lang.reflect.Field;
 import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicReference;
 
+import static org.mockito.Mockito.doThrow;
+
 /**
  *
  * @author Ludovic Orban
@@ -282,6 +288,162 @@ public class Phase1FailureTest extends TestCase {
         assertEquals("TM haven't properly tried to rollback", 1, localRollbackEventCount);
     }
 
+    /**
+     * Test scenario:
+     *
+     * XAResources: 2
+     * TX timeout: 10s
+     * TX resolution: rollback
+     * XAResource 1 resolution: prepare succeeds
+     * XAResource 2 resolution: it's an LRCXaResource and its one-phase commit throws SQLException.
+     *
+     * Expected outcome:
+     *   TM prepares resource 1 then fails committing resource 2 and throws RollbackException. As the last resource
+     *   decides of the outcome, resource 1 gets rolled back.
+     * Expected TM events:
+     *  1 XAResourcePrepareEvent, 1 XAResourceRollbackEvent, 1 LocalRollbackEvent
+     * Expected journal events:
+     *   ACTIVE, PREPARING, ROLLING_BACK, ROLLEDBACK
+     * @throws Exception if any error happens.
+     */
+    public void testCommitLrcFailure() throws Exception {
+        tm.begin();
+        tm.setTransactionTimeout(10); // TX must not timeout
+
+        Connection connection1 = poolingDataSource1.getConnection();
+        connection1.createStatement();
+
+        Connection connection2 = poolingDataSourceLrc.getConnection();
+        PooledConnectionProxy handle2 = (PooledConnectionProxy) connection2;
+        XAConnection xaConnection2 = (XAConnection) AbstractMockJdbcTest.getWrappedXAConnectionOf(handle2.getPooledConnection());
+        connection2.createStatement();
+
+        Field field = LrcXAResource.class.getDeclaredField("connection");
+        field.setAccessible(true);
+        Connection physicalConnection2 = (Connection) field.get(xaConnection2.getXAResource());
+        doThrow(new SQLException("resource 2 commit failed")).when(physicalConnection2).commit();
+
+        try {
+            tm.commit();
+            fail("TM should have thrown an exception");
+        } catch (RollbackException ex) {
+            assertTrue(ex.getCause().getMessage().matches("transaction failed during prepare of a Bitronix Transaction with GTRID (.*?), status=PREPARING, 2 resource\\(s\\) enlisted (.*?): resource\\(s\\) \\[pds4_lrc\\] threw unexpected exception"));
+        }
+
+        log.info(EventRecorder.dumpToString());
+
+        int journalRollbackEventCount = 0;
+        int prepareEventCount = 0;
+        int rollbackEventCount = 0;
+        int localRollbackEventCount = 0;
+        List events = EventRecorder.getOrderedEvents();
+        for (int i = 0; i < events.size(); i++) {
+            Event event = (Event) events.get(i);
+
+            if (event instanceof XAResourceRollbackEvent)
+                rollbackEventCount++;
+
+            if (event instanceof XAResourcePrepareEvent)
+                prepareEventCount++;
+
+            if (event instanceof LocalRollbackEvent)
+                localRollbackEventCount++;
+
+            if (event instanceof JournalLogEvent) {
+                if (((JournalLogEvent) event).getStatus() == Status.STATUS_ROLLEDBACK)
+                    journalRollbackEventCount++;
+            }
+        }
+        assertEquals("TM should have journaled 1 ROLLEDBACK status", 1, journalRollbackEventCount);
+        assertEquals("TM haven't properly tried to prepare", 1, prepareEventCount);
+        assertEquals("TM haven't properly tried to rollback", 1, rollbackEventCount);
+        assertEquals("TM haven't properly tried to rollback", 1, localRollbackEventCount);
+    }
+
+    /**
+     * Test scenario:
+     *
+     * XAResources: 2
+     * TX timeout: 10s
+     * TX resolution: commit
+     * XAResource 1 resolution: prepare and commit succeed
+     * XAResource 2 resolution: it's an LRCXaResource and its one-phase commit succeeds.
+     *
+     * Expected outcome:
+     *   TM prepares resource 1, then commits resource 2 in one phase before logging COMMITTING, then commits
+     *   resource 1. Resource 2 is neither prepared nor committed in phase 2.
+     * Expected TM events:
+     *  1 XAResourcePrepareEvent, 1 LocalCommitEvent, 1 XAResourceCommitEvent
+     * Expected journal events:
+     *   ACTIVE, PREPARING, COMMITTING, COMMITTED
+     * @throws Exception if any error happens.
+     */
+    public void testCommitLrcSuccess() throws Exception {
+        tm.begin();
+        tm.setTransactionTimeout(10); // TX must not timeout
+
+        Connection connection1 = poolingDataSource1.getConnection();
+        connection1.createStatement();
+
+        Connection connection2 = poolingDataSourceLrc.getConnection();
+        connection2.createStatement();
+
+        tm.commit();
+
+        log.info(EventRecorder.dumpToString());
+
+        int prepareEventIndex = -1;
+        int localCommitEventIndex = -1;
+        int journalCommittingEventIndex = -1;
+        int prepareEventCount = 0;
+        int localCommitEventCount = 0;
+        int commitEventCount = 0;
+        int journalCommittedEventCount = 0;
+        List events = EventRecorder.getOrderedEvents();
+        for (int i = 0; i < events.size(); i++) {
+            Event event = (Event) events.get(i);
+
+            if (event instanceof XAResourcePrepareEvent) {
+                prepareEventCount++;
+                prepareEventIndex = i;
+            }
+
+            if (event instanceof LocalCommitEvent) {
+                localCommitEventCount++;
+                localCommitEventIndex = i;
+                assertEquals("last resource must be committed in one phase instead of being prepared",
+                        "commit", findLrcXAResourceCaller(event.getException()));
+            }
+
+            if (event instanceof XAResourceCommitEvent) {
+                commitEventCount++;
+                assertFalse("resource 1 must be committed in two phases", ((XAResourceCommitEvent) event).isOnePhase());
+            }
+
+            if (event instanceof JournalLogEvent) {
+                int status = ((JournalLogEvent) event).getStatus();
+                if (status == Status.STATUS_COMMITTING)
+                    journalCommittingEventIndex = i;
+                if (status == Status.STATUS_COMMITTED)
+                    journalCommittedEventCount++;
+            }
+        }
+        assertEquals("TM haven't properly tried to prepare", 1, prepareEventCount);
+        assertEquals("TM should have committed the last resource once", 1, localCommitEventCount);
+        assertEquals("TM should only have committed resource 1 in phase 2", 1, commitEventCount);
+        assertEquals("TM should have journaled 1 COMMITTED status", 1, journalCommittedEventCount);
+        assertTrue("last resource must be committed after resource 1 prepared", prepareEventIndex < localCommitEventIndex);
+        assertTrue("last resource must be committed before COMMITTING is logged", localCommitEventIndex < journalCommittingEventIndex);
+    }
+
+    private static String findLrcXAResourceCaller(Exception callStack) {
+        for (StackTraceElement element : callStack.getStackTrace()) {
+            if (element.getClassName().equals(LrcXAResource.class.getName()))
+                return element.getMethodName();
+        }
+        return null;
+    }
+
     @Override
     protected void setUp() throws Exception {
         EventRecorder.clear();
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2006-2013 Bitronix Software (http://www.bitronix.be)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bitronix.tm.utils;
+
+import junit.framework.TestCase;
+
+public class LatencyStatisticsTest extends TestCase {
+
+    public void testPercentiles() throws Exception {
+        LatencyStatistics statistics = new LatencyStatistics(100);
+        assertEquals(0L, statistics.getPercentile(50.0));
+
+        for (int i = 100; i > 0; i--) {
+            statistics.record(i);
+        }
+
+        assertEquals(100L, statistics.getCount());
+        assertEquals(100L, statistics.getMax());
+        assertEquals(50L, statistics.getPercentile(50.0));
+        assertEquals(95L, statistics.getPercentile(95.0));
+        assertEquals(99L, statistics.getPercentile(99.0));
+        assertEquals(100L, statistics.getPercentile(100.0));
+    }
+
+    public void testSlidingWindow() throws Exception {
+        LatencyStatistics statistics = new LatencyStatistics(10);
+        for (int i = 0; i < 10; i++) {
+            statistics.record(1000L);
+        }
+        for (int i = 0; i < 10; i++) {
+            statistics.record(1L);
+        }
+
+        assertEquals(20L, statistics.getCount());
+        assertEquals(1000L, statistics.getMax());
+        assertEquals(1L, statistics.getPercentile(100.0));
+
+        statistics.reset();
+        assertEquals(0L, statistics.getCount());
+        assertEquals(0L, statistics.getPercentile(99.0));
+    }
+
+}
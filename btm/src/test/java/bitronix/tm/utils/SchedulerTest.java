@@ -257,6 +257,56 @@ public class SchedulerTest extends TestCase {
         }
     }
 
+    public void testUnorderedPositions() {
+        Scheduler<String> scheduler = new Scheduler<String>();
+
+        scheduler.add("last", Scheduler.ALWAYS_LAST_POSITION);
+        scheduler.add("default0", Scheduler.DEFAULT_POSITION);
+        scheduler.add("first", Scheduler.ALWAYS_FIRST_POSITION);
+        scheduler.add("minus1", -1);
+        scheduler.add("default1", Scheduler.DEFAULT_POSITION);
+        scheduler.add("plus5", 5);
+
+        assertEquals("a Scheduler with 6 object(s) in 5 position(s)", scheduler.toString());
+        assertOrder(scheduler.iterator(), "first", "minus1", "default0", "default1", "plus5", "last");
+        assertOrder(scheduler.reverseIterator(), "last", "plus5", "default0", "default1", "minus1", "first");
+        assertNull(scheduler.getByNaturalOrderForPosition(1));
+
+        scheduler.remove("minus1");
+        scheduler.remove("plus5");
+        assertEquals("a Scheduler with 4 object(s) in 3 position(s)", scheduler.toString());
+        assertOrder(scheduler.iterator(), "first", "default0", "default1", "last");
+
+        try {
+            scheduler.remove("minus1");
+            fail("expected NoSuchElementException");
+        } catch (NoSuchElementException ex) {
+            // expected
+        }
+    }
+
+    public void testInFlightAdd() {
+        Scheduler<String> scheduler = new Scheduler<String>();
+        scheduler.add("a", Scheduler.DEFAULT_POSITION);
+        scheduler.add("z", Scheduler.ALWAYS_LAST_POSITION);
+
+        Iterator<String> it = scheduler.iterator();
+        assertEquals("a", it.next());
+        scheduler.add("b", Scheduler.DEFAULT_POSITION);
+        assertEquals("b", it.next());
+        assertEquals("z", it.next());
+        assertFalse(it.hasNext());
+        assertEquals(3, scheduler.size());
+    }
+
+    private static void assertOrder(Iterator<String> it, String... expected) {
+        for (String s : expected) {
+            assertTrue(it.hasNext());
+            assertEquals(s, it.next());
+        }
+        assertFalse(it.hasNext());
+    }
+
     private static int counter = 0;
     private static int incCounter() {
         return counter++;
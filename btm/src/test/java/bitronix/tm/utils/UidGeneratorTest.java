@@ -15,6 +15,7 @@
  */
 package bitronix.tm.utils;
 
+import bitronix.tm.TransactionManagerServices;
 import junit.framework.TestCase;
 
 import java.util.ArrayList;
@@ -85,6 +86,32 @@ public class UidGeneratorTest extends TestCase {
         assertEquals(concurrency * callsPerThread, allIds.size());
     }
 
+    public void testGeneratedLayout() throws Exception {
+        byte[] serverId = TransactionManagerServices.getConfiguration().buildServerIdArray();
+        long before = MonotonicClock.currentTimeMillis();
+        Uid uid1 = UidGenerator.generateUid();
+        Uid uid2 = UidGenerator.generateUid();
+        long after = MonotonicClock.currentTimeMillis();
+
+        assertEquals(serverId.length + 8 + 4, uid1.length());
+        assertTrue(Arrays.equals(serverId, uid1.extractServerId()));
+        assertTrue(uid1.extractTimestamp() >= before && uid1.extractTimestamp() <= after);
+        assertEquals(uid1.extractSequence() + 1, uid2.extractSequence());
+    }
+
+    public void testSequenceBlocksUniqueness() throws Exception {
+        TransactionManagerServices.getConfiguration().setUidSequenceBlockSize(16);
+        try {
+            testMultiThreadedUniqueness();
+
+            Uid uid1 = UidGenerator.generateUid();
+            Uid uid2 = UidGenerator.generateUid();
+            assertFalse(uid1.equals(uid2));
+        } finally {
+            TransactionManagerServices.getConfiguration().setUidSequenceBlockSize(1);
+        }
+    }
+
     public void testEquals() throws Exception {
         Uid uid1 = UidGenerator.generateUid();
         Uid uid2 = UidGenerator.generateUid();